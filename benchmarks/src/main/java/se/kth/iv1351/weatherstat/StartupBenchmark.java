@@ -0,0 +1,170 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures starting the application in a new process, as a user does, until
+ * the first prompt is printed, and until the result of the first command is
+ * printed. The difference between the two is the latency of the first
+ * command, which includes opening the store. Each invocation starts a cold
+ * process, there is nothing to warm up in the benchmark process.
+ * <p>
+ * The application is started with the <code>java</code> running the
+ * benchmark, and the class path of the benchmark, which contains the
+ * application. Options for that JVM, for example
+ * <code>-XX:SharedArchiveFile=...</code> to use an AppCDS archive, are given
+ * with <code>-p jvmOptions=...</code>, with absolute paths since the
+ * application is started in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+    private static final String PROMPT = "> ";
+    private static final String FIRST_COMMAND = "avg";
+    @Param({""})
+    private String jvmOptions;
+    @Param({"local"})
+    private String store;
+    private Path workDir;
+    private Process app;
+
+    @Setup
+    public void createWorkDir() throws IOException {
+        workDir = Files.createTempDirectory("weatherstat-startup");
+    }
+
+    @TearDown
+    public void removeWorkDir() throws IOException {
+        try (var paths = Files.walk(workDir)) {
+            paths.sorted((first, second) -> second.compareTo(first)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopApp() throws InterruptedException {
+        if (app != null) {
+            app.destroyForcibly().waitFor();
+            app = null;
+        }
+    }
+
+    @Benchmark
+    public int timeToFirstPrompt() throws IOException {
+        app = startApp();
+        return awaitPrompt(app.getInputStream());
+    }
+
+    @Benchmark
+    public int timeToFirstResult() throws IOException {
+        app = startApp();
+        InputStream output = app.getInputStream();
+        awaitPrompt(output);
+        OutputStream input = app.getOutputStream();
+        input.write((FIRST_COMMAND + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        input.flush();
+        return awaitPrompt(output);
+    }
+
+    private Process startApp() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (!jvmOptions.isBlank()) {
+            command.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+        }
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add(App.class.getName());
+        ProcessBuilder builder = new ProcessBuilder(command).directory(workDir.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        Map<String, String> env = builder.environment();
+        env.put("WEATHERSTAT_STORE", store);
+        env.put("WEATHERSTAT_LOCAL_STORE_DIR", workDir.resolve("store").toString());
+        env.put("WEATHERSTAT_SPOOL_FILE", workDir.resolve("spool.jsonl").toString());
+        env.put("WEATHER_API_CACHE_DIR", workDir.resolve("cache").toString());
+        return builder.start();
+    }
+
+    /**
+     * The application runs in the work directory, where relative class path
+     * entries would not be found.
+     */
+    private String absoluteClassPath() {
+        return Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Path.of(entry).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    /**
+     * Reads the output of the application until it prints the prompt.
+     *
+     * @return The number of characters read, to keep the reads from being
+     *         optimized away.
+     */
+    private int awaitPrompt(InputStream output) throws IOException {
+        int charsRead = 0;
+        int previous = -1;
+        int current;
+        while ((current = output.read()) != -1) {
+            charsRead++;
+            if (previous == PROMPT.charAt(0) && current == PROMPT.charAt(1)) {
+                return charsRead;
+            }
+            previous = current;
+        }
+        throw new IOException("The application exited before printing the prompt.");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * Recorded observations from openweathermap.org and weatherbit.io, and
+ * synthetic corpora built from them. The corpora are generated with a fixed
+ * seed, which means all runs use exactly the same data.
+ */
+public class Fixtures {
+    /**
+     * The seed used for all generated data.
+     */
+    public static final long SEED = 1351;
+    /**
+     * An observation recorded from openweathermap.org.
+     */
+    public static final String OPENWEATHERMAP = read("fixtures/openweathermap.json");
+    /**
+     * An observation recorded from weatherbit.io.
+     */
+    public static final String WEATHERBIT = read("fixtures/weatherbit.json");
+    private static final long SECONDS_PER_HOUR = 3600;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Generates the specified number of distinct observations, alternating
+     * between the two providers. Temperatures and observation times vary
+     * between the observations.
+     *
+     * @param count The number of observations to generate.
+     * @return The generated observations, in JSON format.
+     */
+    public static List<String> generateJson(int count) {
+        List<String> observations = new ArrayList<>(count);
+        for (Document observation : generate(count)) {
+            observations.add(observation.toJson());
+        }
+        return observations;
+    }
+
+    /**
+     * Generates the specified number of distinct observations, alternating
+     * between the two providers. Temperatures and observation times vary
+     * between the observations.
+     *
+     * @param count The number of observations to generate.
+     * @return The generated observations, as raw BSON.
+     */
+    public static RawBsonDocument[] generateRaw(int count) {
+        DocumentCodec codec = new DocumentCodec();
+        RawBsonDocument[] observations = new RawBsonDocument[count];
+        List<Document> generated = generate(count);
+        for (int i = 0; i < count; i++) {
+            observations[i] = new RawBsonDocument(generated.get(i), codec);
+        }
+        return observations;
+    }
+
+    private static List<Document> generate(int count) {
+        Random random = new Random(SEED);
+        List<Document> observations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            double celsius = Math.round((random.nextGaussian() * 8 + 7) * 100) / 100.0;
+            long time = Document.parse(OPENWEATHERMAP).getInteger("dt") + i * SECONDS_PER_HOUR;
+            if (i % 2 == 0) {
+                Document observation = Document.parse(OPENWEATHERMAP);
+                observation.get("main", Document.class).put("temp", celsius + 273.15);
+                observation.put("dt", time);
+                observations.add(observation);
+            } else {
+                Document observation = Document.parse(WEATHERBIT);
+                Document data = observation.getList("data", Document.class).get(0);
+                data.put("temp", celsius);
+                data.put("ts", time);
+                observations.add(observation);
+            }
+        }
+        return observations;
+    }
+
+    private static String read(String resource) {
+        try (InputStream fixture = Fixtures.class.getClassLoader().getResourceAsStream(resource)) {
+            if (fixture == null) {
+                throw new IOException("Found no " + resource + " on the class path.");
+            }
+            return new String(fixture.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.weatherstat.benchmark.Fixtures;
+
+/**
+ * Measures extracting the temperature from every observation in a corpus, as
+ * done when all readings are read from the database. The corpus consists of
+ * raw BSON documents, as returned by the driver. Corpora larger than
+ * {@value #DISTINCT_DOCS} observations reuse the same distinct documents,
+ * since ten million documents would not fit in the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TempExtractionBenchmark {
+    private static final int DISTINCT_DOCS = 10_000;
+    @Param({"10000", "100000", "1000000", "10000000"})
+    private int corpusSize;
+    private RawBsonDocument[] observations;
+    private TemperatureExtractor extractor;
+    private DocumentCodec codec;
+
+    @Setup
+    public void setup() {
+        observations = Fixtures.generateRaw(Math.min(corpusSize, DISTINCT_DOCS));
+        extractor = new TemperatureExtractor();
+        codec = new DocumentCodec();
+    }
+
+    @Benchmark
+    public double decodeAndFlatten() {
+        double sum = 0;
+        for (int i = 0; i < corpusSize; i++) {
+            Double reading = extractor.extractByFlattening(observations[i % observations.length].decode(codec));
+            if (reading != null) {
+                sum += reading;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double stream() {
+        double sum = 0;
+        for (int i = 0; i < corpusSize; i++) {
+            Double reading = extractor.extract(observations[i % observations.length]);
+            if (reading != null) {
+                sum += reading;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.kth.iv1351.weatherstat.benchmark.Fixtures;
+
+/**
+ * Measures collecting readings and computing their average. The boxed variants
+ * are the computation originally performed by
+ * <code>Controller.getAverageTemp()</code>, on the <code>List&lt;Double&gt;</code>
+ * originally returned by <code>WeatherDAO.findAllTempReadings()</code>. The
+ * other variants collect the readings in a primitive {@link TemperatureSeries},
+ * or summarize them while they arrive, as <code>findAllTempReadings</code> does
+ * now. Run with <code>-prof gc</code> to see the allocation rate of each
+ * variant.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AverageBenchmark {
+    @Param({"10000", "1000000"})
+    private int noOfReadings;
+    private List<Double> boxedReadings;
+    private double[] readings;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(Fixtures.SEED);
+        boxedReadings = new ArrayList<>(noOfReadings);
+        readings = new double[noOfReadings];
+        for (int i = 0; i < noOfReadings; i++) {
+            readings[i] = random.nextGaussian() * 8 + 7;
+            boxedReadings.add(readings[i]);
+        }
+    }
+
+    @Benchmark
+    public double boxedList() {
+        double sumOfTemps = boxedReadings.stream().mapToDouble(Double::doubleValue).sum();
+        return sumOfTemps / boxedReadings.size();
+    }
+
+    @Benchmark
+    public double collectBoxedList() {
+        List<Double> collected = new ArrayList<>();
+        for (double reading : readings) {
+            collected.add(reading);
+        }
+        double sumOfTemps = collected.stream().mapToDouble(Double::doubleValue).sum();
+        return sumOfTemps / collected.size();
+    }
+
+    @Benchmark
+    public double collectSeries() {
+        TemperatureSeries collected = new TemperatureSeries();
+        for (double reading : readings) {
+            collected.accept(reading);
+        }
+        return collected.getStats().getAverage();
+    }
+
+    @Benchmark
+    public double temperatureStats() {
+        TemperatureStats stats = new TemperatureStats();
+        for (double reading : readings) {
+            stats.add(reading);
+        }
+        return stats.getAverage();
+    }
+}
@@ -24,29 +24,144 @@
 
 package se.kth.iv1351.weatherstat;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.kth.iv1351.weatherstat.controller.Controller;
+import se.kth.iv1351.weatherstat.util.MetricsServer;
+import se.kth.iv1351.weatherstat.view.BatchInterpreter;
 import se.kth.iv1351.weatherstat.view.BlockingInterpreter;
+import se.kth.iv1351.weatherstat.view.CommandServer;
+import se.kth.iv1351.weatherstat.view.NonBlockingInterpreter;
 
 /**
  * Starts the weather stats application. Reads the URL of the MongoDB database server hosting the weather database from the environment variable WEATHERDB_SERVER.
  */
 public class App {
     private static final Logger LOGGER = LoggerFactory.getLogger(App.class);
+    private static final String USAGE = "usage: [-c <command>]... [-f <file>|-] [--serve <port>]";
+    private static final String STANDARD_INPUT = "-";
+    private static final int MAX_PORT = 65535;
 
     /**
      * The environment variable WEATHERDB_SERVER must hold a url pointing to the MongoDB
-     * database server hosting the weather database.
+     * database server hosting the weather database. If the environment variable
+     * WEATHERSTAT_NON_BLOCKING is <code>true</code>, commands are executed in
+     * the background, see {@link NonBlockingInterpreter}.
+     * <p>
+     * If there are command line arguments, no commands are read interactively.
+     * Instead, the commands given with <code>-c &lt;command&gt;</code>, which may
+     * be given several times, are performed, followed by the commands in the
+     * file given with <code>-f &lt;file&gt;</code>, one per line, where
+     * <code>-</code> is standard input. The results are printed as JSON, see
+     * {@link BatchInterpreter}, and the process exits with the highest exit code
+     * of the performed commands. With <code>--serve &lt;port&gt;</code>,
+     * read-only commands are then served on the specified local port, see
+     * {@link CommandServer}, until the process is stopped.
      * 
-     * @param args There are no command line arguments.
+     * @param args Commands to perform non-interactively, as described above.
      */
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(runNonInteractive(args));
+        }
         try {
-        new BlockingInterpreter(new Controller()).handleCmds();
+            startMetricsServer();
+            Controller ctrl = new Controller();
+            if (Boolean.parseBoolean(System.getenv("WEATHERSTAT_NON_BLOCKING"))) {
+                new NonBlockingInterpreter(ctrl).handleCmds();
+            } else {
+                new BlockingInterpreter(ctrl).handleCmds();
+            }
         } catch (Exception exc) {
             LOGGER.error("Could not start application", exc);
         }
     }
+
+    private static int runNonInteractive(String[] args) {
+        List<String> commands = new ArrayList<>();
+        String commandFile = null;
+        Integer serverPort = null;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                System.err.println(USAGE);
+                return BatchInterpreter.EXIT_ILLEGAL_COMMAND;
+            }
+            switch (args[i]) {
+                case "-c":
+                    commands.add(args[i + 1]);
+                    break;
+                case "-f":
+                    commandFile = args[i + 1];
+                    break;
+                case "--serve":
+                    try {
+                        serverPort = Integer.valueOf(args[i + 1]);
+                    } catch (NumberFormatException notAPort) {
+                        serverPort = -1;
+                    }
+                    if (serverPort < 0 || serverPort > MAX_PORT) {
+                        System.err.println(USAGE);
+                        return BatchInterpreter.EXIT_ILLEGAL_COMMAND;
+                    }
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    return BatchInterpreter.EXIT_ILLEGAL_COMMAND;
+            }
+        }
+
+        Controller ctrl;
+        try {
+            startMetricsServer();
+            ctrl = new Controller();
+        } catch (Exception exc) {
+            LOGGER.error("Could not start application", exc);
+            return BatchInterpreter.EXIT_NOT_STARTED;
+        }
+        try {
+            BatchInterpreter interpreter = new BatchInterpreter(ctrl);
+            int exitCode = interpreter.run(commands, System.out);
+            if (commandFile != null) {
+                try (BufferedReader fileCommands = STANDARD_INPUT.equals(commandFile)
+                        ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : Files.newBufferedReader(Paths.get(commandFile))) {
+                    exitCode = Math.max(exitCode, interpreter.run(fileCommands, System.out));
+                }
+            }
+            if (serverPort != null) {
+                CommandServer server = new CommandServer(ctrl, serverPort);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    server.stop();
+                    ctrl.shutdown();
+                }));
+                server.serve();
+            }
+            return exitCode;
+        } catch (IOException ioe) {
+            LOGGER.error("Could not read or serve commands", ioe);
+            return BatchInterpreter.EXIT_COMMAND_FAILED;
+        } finally {
+            ctrl.shutdown();
+        }
+    }
+
+    private static void startMetricsServer() throws IOException {
+        String metricsPort = System.getenv("WEATHERSTAT_METRICS_PORT");
+        if (metricsPort == null) {
+            return;
+        }
+        MetricsServer server = new MetricsServer(Integer.parseInt(metricsPort));
+        server.start();
+        LOGGER.info("Serving metrics on port " + metricsPort);
+    }
 }
@@ -23,83 +23,582 @@
 
 package se.kth.iv1351.weatherstat.controller;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
+import se.kth.iv1351.weatherstat.integration.LeaseStore;
+import se.kth.iv1351.weatherstat.integration.ObservationSpool;
+import se.kth.iv1351.weatherstat.integration.ProviderConfig;
 import se.kth.iv1351.weatherstat.integration.WeatherApiClient;
-import se.kth.iv1351.weatherstat.integration.WeatherDAO;
+import se.kth.iv1351.weatherstat.integration.WeatherSource;
+import se.kth.iv1351.weatherstat.integration.WeatherStore;
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.LoadResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
 
 /**
  * This is the application's only controller, all calls to the model pass here.
  * The controller is also responsible for calling the DAO. Typically, the
  * controller first calls the DAO to retrieve data (if needed), then operates on
  * the data, and finally tells the DAO to store the updated data (if any).
+ * <p>
+ * Statistics are cached, see {@link StatsCache}. Each time observations are
+ * stored, the cached statistics that were changed are removed from the cache.
+ * <p>
+ * Loaded observations are stored through an {@link IngestPipeline}, which
+ * means they are spooled to a local file, instead of being lost, if the
+ * database is unavailable. The pipeline is started by the first load, which
+ * is also when observations spooled by an earlier run are replayed.
+ * <p>
+ * Live statistics over the last hour, day and week are kept in memory, and
+ * updated each time readings are stored by this or another process, see
+ * {@link LiveStats}. Readings are only watched after the first call to
+ * {@link #watchLiveStats(Consumer)}.
+ * <p>
+ * Long-running operations also have asynchronous variants, which return
+ * immediately and perform the operation in a separate thread. Cancelling the
+ * returned future interrupts the operation.
  */
 public class Controller {
-    private WeatherDAO weatherDb;
+    private static final int BACKFILL_CHUNK_SIZE = 10_000;
+    private static final String DEFAULT_EXPORT_DIR = "weatherstat-export";
+    private static final String STATS_STATISTIC = "stats";
+    private static final String PERCENTILE_STATISTIC_PREFIX = "p";
+    private static final String SKETCH_STATISTIC = "sketch";
+    private static final String DISTINCT_CITIES_STATISTIC = "cities";
+    private static final Histogram LOAD_LATENCY = Metrics.histogram("weatherstat_load_all_micros");
+    private WeatherStore weatherDb;
     private WeatherApiClient weatherApi;
-    private ScheduledThreadPoolExecutor hourlyLoader;
+    private LoadScheduler hourlyLoader;
+    private LoadCoordinator loadCoordinator;
+    private final StatsCache statsCache = new StatsCache();
+    private IngestPipeline ingestPipeline;
+    private final LiveStats liveStats = new LiveStats();
+    private boolean watchingReadings = false;
+    private boolean shutDown = false;
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool(task -> {
+        Thread asyncThread = new Thread(task, "controller-async");
+        asyncThread.setDaemon(true);
+        return asyncThread;
+    });
 
     /**
-     * Creates a new instance, and retrieves a connection to the database.
-     * 
-     * @throws WeatherDBException If unable to connect to the database.
+     * Creates a new instance, using the store selected by the environment
+     * variable WEATHERSTAT_STORE, see {@link WeatherStore#fromEnvironment()}.
+     * Neither the store, the weather API client nor the ingest pipeline is
+     * created here, they are created by the first call that needs them, which
+     * means this constructor returns quickly, and does not fail if the database
+     * is unavailable.
      */
     public Controller() {
-        weatherDb = new WeatherDAO();
-        weatherApi = new WeatherApiClient();
+        weatherDb = WeatherStore.lazilyFromEnvironment();
     }
 
     /**
      * Loads the current observation from all weather APIs. This method is blocking
      * and will not return until all APIs have responded, and all data is stored in
-     * the database. Only responses with HTTP status codes indicating success
-     * (starting with 2 or 3) are stored in the db, responses with other status
-     * codes are silently ignored.
+     * the database, or spooled if the database is unavailable. Only responses
+     * with HTTP status codes indicating success (starting with 2 or 3) are
+     * stored in the db, failed requests are retried, and are then ignored.
+     *
+     * @return The sources that failed, and the result of storing the loaded
+     *         observations.
      */
-    public void loadFromAllApis() {
-        List<String> loadedData = weatherApi.loadFromAllApis();
-        weatherDb.storeObservations(loadedData);
+    public LoadResult loadFromAllApis() {
+        long startNanos = System.nanoTime();
+        IngestPipeline pipeline = ingestPipeline();
+        WeatherApiClient client = weatherApi();
+        List<String> failedSources = new ArrayList<>();
+        List<String> loadedData = client.loadFromAllApis(source -> failedSources.add(source.toString()));
+        IngestResult ingestResult = loadedData.isEmpty() ? new IngestResult() : pipeline.store(loadedData);
+        LOAD_LATENCY.recordMicrosSince(startNanos);
+        return new LoadResult(client.getSourceCount(), failedSources, loadedData.size(), ingestResult);
     }
 
     /**
-     * Starts a separate thread that will call {@link #loadFromAllApis()} once per
-     * hour, starting after one hour. The hourly loading continues until
+     * Stores all observations in the specified file. The file must contain one
+     * observation per line, in the JSON format returned by the weather APIs.
+     * Empty lines are ignored. The file is read and stored in chunks, it is never
+     * read into memory in its entirety. If the calling thread is interrupted,
+     * backfill stops, and the chunks that are already stored stay stored.
+     * 
+     * @param fileName The name of the file with the observations to store.
+     * @return The number of stored observations, and a description of each line
+     *         that could not be stored. The position of a failure is its line
+     *         number in the file.
+     * @throws IOException If unable to read the file.
+     */
+    public IngestResult backfill(String fileName) throws IOException {
+        IngestResult result = new IngestResult();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName))) {
+            List<String> chunk = new ArrayList<>(BACKFILL_CHUNK_SIZE);
+            List<Integer> lineNumbers = new ArrayList<>(BACKFILL_CHUNK_SIZE);
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Backfill was interrupted at line " + lineNumber + ".");
+                }
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                chunk.add(line);
+                lineNumbers.add(lineNumber);
+                if (chunk.size() == BACKFILL_CHUNK_SIZE) {
+                    storeBackfillChunk(chunk, lineNumbers, result);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                storeBackfillChunk(chunk, lineNumbers, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts separate threads that will load observations from all configured
+     * sources, each source once per polling interval of its provider (once per
+     * hour in the default configuration). The requests to each provider are
+     * spread evenly over the polling interval, and the provider's rate limit is
+     * respected. Stored observations are also rolled up periodically, see
+     * {@link #rollUpObservations()}. The loading continues until
      * {@link #stopHourlyLoading()} is called. A call to this method when hourly
      * loading is already running has no effect.
+     * <p>
+     * If the environment variable WEATHERSTAT_COORDINATION names a
+     * {@link LeaseStore}, the sources and the roll-ups are divided between all
+     * processes loading with the same configuration, see
+     * {@link LoadCoordinator}, instead of each process loading from all
+     * sources.
      */
-    public void startHourlyLoading() {
+    public synchronized void startHourlyLoading() {
         if (hourlyLoader != null) {
             return;
         }
 
-        int noOfIdleThreads = 0;
-        int initialDelay = 1;
-        int interval = 1;
-        hourlyLoader = new ScheduledThreadPoolExecutor(noOfIdleThreads);
-        hourlyLoader.scheduleAtFixedRate(() -> loadFromAllApis(),
-                                         initialDelay, interval, TimeUnit.HOURS);
+        List<ProviderConfig> providers = weatherApi().getProviders();
+        LeaseStore leaseStore = LeaseStore.fromEnvironment();
+        if (leaseStore != null) {
+            loadCoordinator = new LoadCoordinator(leaseStore, providers);
+            loadCoordinator.start();
+        }
+        hourlyLoader = new LoadScheduler(providers, this::loadFromSource, this::rollUpObservations,
+                                         loadCoordinator);
+        hourlyLoader.start();
     }
 
     /**
      * Stops the hourly loading. A call to this method when hourly loading is not
      * running has no effect.
      */
-    public void stopHourlyLoading() {
+    public synchronized void stopHourlyLoading() {
         if (hourlyLoader == null) {
             return;
         }
-        hourlyLoader.shutdown();
+        hourlyLoader.stop();
         hourlyLoader = null;
+        if (loadCoordinator != null) {
+            loadCoordinator.stop();
+            loadCoordinator = null;
+        }
     }
 
     /**
+     * Compacts the observations stored since the last roll-up into hourly, daily
+     * and monthly rollups, which are used by statistics queries over long time
+     * ranges. Rolling up does not change any statistics, and therefore leaves
+     * the cache as it is.
+     *
+     * @return The number of compacted observations.
+     */
+    public long rollUpObservations() {
+        return weatherDb.rollUpObservations();
+    }
+
+    /**
+     * Stops hourly loading, and stores all loaded observations that are not yet
+     * stored. Observations that can not be stored are spooled, and are stored
+     * the next time the application loads observations. This method blocks until all
+     * observations are stored or spooled. Only the first call has any effect.
+     */
+    public synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        stopHourlyLoading();
+        weatherDb.stopWatching();
+        asyncExecutor.shutdownNow();
+        if (ingestPipeline != null) {
+            ingestPipeline.stop();
+        }
+    }
+
+    /**
+     * Subscribes to the live statistics over the temperature readings observed
+     * during the last hour, day and week. The first call starts watching stored
+     * readings, the readings already stored in the last week are then passed to
+     * the live statistics, possibly after this method has returned, and the
+     * statistics are thereafter updated as readings are stored.
+     *
+     * @param subscriber Is passed the updated statistics each time readings are
+     *                   stored, in a thread of the store. Must not block.
+     * @return The current statistics, ordered from the shortest to the longest
+     *         window.
+     */
+    public synchronized Map<Duration, TemperatureStats> watchLiveStats(
+            Consumer<Map<Duration, TemperatureStats>> subscriber) {
+        if (!watchingReadings) {
+            weatherDb.watchReadings(Instant.now().minus(liveStats.getLongestWindow()), liveStats);
+            watchingReadings = true;
+        }
+        liveStats.subscribe(subscriber);
+        return liveStats.snapshot();
+    }
+
+    /**
+     * Stops passing live statistics to the specified subscriber. The live
+     * statistics are still updated, so that a new subscriber does not have to
+     * wait for stored readings to be read again.
+     *
+     * @param subscriber The subscriber to remove. Has no effect if it is not
+     *                   subscribed.
+     */
+    public void unwatchLiveStats(Consumer<Map<Duration, TemperatureStats>> subscriber) {
+        liveStats.unsubscribe(subscriber);
+    }
+
+    /**
+     * The average is read from the running statistics, which are updated each
+     * time observations are stored. No observations are read.
+     * 
      * @return The average of all stored temperature observations.
      */
     public double getAverageTemp() {
-        List<Double> tempReadings = weatherDb.findAllTempReadings();
-        double sumOfTemps = tempReadings.stream().mapToDouble(Double::doubleValue).sum();
-        return sumOfTemps / tempReadings.size();
+        return getTempStats().getAverage();
+    }
+
+    /**
+     * Returns statistics over all stored temperature observations. The
+     * statistics are read from the running statistics, no observations are read.
+     * The returned object may be shared with other callers, and must not be
+     * changed.
+     * 
+     * @return Statistics over all stored temperature observations.
+     */
+    public TemperatureStats getTempStats() {
+        return statsCache.get(null, STATS_STATISTIC, weatherDb::findRunningTempStats);
+    }
+
+    /**
+     * Returns statistics over the temperature observations selected by the
+     * specified query. The returned object may be shared with other callers, and
+     * must not be changed.
+     * 
+     * @param query Selects the observations to include.
+     * @return Statistics over the selected temperature observations.
+     */
+    public TemperatureStats getTempStats(TemperatureQuery query) {
+        return statsCache.get(query, STATS_STATISTIC, () -> weatherDb.findTempStats(query));
+    }
+
+    /**
+     * Returns the specified percentile of the temperature observations selected
+     * by the specified query.
+     * 
+     * @param query      Selects the observations to include.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The specified percentile, or <code>NaN</code> if no observations
+     *         were selected.
+     */
+    public double getTempPercentile(TemperatureQuery query, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100, was " + percentile);
+        }
+        return statsCache.get(query, PERCENTILE_STATISTIC_PREFIX + percentile,
+                              () -> weatherDb.findTempPercentile(query, percentile));
+    }
+
+    /**
+     * Estimates the specified percentile of the temperature observations
+     * selected by the specified query from a sketch of those observations, see
+     * {@link TemperatureSketch}. The estimate is within
+     * {@value TemperatureSketch#MAX_ERROR} degrees of the exact percentile,
+     * and memory use does not depend on the number of observations. The sketch
+     * is cached, which means estimating other percentiles of the same
+     * observations does not read them again.
+     *
+     * @param query      Selects the observations to include, or
+     *                   <code>null</code> to include all observations.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The estimated percentile, or <code>NaN</code> if no observations
+     *         were selected.
+     */
+    public double estimateTempPercentile(TemperatureQuery query, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("The percentile must be between 0 and 100, was " + percentile);
+        }
+        TemperatureSketch sketch = statsCache.get(query, SKETCH_STATISTIC,
+                () -> query == null ? weatherDb.findTempSketch() : weatherDb.findTempSketch(query));
+        return sketch.getPercentile(percentile);
+    }
+
+    /**
+     * Estimates the number of distinct cities among the temperature
+     * observations selected by the specified query, see
+     * {@link WeatherStore#countDistinctCities(TemperatureQuery)}.
+     *
+     * @param query Selects the observations to include, or <code>null</code> to
+     *              include all observations.
+     * @return The estimated number of cities.
+     */
+    public long estimateDistinctCities(TemperatureQuery query) {
+        return statsCache.get(query, DISTINCT_CITIES_STATISTIC,
+                () -> query == null ? weatherDb.countDistinctCities() : weatherDb.countDistinctCities(query));
+    }
+
+    /**
+     * Returns statistics over all temperature readings in the raw observations.
+     * The raw observations are read in parallel, see
+     * {@link WeatherStore#scanArchiveTempStats()}. This is a slow operation, that
+     * reads all observations.
+     *
+     * @return Statistics over all archived temperature readings.
+     */
+    public TemperatureStats scanArchiveTempStats() {
+        return weatherDb.scanArchiveTempStats();
+    }
+
+    /**
+     * Exports all observations stored since the last export to the same
+     * directory to compressed, columnar files, partitioned by provider and day,
+     * see {@link WeatherStore#exportObservations(java.nio.file.Path)}.
+     *
+     * @param directory The export directory, or <code>null</code> for the
+     *                  directory in the environment variable
+     *                  WEATHERSTAT_EXPORT_DIR (default
+     *                  {@value #DEFAULT_EXPORT_DIR}).
+     * @return The number of exported observations and written files.
+     */
+    public ExportResult exportObservations(String directory) {
+        if (directory == null) {
+            String configuredDirectory = System.getenv("WEATHERSTAT_EXPORT_DIR");
+            directory = configuredDirectory == null ? DEFAULT_EXPORT_DIR : configuredDirectory;
+        }
+        return weatherDb.exportObservations(Paths.get(directory));
+    }
+
+    /**
+     * Discards the running statistics, and recomputes them from all stored
+     * observations. This is a slow operation, that reads all observations.
+     */
+    public void rebuildRunningStats() {
+        weatherDb.rebuildRunningStats();
+        statsCache.clear();
+    }
+
+    /**
+     * Compares the running statistics with statistics computed by scanning all
+     * stored observations.
+     * 
+     * @return The result of the comparison.
+     */
+    public StatsConsistencyReport checkRunningStats() {
+        return weatherDb.checkRunningStats();
+    }
+
+    /**
+     * Same as {@link #loadFromAllApis()}, but performed in a separate thread.
+     *
+     * @return Completed with the result of the load, when all observations are
+     *         stored.
+     */
+    public CompletableFuture<LoadResult> loadFromAllApisAsync() {
+        return runAsync(this::loadFromAllApis);
+    }
+
+    /**
+     * Same as {@link #backfill(String)}, but performed in a separate thread.
+     *
+     * @param fileName The name of the file with the observations to store.
+     * @return Completed with the result of the backfill.
+     */
+    public CompletableFuture<IngestResult> backfillAsync(String fileName) {
+        return runAsync(() -> backfill(fileName));
+    }
+
+    /**
+     * Same as {@link #getTempStats(TemperatureQuery)}, but performed in a
+     * separate thread.
+     *
+     * @param query Selects the observations to include, or <code>null</code> to
+     *              include all observations.
+     * @return Completed with statistics over the selected observations.
+     */
+    public CompletableFuture<TemperatureStats> getTempStatsAsync(TemperatureQuery query) {
+        return runAsync(() -> query == null ? getTempStats() : getTempStats(query));
+    }
+
+    /**
+     * Same as {@link #getTempPercentile(TemperatureQuery, double)}, but performed
+     * in a separate thread.
+     *
+     * @param query      Selects the observations to include.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return Completed with the specified percentile.
+     */
+    public CompletableFuture<Double> getTempPercentileAsync(TemperatureQuery query, double percentile) {
+        return runAsync(() -> getTempPercentile(query, percentile));
+    }
+
+    /**
+     * Same as {@link #estimateTempPercentile(TemperatureQuery, double)}, but
+     * performed in a separate thread.
+     *
+     * @param query      Selects the observations to include, or
+     *                   <code>null</code> to include all observations.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return Completed with the estimated percentile.
+     */
+    public CompletableFuture<Double> estimateTempPercentileAsync(TemperatureQuery query, double percentile) {
+        return runAsync(() -> estimateTempPercentile(query, percentile));
+    }
+
+    /**
+     * Same as {@link #estimateDistinctCities(TemperatureQuery)}, but performed in
+     * a separate thread.
+     *
+     * @param query Selects the observations to include, or <code>null</code> to
+     *              include all observations.
+     * @return Completed with the estimated number of cities.
+     */
+    public CompletableFuture<Long> estimateDistinctCitiesAsync(TemperatureQuery query) {
+        return runAsync(() -> estimateDistinctCities(query));
+    }
+
+    /**
+     * Same as {@link #scanArchiveTempStats()}, but performed in a separate
+     * thread.
+     *
+     * @return Completed with statistics over all archived temperature readings.
+     */
+    public CompletableFuture<TemperatureStats> scanArchiveTempStatsAsync() {
+        return runAsync(this::scanArchiveTempStats);
+    }
+
+    /**
+     * Same as {@link #exportObservations(String)}, but performed in a separate
+     * thread. Cancelling the export removes the files it has written.
+     *
+     * @param directory The export directory, or <code>null</code> for the
+     *                  configured directory.
+     * @return Completed with the number of exported observations and written
+     *         files.
+     */
+    public CompletableFuture<ExportResult> exportObservationsAsync(String directory) {
+        return runAsync(() -> exportObservations(directory));
+    }
+
+    /**
+     * Same as {@link #rebuildRunningStats()}, but performed in a separate thread.
+     *
+     * @return Completed when the running statistics are rebuilt.
+     */
+    public CompletableFuture<Void> rebuildRunningStatsAsync() {
+        return runAsync(() -> {
+            rebuildRunningStats();
+            return null;
+        });
+    }
+
+    /**
+     * Same as {@link #checkRunningStats()}, but performed in a separate thread.
+     *
+     * @return Completed with the result of the comparison.
+     */
+    public CompletableFuture<StatsConsistencyReport> checkRunningStatsAsync() {
+        return runAsync(this::checkRunningStats);
+    }
+
+    /**
+     * Performs the specified operation in a thread from the async executor.
+     * Cancelling the returned future interrupts that thread.
+     */
+    private <T> CompletableFuture<T> runAsync(Callable<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running = asyncExecutor.submit(() -> {
+            try {
+                result.complete(operation.call());
+            } catch (Throwable failure) {
+                result.completeExceptionally(failure);
+            }
+        });
+        result.whenComplete((value, failure) -> {
+            if (result.isCancelled()) {
+                running.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private void loadFromSource(WeatherSource source) {
+        String observation = weatherApi().load(source);
+        if (observation != null) {
+            ingestPipeline().submit(observation);
+        }
+    }
+
+    private void storeBackfillChunk(List<String> chunk, List<Integer> lineNumbers, IngestResult result) {
+        IngestResult chunkResult = weatherDb.storeObservations(chunk);
+        statsCache.invalidate(chunkResult);
+        result.merge(chunkResult, index -> lineNumbers.get((int) index));
+        chunk.clear();
+        lineNumbers.clear();
+    }
+
+    /**
+     * Creates the weather API client on first use, since creating it builds the
+     * HTTP client and reads the source configuration, which would otherwise
+     * delay the first prompt also for sessions that never call an API.
+     */
+    private synchronized WeatherApiClient weatherApi() {
+        if (weatherApi == null) {
+            weatherApi = new WeatherApiClient();
+        }
+        return weatherApi;
+    }
+
+    /**
+     * Creates and starts the ingest pipeline on first use, since its writer
+     * thread starts by replaying the spool, which opens the store, also in
+     * sessions that never load.
+     */
+    private synchronized IngestPipeline ingestPipeline() {
+        if (ingestPipeline == null) {
+            ingestPipeline = new IngestPipeline(weatherDb, new ObservationSpool(), statsCache::invalidate);
+            ingestPipeline.start();
+        }
+        return ingestPipeline;
     }
 }
@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.integration.ObservationSpool;
+import se.kth.iv1351.weatherstat.integration.WeatherStore;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Stores loaded observations in the database. Observations are submitted to a
+ * bounded queue, which is drained by a single writer thread that stores them
+ * in batches. Submitting never blocks, which means a slow database never
+ * delays loading. Observations that do not fit in the queue, and observations
+ * that can not be stored because the database is unavailable, are appended to
+ * a local {@link ObservationSpool}, and are stored when the database is
+ * available again. The spool is replayed when the pipeline is started, after
+ * each successful write, and when no observations have been submitted for
+ * {@value #REPLAY_INTERVAL_MS} milliseconds.
+ * <p>
+ * The queue capacity is read from the environment variable
+ * WEATHERSTAT_INGEST_QUEUE_CAPACITY (default {@value #DEFAULT_QUEUE_CAPACITY}),
+ * and the highest number of observations stored in one batch from
+ * WEATHERSTAT_INGEST_BATCH_SIZE (default {@value #DEFAULT_WRITE_BATCH_SIZE}).
+ */
+class IngestPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestPipeline.class);
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+    private static final long REPLAY_INTERVAL_MS = 60_000;
+    private static final long STOP_TIMEOUT_MS = 10_000;
+    /**
+     * Queued by {@link #stop()} to wake the writer thread. Compared by identity,
+     * so it is never mistaken for an observation.
+     */
+    private static final String STOP_SIGNAL = new String("stop");
+    private static final Counter SPOOLED = Metrics.counter("weatherstat_ingest_spooled_total");
+    private static final Counter REPLAYED = Metrics.counter("weatherstat_ingest_replayed_total");
+    private static final Counter WRITE_FAILURES = Metrics.counter("weatherstat_ingest_write_failures_total");
+    private final WeatherStore weatherDb;
+    private final ObservationSpool spool;
+    private final Consumer<IngestResult> storedListener;
+    private final BlockingQueue<String> queue;
+    private final int writeBatchSize;
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * Creates a new pipeline, that is not started.
+     *
+     * @param weatherDb      Stores the observations.
+     * @param spool          Holds observations that could not be stored.
+     * @param storedListener Called with the result of each successful write.
+     */
+    IngestPipeline(WeatherStore weatherDb, ObservationSpool spool, Consumer<IngestResult> storedListener) {
+        this.weatherDb = weatherDb;
+        this.spool = spool;
+        this.storedListener = storedListener;
+        String configuredCapacity = System.getenv("WEATHERSTAT_INGEST_QUEUE_CAPACITY");
+        queue = new ArrayBlockingQueue<>(configuredCapacity == null ? DEFAULT_QUEUE_CAPACITY
+                : Integer.parseInt(configuredCapacity));
+        String configuredBatchSize = System.getenv("WEATHERSTAT_INGEST_BATCH_SIZE");
+        writeBatchSize = configuredBatchSize == null ? DEFAULT_WRITE_BATCH_SIZE
+                : Integer.parseInt(configuredBatchSize);
+        Metrics.gauge("weatherstat_ingest_queued", queue::size);
+    }
+
+    /**
+     * Starts the writer thread. Observations left in the spool by an earlier run
+     * are replayed. The writer thread is a daemon thread, it does not keep the
+     * program running.
+     */
+    void start() {
+        running = true;
+        writer = new Thread(this::writeBatches, "ingest-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread. The batch being written is completed, and the
+     * writer then stores the observations that are still queued. This method
+     * waits at most {@value #STOP_TIMEOUT_MS} milliseconds for the writer thread
+     * to stop. Observations that are still queued after that are spooled.
+     */
+    void stop() {
+        running = false;
+        queue.offer(STOP_SIGNAL);
+        try {
+            writer.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            List<String> unwritten = new ArrayList<>();
+            queue.drainTo(unwritten);
+            unwritten.removeIf(observation -> observation == STOP_SIGNAL);
+            LOGGER.warn("The ingest writer did not stop within " + STOP_TIMEOUT_MS + " ms, spooling "
+                    + unwritten.size() + " queued observations.");
+            if (!unwritten.isEmpty()) {
+                spoolAll(unwritten);
+            }
+        }
+    }
+
+    /**
+     * Queues the specified observation for storing. This method does not block,
+     * if the queue is full the observation is spooled instead.
+     *
+     * @param observation The observation to store.
+     */
+    void submit(String observation) {
+        if (!queue.offer(observation)) {
+            LOGGER.warn("Ingest queue is full, spooling observation.");
+            spoolAll(Collections.singletonList(observation));
+        }
+    }
+
+    /**
+     * Stores the specified observations immediately, in the calling thread. If
+     * the database is unavailable, the observations are spooled.
+     *
+     * @param observations The observations to store.
+     * @return The result of storing, or <code>null</code> if the observations
+     *         were spooled.
+     */
+    IngestResult store(List<String> observations) {
+        try {
+            IngestResult result = weatherDb.storeObservations(observations);
+            storedListener.accept(result);
+            return result;
+        } catch (RuntimeException dbFailure) {
+            WRITE_FAILURES.increment();
+            LOGGER.warn("Could not store " + observations.size() + " observations, spooling them.", dbFailure);
+            spoolAll(observations);
+            return null;
+        }
+    }
+
+    private void writeBatches() {
+        replaySpool();
+        List<String> batch = new ArrayList<>(writeBatchSize);
+        while (running || !queue.isEmpty()) {
+            String first;
+            try {
+                first = queue.poll(REPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            if (first == null) {
+                replaySpool();
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, writeBatchSize - 1);
+            batch.removeIf(observation -> observation == STOP_SIGNAL);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            if (store(batch) != null) {
+                replaySpool();
+            }
+            batch.clear();
+        }
+    }
+
+    private void replaySpool() {
+        if (!spool.hasPending()) {
+            return;
+        }
+        try {
+            REPLAYED.add(spool.replay(chunk -> storedListener.accept(weatherDb.storeObservations(chunk)),
+                                      writeBatchSize));
+        } catch (RuntimeException dbFailure) {
+            LOGGER.warn("Could not replay spooled observations, will try again later.", dbFailure);
+        } catch (IOException ioe) {
+            LOGGER.error("Could not read spooled observations.", ioe);
+        }
+    }
+
+    private void spoolAll(List<String> observations) {
+        try {
+            spool.append(observations);
+            SPOOLED.add(observations.size());
+        } catch (IOException ioe) {
+            LOGGER.error("Could not spool " + observations.size() + " observations, they are lost.", ioe);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.controller;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.model.RollingTemperatureStats;
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * Live statistics over the temperature readings observed during the last hour,
+ * day and week. Readings are passed to this object as they are stored, see
+ * {@link se.kth.iv1351.weatherstat.integration.WeatherStore#watchReadings}, and
+ * the statistics are updated without reading any stored observations. After
+ * each update, all subscribers are passed a snapshot of the statistics. This
+ * class is thread safe.
+ */
+class LiveStats implements Consumer<List<TemperatureReading>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LiveStats.class);
+    private final List<RollingTemperatureStats> windows = List.of(
+            new RollingTemperatureStats(Duration.ofHours(1), 60),
+            new RollingTemperatureStats(Duration.ofDays(1), 96),
+            new RollingTemperatureStats(Duration.ofDays(7), 168));
+    private final List<Consumer<Map<Duration, TemperatureStats>>> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return The longest window, readings observed before this long ago are
+     *         not needed.
+     */
+    Duration getLongestWindow() {
+        return windows.get(windows.size() - 1).getWindow();
+    }
+
+    /**
+     * Adds the specified readings to the statistics, and passes a snapshot of
+     * the updated statistics to all subscribers.
+     *
+     * @param readings Newly stored readings.
+     */
+    @Override
+    public void accept(List<TemperatureReading> readings) {
+        Instant now = Instant.now();
+        for (RollingTemperatureStats window : windows) {
+            for (TemperatureReading reading : readings) {
+                window.add(reading.getObservedAt(), reading.getTemp(), now);
+            }
+        }
+        publish(snapshot());
+    }
+
+    /**
+     * @return The current statistics of each window, ordered from the shortest
+     *         to the longest window.
+     */
+    Map<Duration, TemperatureStats> snapshot() {
+        Instant now = Instant.now();
+        Map<Duration, TemperatureStats> snapshot = new LinkedHashMap<>();
+        for (RollingTemperatureStats window : windows) {
+            snapshot.put(window.getWindow(), window.getStats(now));
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /**
+     * @param subscriber Will be passed a snapshot each time the statistics are
+     *                   updated, in the thread updating them.
+     */
+    void subscribe(Consumer<Map<Duration, TemperatureStats>> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * @param subscriber Will no longer be passed snapshots. Has no effect if
+     *                   not subscribed.
+     */
+    void unsubscribe(Consumer<Map<Duration, TemperatureStats>> subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private void publish(Map<Duration, TemperatureStats> snapshot) {
+        for (Consumer<Map<Duration, TemperatureStats>> subscriber : subscribers) {
+            try {
+                subscriber.accept(snapshot);
+            } catch (RuntimeException e) {
+                LOGGER.error("Live statistics subscriber failed", e);
+            }
+        }
+    }
+}
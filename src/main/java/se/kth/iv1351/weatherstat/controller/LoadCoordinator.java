@@ -0,0 +1,275 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.controller;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.integration.LeaseStore;
+import se.kth.iv1351.weatherstat.integration.ProviderConfig;
+import se.kth.iv1351.weatherstat.integration.WeatherSource;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Divides the work of the {@link LoadScheduler} between all processes, called
+ * nodes, that load from the same providers into the same store, so that each
+ * source is polled by one node, instead of by every node. The sources of each
+ * provider are divided into WEATHERSTAT_LOAD_PARTITIONS (default
+ * {@value #DEFAULT_PARTITIONS_PER_PROVIDER}) partitions, by city. Each
+ * partition, and the roll-up task, is guarded by a lease in a
+ * {@link LeaseStore}, and a node only performs the work whose lease it holds.
+ * All nodes must use the same source configuration and number of partitions.
+ * <p>
+ * Every WEATHERSTAT_LEASE_TTL_SECONDS (default
+ * {@value #DEFAULT_LEASE_TTL_SECONDS}) / {@value #RENEWALS_PER_TTL} seconds,
+ * each node announces itself, reads which nodes are live, and assigns each
+ * lease to one of the live nodes by rendezvous hashing. The node then acquires
+ * or renews the leases assigned to it, and releases those it holds but are
+ * assigned to another node. Since all nodes compute the same assignment, the
+ * leases are spread evenly over the live nodes, and a node that joins or
+ * leaves only moves the leases assigned to or from itself. The leases of a
+ * node that stops are released at once, and those of a node that crashes are
+ * taken over when they expire.
+ * <p>
+ * A node stops using its leases when they may have expired, counted from
+ * the start of the last successful renewal, also if it can not reach the
+ * lease store. A source whose lease has moved is polled at the next time slot
+ * of the new owner, so at most one polling interval is missed.
+ */
+class LoadCoordinator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadCoordinator.class);
+    private static final String ROLLUP_LEASE = "rollup";
+    private static final long DEFAULT_LEASE_TTL_SECONDS = 15;
+    private static final int DEFAULT_PARTITIONS_PER_PROVIDER = 4;
+    private static final int RENEWALS_PER_TTL = 3;
+    private static final String LOAD_LEASE_PREFIX = "load-";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String CHANGE_LABEL = "change";
+    private static final String LEASES_CHANGED_METRIC = "weatherstat_leases_changed_total";
+    private static final Counter LEASES_ACQUIRED = Metrics.counter(LEASES_CHANGED_METRIC, CHANGE_LABEL, "acquired");
+    private static final Counter LEASES_RELEASED = Metrics.counter(LEASES_CHANGED_METRIC, CHANGE_LABEL, "released");
+    private static final Counter LEASES_LOST = Metrics.counter(LEASES_CHANGED_METRIC, CHANGE_LABEL, "lost");
+    private static final Counter RENEWAL_FAILURES = Metrics.counter("weatherstat_lease_renewal_failures_total");
+    private static final Histogram RENEWAL_LATENCY = Metrics.histogram("weatherstat_lease_renewal_micros");
+    private final LeaseStore leaseStore;
+    private final String nodeId;
+    private final Duration ttl;
+    private final int partitionsPerProvider;
+    private final Set<String> leases = new LinkedHashSet<>();
+    private volatile Set<String> heldLeases = Set.of();
+    private volatile long heldUntilNanos = System.nanoTime();
+    private volatile int liveNodeCount;
+    private ScheduledThreadPoolExecutor renewer;
+
+    /**
+     * Creates a new instance, that is not started, and holds no leases.
+     *
+     * @param leaseStore Keeps the leases, is closed when this object is
+     *                   stopped.
+     * @param providers  The providers whose sources shall be divided.
+     */
+    LoadCoordinator(LeaseStore leaseStore, List<ProviderConfig> providers) {
+        this.leaseStore = leaseStore;
+        String configuredNodeId = System.getenv("WEATHERSTAT_NODE_ID");
+        nodeId = configuredNodeId == null ? defaultNodeId() : configuredNodeId;
+        String configuredTtl = System.getenv("WEATHERSTAT_LEASE_TTL_SECONDS");
+        ttl = Duration.ofSeconds(configuredTtl == null ? DEFAULT_LEASE_TTL_SECONDS : Long.parseLong(configuredTtl));
+        String configuredPartitions = System.getenv("WEATHERSTAT_LOAD_PARTITIONS");
+        partitionsPerProvider = configuredPartitions == null ? DEFAULT_PARTITIONS_PER_PROVIDER
+                : Integer.parseInt(configuredPartitions);
+        for (ProviderConfig provider : providers) {
+            for (WeatherSource source : provider.getSources()) {
+                leases.add(leaseOf(source));
+            }
+        }
+        leases.add(ROLLUP_LEASE);
+        Metrics.gauge("weatherstat_leases_held", () -> holdsLeases() ? heldLeases.size() : 0);
+        Metrics.gauge("weatherstat_live_nodes", () -> liveNodeCount);
+    }
+
+    /**
+     * Acquires the leases assigned to this node, and then starts renewing them
+     * in a thread of its own. If the lease store can not be reached, this node
+     * holds no leases until a later renewal succeeds.
+     */
+    void start() {
+        LOGGER.info("Coordinating loads as node " + nodeId + ", " + leases.size() + " leases.");
+        renew();
+        renewer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread renewalThread = new Thread(task, "lease-renewal");
+            renewalThread.setDaemon(true);
+            return renewalThread;
+        });
+        long renewalIntervalMs = ttl.toMillis() / RENEWALS_PER_TTL;
+        renewer.scheduleWithFixedDelay(this::renew, renewalIntervalMs, renewalIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops renewing, and releases all leases held by this node, so that the
+     * other nodes take over its work at their next renewal.
+     */
+    void stop() {
+        renewer.shutdownNow();
+        try {
+            renewer.awaitTermination(ttl.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        heldLeases = Set.of();
+        leaseStore.leave(nodeId);
+    }
+
+    /**
+     * @param source A source of one of the coordinated providers.
+     * @return <code>true</code> if this node shall poll the specified source.
+     */
+    boolean isAssigned(WeatherSource source) {
+        return holds(leaseOf(source));
+    }
+
+    /**
+     * @return <code>true</code> if this node shall run the roll-up task.
+     */
+    boolean mayRollUp() {
+        return holds(ROLLUP_LEASE);
+    }
+
+    private boolean holds(String lease) {
+        return holdsLeases() && heldLeases.contains(lease);
+    }
+
+    private boolean holdsLeases() {
+        return System.nanoTime() - heldUntilNanos < 0;
+    }
+
+    /**
+     * Announces this node, and acquires, renews or releases each lease
+     * according to the current assignment. A lease that is released is removed
+     * from the held leases before it is released, so that no work is started
+     * for it after another node may have acquired it.
+     */
+    private void renew() {
+        long startNanos = System.nanoTime();
+        Set<String> held = new HashSet<>(heldLeases);
+        try {
+            leaseStore.announce(nodeId, ttl);
+            List<String> liveNodes = new ArrayList<>(leaseStore.findLiveNodes());
+            if (!liveNodes.contains(nodeId)) {
+                liveNodes.add(nodeId);
+            }
+            liveNodeCount = liveNodes.size();
+            for (String lease : leases) {
+                boolean wasHeld = held.contains(lease);
+                if (nodeId.equals(assignedNode(lease, liveNodes))) {
+                    if (leaseStore.tryAcquire(lease, nodeId, ttl)) {
+                        held.add(lease);
+                        if (!wasHeld) {
+                            LEASES_ACQUIRED.increment();
+                            LOGGER.info("Acquired lease " + lease + ".");
+                        }
+                    } else if (wasHeld) {
+                        held.remove(lease);
+                        heldLeases = Set.copyOf(held);
+                        LEASES_LOST.increment();
+                        LOGGER.warn("Lost lease " + lease + " to another node.");
+                    }
+                } else if (wasHeld) {
+                    held.remove(lease);
+                    heldLeases = Set.copyOf(held);
+                    leaseStore.release(lease, nodeId);
+                    LEASES_RELEASED.increment();
+                    LOGGER.info("Released lease " + lease + ", it is assigned to another node.");
+                }
+            }
+            heldLeases = Set.copyOf(held);
+            heldUntilNanos = startNanos + ttl.toNanos();
+        } catch (RuntimeException storeFailure) {
+            RENEWAL_FAILURES.increment();
+            LOGGER.warn("Could not renew leases, will try again.", storeFailure);
+        }
+        RENEWAL_LATENCY.recordMicrosSince(startNanos);
+    }
+
+    private String leaseOf(WeatherSource source) {
+        return LOAD_LEASE_PREFIX + source.getProviderName() + "-"
+                + Math.floorMod(hash(source.getCity()), partitionsPerProvider);
+    }
+
+    /**
+     * Returns the live node with the highest hash of node and lease, which is
+     * the same node on all nodes with the same view of which nodes are live.
+     */
+    private String assignedNode(String lease, List<String> liveNodes) {
+        String assigned = null;
+        long highestScore = Long.MIN_VALUE;
+        for (String node : liveNodes) {
+            long score = hash(node + "/" + lease);
+            if (assigned == null || score > highestScore || score == highestScore && node.compareTo(assigned) < 0) {
+                assigned = node;
+                highestScore = score;
+            }
+        }
+        return assigned;
+    }
+
+    private long hash(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException unknownHost) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+}
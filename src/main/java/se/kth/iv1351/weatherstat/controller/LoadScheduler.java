@@ -0,0 +1,184 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.integration.ProviderConfig;
+import se.kth.iv1351.weatherstat.integration.WeatherSource;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Polls all sources of all providers. The requests to a provider are spread
+ * evenly over the provider's polling interval, instead of being sent all at
+ * once. If the provider's rate limit does not allow all its cities to be polled
+ * within the polling interval, the interval is stretched until the rate limit
+ * is respected.
+ * <p>
+ * Each provider is polled by its own thread, which means a slow or failing
+ * provider never delays polling of the other providers. A load that fails with
+ * an exception is logged, and does not stop later loads.
+ * <p>
+ * The lag of each load, that is how long after the start of its time slot it
+ * actually started, is recorded in {@link Metrics}.
+ * <p>
+ * The scheduler also runs the roll-up task, in a thread of its own, when
+ * started and then every WEATHERSTAT_ROLLUP_INTERVAL_MINUTES (default
+ * {@value #DEFAULT_ROLLUP_INTERVAL_MINUTES}) minutes, counted from the end of
+ * the previous run. Zero disables the roll-up task.
+ * <p>
+ * If a {@link LoadCoordinator} is given, only the sources assigned to this
+ * process are polled, and the roll-up task is only run if it is assigned to
+ * this process. The time slots of the other sources are skipped, which means
+ * the work is divided between processes without changing the schedule.
+ */
+class LoadScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadScheduler.class);
+    private static final long MILLIS_PER_MINUTE = 60_000;
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private static final long DEFAULT_ROLLUP_INTERVAL_MINUTES = 60;
+    private static final Histogram SCHEDULER_LAG = Metrics.histogram("weatherstat_scheduler_lag_millis");
+    private static final Counter SKIPPED_LOADS = Metrics.counter("weatherstat_scheduler_skipped_loads_total");
+    private final List<ProviderConfig> providers;
+    private final Consumer<WeatherSource> loadTask;
+    private final Runnable rollupTask;
+    private final LoadCoordinator coordinator;
+    private final List<ScheduledThreadPoolExecutor> executors = new ArrayList<>();
+
+    /**
+     * Creates a new instance, that is not started.
+     * 
+     * @param providers  The providers to poll.
+     * @param loadTask   Called each time a source shall be polled.
+     * @param rollupTask  Called each time stored observations shall be rolled
+     *                    up.
+     * @param coordinator Tells which work is assigned to this process, or
+     *                    <code>null</code> if all work is.
+     */
+    LoadScheduler(List<ProviderConfig> providers, Consumer<WeatherSource> loadTask, Runnable rollupTask,
+                  LoadCoordinator coordinator) {
+        this.providers = providers;
+        this.loadTask = loadTask;
+        this.rollupTask = rollupTask;
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Starts polling. The first request to each provider is sent when the first
+     * of its time slots begins, not immediately.
+     */
+    void start() {
+        for (ProviderConfig provider : providers) {
+            schedule(provider);
+        }
+        scheduleRollup();
+    }
+
+    /**
+     * Stops polling. Loads that are in progress are completed.
+     */
+    void stop() {
+        for (ScheduledThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        executors.clear();
+    }
+
+    private void scheduleRollup() {
+        String configuredInterval = System.getenv("WEATHERSTAT_ROLLUP_INTERVAL_MINUTES");
+        long intervalMinutes = configuredInterval == null ? DEFAULT_ROLLUP_INTERVAL_MINUTES
+                : Long.parseLong(configuredInterval);
+        if (intervalMinutes <= 0) {
+            return;
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread rollupThread = new Thread(task, "rollup");
+            rollupThread.setDaemon(true);
+            return rollupThread;
+        });
+        executors.add(executor);
+        executor.scheduleWithFixedDelay(() -> {
+            if (coordinator != null && !coordinator.mayRollUp()) {
+                LOGGER.debug("Roll-up is assigned to another node, skipping it.");
+                return;
+            }
+            try {
+                rollupTask.run();
+            } catch (RuntimeException rollupFailure) {
+                LOGGER.error("Could not roll up observations.", rollupFailure);
+            }
+        }, 0, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    private void schedule(ProviderConfig provider) {
+        List<WeatherSource> sources = provider.getSources();
+        if (sources.isEmpty()) {
+            return;
+        }
+        long intervalMs = provider.getPollingInterval().toMillis();
+        long minSpacingMs = MILLIS_PER_MINUTE / provider.getMaxRequestsPerMinute();
+        long spacingMs = Math.max(intervalMs / sources.size(), minSpacingMs);
+        long effectiveIntervalMs = spacingMs * sources.size();
+        if (effectiveIntervalMs > intervalMs) {
+            LOGGER.warn("The rate limit of {} does not allow polling {} cities every {} minutes, polling every {} "
+                    + "minutes instead.", provider.getName(), sources.size(),
+                    provider.getPollingInterval().toMinutes(), effectiveIntervalMs / MILLIS_PER_MINUTE);
+        }
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread loadingThread = new Thread(task, "load-" + provider.getName());
+            loadingThread.setDaemon(true);
+            return loadingThread;
+        });
+        executors.add(executor);
+        for (int i = 0; i < sources.size(); i++) {
+            WeatherSource source = sources.get(i);
+            long initialDelayMs = spacingMs * (i + 1);
+            long firstSlotNanos = System.nanoTime() + initialDelayMs * NANOS_PER_MILLI;
+            long intervalNanos = effectiveIntervalMs * NANOS_PER_MILLI;
+            long[] completedRuns = new long[1];
+            executor.scheduleAtFixedRate(() -> {
+                long slotNanos = firstSlotNanos + completedRuns[0]++ * intervalNanos;
+                if (coordinator != null && !coordinator.isAssigned(source)) {
+                    SKIPPED_LOADS.increment();
+                    return;
+                }
+                SCHEDULER_LAG.record(Math.max(0, System.nanoTime() - slotNanos) / NANOS_PER_MILLI);
+                try {
+                    loadTask.accept(source);
+                } catch (RuntimeException loadFailure) {
+                    LOGGER.error("Could not load observation from " + source + ".", loadFailure);
+                }
+            }, initialDelayMs, effectiveIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
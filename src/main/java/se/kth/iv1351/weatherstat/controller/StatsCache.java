@@ -0,0 +1,201 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.controller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Caches results of statistics queries. A result is identified by the query
+ * that selected the observations and by the statistic, and is removed from the
+ * cache when observations are stored that would change it, see
+ * {@link #invalidate(IngestResult)}. Results are also removed when they are
+ * older than the number of seconds in the environment variable
+ * WEATHERSTAT_CACHE_MAX_AGE_SECONDS (default {@value #DEFAULT_MAX_AGE_SECONDS}),
+ * which limits how long changes made by other processes may go unnoticed. At
+ * most WEATHERSTAT_CACHE_MAX_ENTRIES (default {@value #DEFAULT_MAX_ENTRIES})
+ * results are kept, the least recently used result is removed when the cache is
+ * full. A maximum of zero entries disables the cache. The number of hits and
+ * misses is recorded in {@link Metrics}. This class is thread safe.
+ */
+class StatsCache {
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final long DEFAULT_MAX_AGE_SECONDS = 600;
+    private static final long NANOS_PER_SECOND = 1_000_000_000;
+    private static final Counter HITS = Metrics.counter("weatherstat_stats_cache_requests_total", "outcome", "hit");
+    private static final Counter MISSES = Metrics.counter("weatherstat_stats_cache_requests_total", "outcome",
+                                                          "miss");
+    private final int maxEntries;
+    private final long maxAgeNanos;
+    private final Map<Key, CachedResult> entries;
+    private long generation;
+
+    /**
+     * Creates a new, empty, cache and reads its configuration.
+     */
+    StatsCache() {
+        String configuredMaxEntries = System.getenv("WEATHERSTAT_CACHE_MAX_ENTRIES");
+        maxEntries = configuredMaxEntries == null ? DEFAULT_MAX_ENTRIES : Integer.parseInt(configuredMaxEntries);
+        String configuredMaxAge = System.getenv("WEATHERSTAT_CACHE_MAX_AGE_SECONDS");
+        long maxAgeSeconds = configuredMaxAge == null ? DEFAULT_MAX_AGE_SECONDS : Long.parseLong(configuredMaxAge);
+        maxAgeNanos = maxAgeSeconds * NANOS_PER_SECOND;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Metrics.gauge("weatherstat_stats_cache_entries", this::size);
+    }
+
+    /**
+     * Returns the cached result of the specified statistic over the observations
+     * selected by the specified query. If there is no such result, it is
+     * computed by the specified function, and added to the cache. The function
+     * is not called while holding the lock of the cache, which means concurrent
+     * lookups are not blocked by a slow query. A result computed while
+     * observations were stored is returned, but not cached.
+     *
+     * @param <T>       The type of the result.
+     * @param query     Selects the observations, or <code>null</code> if all
+     *                  observations are selected.
+     * @param statistic Identifies the statistic, for example
+     *                  <code>"stats"</code> or <code>"p95"</code>.
+     * @param compute   Computes the result if it is not cached.
+     * @return The result of the specified statistic.
+     */
+    <T> T get(TemperatureQuery query, String statistic, Supplier<T> compute) {
+        Key key = new Key(query, statistic);
+        long generationBeforeCompute;
+        synchronized (this) {
+            CachedResult cached = entries.get(key);
+            if (cached != null && System.nanoTime() - cached.createdNanos <= maxAgeNanos) {
+                HITS.increment();
+                @SuppressWarnings("unchecked")
+                T result = (T) cached.result;
+                return result;
+            }
+            generationBeforeCompute = generation;
+        }
+        MISSES.increment();
+        T result = compute.get();
+        synchronized (this) {
+            if (generation == generationBeforeCompute && maxEntries > 0) {
+                entries.put(key, new CachedResult(result, System.nanoTime()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes all cached results that may have been changed by the stored
+     * observations described by the specified result. A cached result is
+     * removed if its query selects the provider and city of a stored temperature
+     * reading, and if its time range overlaps the time range of the readings
+     * stored for that provider and city. Results over all observations are
+     * removed if anything was stored.
+     *
+     * @param stored Describes the stored observations.
+     */
+    synchronized void invalidate(IngestResult stored) {
+        if (stored.getStoredRanges().isEmpty()) {
+            return;
+        }
+        generation++;
+        Iterator<Key> cachedKeys = entries.keySet().iterator();
+        while (cachedKeys.hasNext()) {
+            TemperatureQuery query = cachedKeys.next().query;
+            for (IngestResult.StoredRange range : stored.getStoredRanges()) {
+                if (query == null || selects(query, range)) {
+                    cachedKeys.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean selects(TemperatureQuery query, IngestResult.StoredRange range) {
+        if (query.getProvider() != null && !query.getProvider().equals(range.getProvider())) {
+            return false;
+        }
+        if (query.getCity() != null && !query.getCity().equals(range.getCity())) {
+            return false;
+        }
+        return range.getEarliest().isBefore(query.getTo()) && !range.getLatest().isBefore(query.getFrom());
+    }
+
+    private static class Key {
+        private final TemperatureQuery query;
+        private final String statistic;
+
+        private Key(TemperatureQuery query, String statistic) {
+            this.query = query;
+            this.statistic = statistic;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key otherKey = (Key) other;
+            return Objects.equals(query, otherKey.query) && statistic.equals(otherKey.statistic);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, statistic);
+        }
+    }
+
+    private static class CachedResult {
+        private final Object result;
+        private final long createdNanos;
+
+        private CachedResult(Object result, long createdNanos) {
+            this.result = result;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
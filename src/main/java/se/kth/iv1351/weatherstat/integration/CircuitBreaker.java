@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+/**
+ * Stops calling a weather API that keeps failing. After a number of
+ * consecutive failures the breaker opens, and no requests are allowed until a
+ * cool-down period has passed. Then one trial request is allowed. If it
+ * succeeds the breaker closes, otherwise it opens again. This class is thread
+ * safe.
+ */
+class CircuitBreaker {
+    /**
+     * The states of a circuit breaker.
+     */
+    enum State {
+        /**
+         * Requests are allowed.
+         */
+        CLOSED,
+        /**
+         * Requests are not allowed.
+         */
+        OPEN,
+        /**
+         * One trial request has been allowed, but has not yet completed.
+         */
+        HALF_OPEN
+    }
+
+    private static final long NANOS_PER_MILLI = 1_000_000;
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+
+    /**
+     * Creates a new, closed, breaker.
+     *
+     * @param failureThreshold The number of consecutive failures that opens the
+     *                         breaker.
+     * @param openMillis       The time the breaker stays open before a trial
+     *                         request is allowed, in milliseconds.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Tells if a request may be sent. If <code>true</code> is returned, the
+     * outcome of the request must be reported with {@link #recordSuccess()} or
+     * {@link #recordFailure()}.
+     *
+     * @return <code>true</code> if a request may be sent.
+     */
+    synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Reports that a request succeeded, which closes the breaker.
+     */
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Reports that a request failed. The breaker opens if the trial request
+     * failed, or if there were too many consecutive failures.
+     */
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The current state of the breaker.
+     */
+    synchronized State getState() {
+        return state;
+    }
+}
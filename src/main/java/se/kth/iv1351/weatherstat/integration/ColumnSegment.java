@@ -0,0 +1,357 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.DoubleConsumer;
+import java.util.zip.CRC32;
+
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * One fixed-size, memory-mapped segment file of a {@link LocalWeatherStore}
+ * series. Readings are only ever appended. The file holds a header, a column
+ * of observation times, a column of temperatures and a footer, in that order.
+ * <ul>
+ * <li>The header holds a magic number, the format version and the capacity,
+ * that is the number of readings that fit in the segment.</li>
+ * <li>The time column holds <code>capacity</code> observation times, in
+ * milliseconds since the epoch.</li>
+ * <li>The temperature column holds <code>capacity</code> temperatures, in
+ * degrees Celsius.</li>
+ * <li>The footer holds the number of readings, the earliest and latest
+ * observation time, the sum, sum of squares, min and max of the
+ * temperatures, and a CRC-32 checksum of those fields.</li>
+ * </ul>
+ * The footer is only written by {@link #force()}, after the appended readings
+ * have been forced to disk, and is then forced itself. Since a mapped file
+ * gives no guarantee in which order modified pages are written back, this is
+ * what keeps the footer from counting readings that are not on disk. After a
+ * crash, of the program or of the operating system, the segment holds the
+ * readings and footer of the last completed force, and readings appended after
+ * that are ignored. The footer spans at most two disk sectors, if only one of
+ * them was written before an operating system crash, its checksum does not
+ * match, and the footer is rebuilt from the columns when the segment is
+ * opened, see {@link #rebuildFooter()}. The count never spans two sectors, and
+ * is therefore either the old or the new count, both of which only count
+ * forced readings. Opening a segment maps the file and reads the footer, the
+ * columns are only read when a query needs them, or when the footer must be
+ * rebuilt. This class is not thread safe.
+ */
+class ColumnSegment {
+    /**
+     * Receives readings read from a segment.
+     */
+    interface ReadingConsumer {
+        /**
+         * @param observedAt The observation time, in milliseconds since the
+         *                   epoch.
+         * @param temp       The temperature, in degrees Celsius.
+         */
+        void accept(long observedAt, double temp);
+    }
+
+    private static final int MAGIC = 0x57534347;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int FOOTER_SIZE = 64;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int FOOTER_COUNT = 0;
+    private static final int FOOTER_EARLIEST = 8;
+    private static final int FOOTER_LATEST = 16;
+    private static final int FOOTER_SUM = 24;
+    private static final int FOOTER_SUM_OF_SQUARES = 32;
+    private static final int FOOTER_MIN = 40;
+    private static final int FOOTER_MAX = 48;
+    private static final int FOOTER_CHECKSUM = 56;
+    private final Path file;
+    private final MappedByteBuffer data;
+    private final int capacity;
+    private final int footerOffset;
+    private int count;
+    private long earliest = Long.MAX_VALUE;
+    private long latest = Long.MIN_VALUE;
+    private TemperatureStats stats;
+
+    private ColumnSegment(Path file, MappedByteBuffer data, int capacity) {
+        this.file = file;
+        this.data = data;
+        this.capacity = capacity;
+        this.footerOffset = HEADER_SIZE + 2 * Long.BYTES * capacity;
+    }
+
+    /**
+     * Creates a new, empty segment file.
+     *
+     * @param file     The file to create. It must not exist.
+     * @param capacity The number of readings that fit in the segment.
+     * @return The created segment.
+     * @throws IOException If unable to create the file.
+     */
+    static ColumnSegment create(Path file, int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+            data.putInt(0, MAGIC);
+            data.putInt(Integer.BYTES, VERSION);
+            data.putInt(CAPACITY_OFFSET, capacity);
+            ColumnSegment segment = new ColumnSegment(file, data, capacity);
+            segment.stats = new TemperatureStats();
+            segment.writeFooter();
+            data.force();
+            return segment;
+        }
+    }
+
+    /**
+     * Maps an existing segment file, and reads its footer. The columns are not
+     * read, unless the footer checksum does not match, in which case the footer
+     * is rebuilt.
+     *
+     * @param file The segment file.
+     * @return The opened segment.
+     * @throws IOException If unable to read the file, or if it is not a segment
+     *                     file.
+     */
+    static ColumnSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is not a segment file.");
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int capacity = header.getInt(CAPACITY_OFFSET);
+            if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION || capacity < 1
+                    || channel.size() != fileSize(capacity)) {
+                throw new IOException(file + " is not a segment file of version " + VERSION + ".");
+            }
+            ColumnSegment segment = new ColumnSegment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                                        channel.size()), capacity);
+            if (!segment.readFooter()) {
+                segment.rebuildFooter();
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no more readings fit in this segment.
+     */
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * Appends a reading to this segment, which must not be full. The reading is
+     * not forced to disk, and is not counted in the footer on disk, until
+     * {@link #force()} is called.
+     *
+     * @param observedAt The observation time, in milliseconds since the epoch.
+     * @param temp       The temperature, in degrees Celsius.
+     */
+    void append(long observedAt, double temp) {
+        if (isFull()) {
+            throw new IllegalStateException(file + " is full.");
+        }
+        data.putLong(timeOffset(count), observedAt);
+        data.putDouble(tempOffset(count), temp);
+        earliest = Math.min(earliest, observedAt);
+        latest = Math.max(latest, observedAt);
+        stats.add(temp);
+        count++;
+    }
+
+    /**
+     * Writes all appended readings to disk, and then the footer counting them.
+     */
+    void force() {
+        data.force();
+        writeFooter();
+        data.force(footerOffset, FOOTER_SIZE);
+    }
+
+    /**
+     * @return The number of readings in this segment.
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The earliest observation time in this segment, in milliseconds
+     *         since the epoch, or <code>Long.MAX_VALUE</code> if the segment is
+     *         empty.
+     */
+    long getEarliest() {
+        return earliest;
+    }
+
+    /**
+     * @return The latest observation time in this segment, in milliseconds
+     *         since the epoch, or <code>Long.MIN_VALUE</code> if the segment is
+     *         empty.
+     */
+    long getLatest() {
+        return latest;
+    }
+
+    /**
+     * @return Statistics over all readings in this segment, as stored in the
+     *         footer. The returned object is a copy.
+     */
+    TemperatureStats getStats() {
+        TemperatureStats copy = new TemperatureStats();
+        copy.merge(stats);
+        return copy;
+    }
+
+    /**
+     * Passes the temperature of each reading observed in the specified time
+     * range to the specified consumer. This reads both columns.
+     *
+     * @param from         The start of the range, inclusive, in milliseconds
+     *                     since the epoch.
+     * @param to           The end of the range, exclusive, in milliseconds
+     *                     since the epoch.
+     * @param tempReadings Receives the selected temperatures.
+     */
+    void scan(long from, long to, DoubleConsumer tempReadings) {
+        for (int i = 0; i < count; i++) {
+            long observedAt = data.getLong(timeOffset(i));
+            if (observedAt >= from && observedAt < to) {
+                tempReadings.accept(data.getDouble(tempOffset(i)));
+            }
+        }
+    }
+
+    /**
+     * Passes each reading observed at or after the specified time to the
+     * specified consumer. This reads both columns.
+     *
+     * @param from     The earliest observation time, in milliseconds since the
+     *                 epoch.
+     * @param readings Receives the selected readings.
+     */
+    void scanReadings(long from, ReadingConsumer readings) {
+        for (int i = 0; i < count; i++) {
+            long observedAt = data.getLong(timeOffset(i));
+            if (observedAt >= from) {
+                readings.accept(observedAt, data.getDouble(tempOffset(i)));
+            }
+        }
+    }
+
+    /**
+     * Passes each reading, starting with the reading at the specified position,
+     * to the specified consumer, in the order they were appended.
+     *
+     * @param firstIndex The number of readings to skip.
+     * @param readings   Receives the readings.
+     */
+    void scanReadingsFrom(int firstIndex, ReadingConsumer readings) {
+        for (int i = Math.max(0, firstIndex); i < count; i++) {
+            readings.accept(data.getLong(timeOffset(i)), data.getDouble(tempOffset(i)));
+        }
+    }
+
+    /**
+     * Passes the temperature of each reading to the specified consumer. Only the
+     * temperature column is read.
+     *
+     * @param tempReadings Receives all temperatures.
+     */
+    void scanAll(DoubleConsumer tempReadings) {
+        for (int i = 0; i < count; i++) {
+            tempReadings.accept(data.getDouble(tempOffset(i)));
+        }
+    }
+
+    /**
+     * Recomputes the footer from the columns, and writes it to disk.
+     *
+     * @return Statistics over all readings in this segment, as recomputed.
+     */
+    TemperatureStats rebuildFooter() {
+        earliest = Long.MAX_VALUE;
+        latest = Long.MIN_VALUE;
+        stats = new TemperatureStats();
+        for (int i = 0; i < count; i++) {
+            long observedAt = data.getLong(timeOffset(i));
+            earliest = Math.min(earliest, observedAt);
+            latest = Math.max(latest, observedAt);
+            stats.add(data.getDouble(tempOffset(i)));
+        }
+        force();
+        return getStats();
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + 2L * Long.BYTES * capacity + FOOTER_SIZE;
+    }
+
+    private int timeOffset(int index) {
+        return HEADER_SIZE + Long.BYTES * index;
+    }
+
+    private int tempOffset(int index) {
+        return HEADER_SIZE + Long.BYTES * (capacity + index);
+    }
+
+    private void writeFooter() {
+        data.putLong(footerOffset + FOOTER_EARLIEST, earliest);
+        data.putLong(footerOffset + FOOTER_LATEST, latest);
+        data.putDouble(footerOffset + FOOTER_SUM, stats.getSum());
+        data.putDouble(footerOffset + FOOTER_SUM_OF_SQUARES, stats.getSumOfSquares());
+        data.putDouble(footerOffset + FOOTER_MIN, stats.getMin());
+        data.putDouble(footerOffset + FOOTER_MAX, stats.getMax());
+        data.putLong(footerOffset + FOOTER_COUNT, count);
+        data.putLong(footerOffset + FOOTER_CHECKSUM, footerChecksum());
+    }
+
+    /**
+     * Reads the footer. The count is read also if the checksum does not match.
+     *
+     * @return <code>true</code> if the footer checksum matches.
+     */
+    private boolean readFooter() {
+        count = (int) Math.max(0, Math.min(capacity, data.getLong(footerOffset + FOOTER_COUNT)));
+        earliest = data.getLong(footerOffset + FOOTER_EARLIEST);
+        latest = data.getLong(footerOffset + FOOTER_LATEST);
+        stats = new TemperatureStats(count, data.getDouble(footerOffset + FOOTER_SUM),
+                                     data.getDouble(footerOffset + FOOTER_SUM_OF_SQUARES),
+                                     data.getDouble(footerOffset + FOOTER_MIN),
+                                     data.getDouble(footerOffset + FOOTER_MAX));
+        return data.getLong(footerOffset + FOOTER_CHECKSUM) == footerChecksum();
+    }
+
+    private long footerChecksum() {
+        CRC32 checksum = new CRC32();
+        checksum.update(data.slice(footerOffset, FOOTER_CHECKSUM));
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps leases and node announcements as locked files in the directory named
+ * by the environment variable WEATHERSTAT_COORDINATION_DIR (default
+ * {@value #DEFAULT_DIRECTORY}), which means only nodes on the same host can
+ * coordinate. A lease is held by holding an exclusive lock on the file
+ * <code>&lt;lease&gt;.lease</code>, and a node is live while it holds the lock
+ * on <code>nodes/&lt;node&gt;.node</code>.
+ * <p>
+ * The locks are released by the operating system when a process ends, also
+ * if it crashes, so there are no expiry times, and the specified time to live
+ * is not used. The work of a node that has ended is taken over as soon as the
+ * other nodes next renew their leases. Locks are held by the process, so only
+ * one instance of this class may use the same directory in each process.
+ */
+class FileLeaseStore implements LeaseStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileLeaseStore.class);
+    private static final String DEFAULT_DIRECTORY = "weatherstat-leases";
+    private static final String NODES_DIRECTORY = "nodes";
+    private static final String LEASE_SUFFIX = ".lease";
+    private static final String NODE_SUFFIX = ".node";
+    private final Path directory;
+    private final Path nodesDirectory;
+    private final Map<Path, FileLock> heldLocks = new HashMap<>();
+
+    /**
+     * Creates a new instance, using the configured directory, which is created
+     * if it does not exist.
+     *
+     * @throws UncheckedIOException If unable to create the directory.
+     */
+    FileLeaseStore() {
+        String configuredDirectory = System.getenv("WEATHERSTAT_COORDINATION_DIR");
+        directory = Paths.get(configuredDirectory == null ? DEFAULT_DIRECTORY : configuredDirectory)
+                         .toAbsolutePath();
+        nodesDirectory = directory.resolve(NODES_DIRECTORY);
+        try {
+            Files.createDirectories(nodesDirectory);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not create lease directory " + directory, ioe);
+        }
+    }
+
+    /**
+     * Locks the file of the specified node, unless it is already locked by this
+     * process. The file is locked again if it has been removed, for example by
+     * another node that found it unlocked just after it was created.
+     */
+    @Override
+    public synchronized void announce(String nodeId, Duration ttl) {
+        Path nodeFile = nodesDirectory.resolve(nodeId + NODE_SUFFIX);
+        if (heldLocks.containsKey(nodeFile) && !Files.exists(nodeFile)) {
+            unlock(nodeFile);
+        }
+        tryLock(nodeFile);
+    }
+
+    /**
+     * Returns the nodes whose files are locked. A file that is not locked by
+     * any process belongs to a node that has ended, and is removed.
+     */
+    @Override
+    public synchronized List<String> findLiveNodes() {
+        List<String> liveNodes = new ArrayList<>();
+        try (DirectoryStream<Path> nodeFiles = Files.newDirectoryStream(nodesDirectory, "*" + NODE_SUFFIX)) {
+            for (Path nodeFile : nodeFiles) {
+                String fileName = nodeFile.getFileName().toString();
+                String nodeId = fileName.substring(0, fileName.length() - NODE_SUFFIX.length());
+                if (heldLocks.containsKey(nodeFile) || !tryLock(nodeFile)) {
+                    liveNodes.add(nodeId);
+                } else {
+                    unlock(nodeFile);
+                    Files.deleteIfExists(nodeFile);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not list nodes in " + nodesDirectory, ioe);
+        }
+        return liveNodes;
+    }
+
+    @Override
+    public synchronized boolean tryAcquire(String lease, String nodeId, Duration ttl) {
+        return tryLock(directory.resolve(lease + LEASE_SUFFIX));
+    }
+
+    @Override
+    public synchronized void release(String lease, String nodeId) {
+        unlock(directory.resolve(lease + LEASE_SUFFIX));
+    }
+
+    @Override
+    public synchronized void leave(String nodeId) {
+        for (Path lockedFile : new ArrayList<>(heldLocks.keySet())) {
+            unlock(lockedFile);
+        }
+        try {
+            Files.deleteIfExists(nodesDirectory.resolve(nodeId + NODE_SUFFIX));
+        } catch (IOException ioe) {
+            LOGGER.warn("Could not remove the file of node " + nodeId + ".", ioe);
+        }
+    }
+
+    /**
+     * Locks the specified file, which is created if it does not exist, unless
+     * it is already locked by this process.
+     *
+     * @return <code>true</code> if the file is locked by this process,
+     *         <code>false</code> if it is locked by another process.
+     */
+    private boolean tryLock(Path file) {
+        if (heldLocks.containsKey(file)) {
+            return true;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return false;
+            }
+            heldLocks.put(file, lock);
+            return true;
+        } catch (IOException ioe) {
+            closeQuietly(channel);
+            throw new UncheckedIOException("Could not lock " + file, ioe);
+        }
+    }
+
+    private void unlock(Path file) {
+        FileLock lock = heldLocks.remove(file);
+        if (lock != null) {
+            closeQuietly(lock.channel());
+        }
+    }
+
+    private void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            LOGGER.warn("Could not close lock file.", ioe);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * A store that is not opened until it is first used. Opening
+ * {@link WeatherDAO} creates the MongoDB client and its indexes, which takes
+ * long, and blocks until the server selection timeout if the database is not
+ * reachable. With this class, the user gets a prompt immediately, and the
+ * store is opened by the first command that needs it. If opening fails, the
+ * exception is thrown to the caller, and the next call tries again.
+ */
+class LazyWeatherStore implements WeatherStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LazyWeatherStore.class);
+    private static final Histogram OPEN_LATENCY = Metrics.histogram("weatherstat_store_open_micros");
+    private final Supplier<WeatherStore> opener;
+    private volatile WeatherStore store;
+
+    /**
+     * Creates a new instance, which will open its store with the specified
+     * supplier on first use.
+     *
+     * @param opener Opens the store, is called at most once unless it fails.
+     */
+    LazyWeatherStore(Supplier<WeatherStore> opener) {
+        this.opener = opener;
+    }
+
+    @Override
+    public IngestResult storeObservations(List<String> observations) {
+        return store().storeObservations(observations);
+    }
+
+    @Override
+    public TemperatureStats findRunningTempStats() {
+        return store().findRunningTempStats();
+    }
+
+    @Override
+    public TemperatureStats rebuildRunningStats() {
+        return store().rebuildRunningStats();
+    }
+
+    @Override
+    public long rollUpObservations() {
+        return store().rollUpObservations();
+    }
+
+    @Override
+    public StatsConsistencyReport checkRunningStats() {
+        return store().checkRunningStats();
+    }
+
+    @Override
+    public void findAllTempReadings(DoubleConsumer tempReadings) {
+        store().findAllTempReadings(tempReadings);
+    }
+
+    @Override
+    public TemperatureStats scanArchiveTempStats() {
+        return store().scanArchiveTempStats();
+    }
+
+    @Override
+    public TemperatureStats findTempStats() {
+        return store().findTempStats();
+    }
+
+    @Override
+    public TemperatureStats findTempStats(TemperatureQuery query) {
+        return store().findTempStats(query);
+    }
+
+    @Override
+    public double findTempPercentile(TemperatureQuery query, double percentile) {
+        return store().findTempPercentile(query, percentile);
+    }
+
+    @Override
+    public TemperatureSketch findTempSketch() {
+        return store().findTempSketch();
+    }
+
+    @Override
+    public TemperatureSketch findTempSketch(TemperatureQuery query) {
+        return store().findTempSketch(query);
+    }
+
+    @Override
+    public long countDistinctCities() {
+        return store().countDistinctCities();
+    }
+
+    @Override
+    public long countDistinctCities(TemperatureQuery query) {
+        return store().countDistinctCities(query);
+    }
+
+    @Override
+    public ExportResult exportObservations(Path directory) {
+        return store().exportObservations(directory);
+    }
+
+    @Override
+    public void watchReadings(Instant since, Consumer<List<TemperatureReading>> listener) {
+        store().watchReadings(since, listener);
+    }
+
+    /**
+     * Stops watching, without opening the store if it is not yet opened, since
+     * nobody can be watching a store that is not opened.
+     */
+    @Override
+    public void stopWatching() {
+        WeatherStore current = store;
+        if (current != null) {
+            current.stopWatching();
+        }
+    }
+
+    private WeatherStore store() {
+        WeatherStore current = store;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (store == null) {
+                long startNanos = System.nanoTime();
+                store = opener.get();
+                OPEN_LATENCY.recordMicrosSince(startNanos);
+                LOGGER.info("Opened " + store.getClass().getSimpleName() + " in "
+                        + (System.nanoTime() - startNanos) / 1_000_000 + " ms.");
+            }
+            return store;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Shared state that lets several processes divide work between them. Each
+ * process, called a node, announces itself periodically, and is considered
+ * live until its announcement expires. A lease gives one node at a time the
+ * right to do some work, and is held until it is released or expires. Leases
+ * and announcements are renewed by calling the same methods again, before they
+ * expire.
+ * <p>
+ * The implementation is chosen by the environment variable
+ * WEATHERSTAT_COORDINATION, see {@link #fromEnvironment()}.
+ */
+public interface LeaseStore {
+    /**
+     * The value of WEATHERSTAT_COORDINATION that selects no coordination, which
+     * is also the default.
+     */
+    String NO_COORDINATION = "none";
+    /**
+     * The value of WEATHERSTAT_COORDINATION that selects
+     * {@link MongoLeaseStore}.
+     */
+    String MONGODB_COORDINATION = "mongodb";
+    /**
+     * The value of WEATHERSTAT_COORDINATION that selects
+     * {@link FileLeaseStore}.
+     */
+    String FILE_COORDINATION = "file";
+
+    /**
+     * Creates the lease store named by the environment variable
+     * WEATHERSTAT_COORDINATION, which is either {@value #NO_COORDINATION} (the
+     * default), {@value #MONGODB_COORDINATION}, for nodes on any number of
+     * hosts sharing the weather database, or {@value #FILE_COORDINATION}, for
+     * nodes on the same host.
+     *
+     * @return The configured lease store, or <code>null</code> if nodes shall
+     *         not coordinate.
+     * @throws IllegalArgumentException If WEATHERSTAT_COORDINATION names an
+     *                                  unknown store.
+     */
+    static LeaseStore fromEnvironment() {
+        String coordination = System.getenv("WEATHERSTAT_COORDINATION");
+        if (coordination == null || NO_COORDINATION.equals(coordination)) {
+            return null;
+        }
+        if (MONGODB_COORDINATION.equals(coordination)) {
+            return new MongoLeaseStore();
+        }
+        if (FILE_COORDINATION.equals(coordination)) {
+            return new FileLeaseStore();
+        }
+        throw new IllegalArgumentException("Unknown WEATHERSTAT_COORDINATION " + coordination + ", must be "
+                + NO_COORDINATION + ", " + MONGODB_COORDINATION + " or " + FILE_COORDINATION);
+    }
+
+    /**
+     * Announces that the specified node is live, for the specified time.
+     *
+     * @param nodeId The announced node.
+     * @param ttl    How long the node is considered live, unless announced
+     *               again.
+     */
+    void announce(String nodeId, Duration ttl);
+
+    /**
+     * @return The identifiers of all nodes whose announcement has not expired,
+     *         in no particular order.
+     */
+    List<String> findLiveNodes();
+
+    /**
+     * Acquires or renews the specified lease for the specified node, if the
+     * lease is free, expired, or already held by that node.
+     *
+     * @param lease  The name of the lease.
+     * @param nodeId The node that shall hold the lease.
+     * @param ttl    How long the lease is held, unless renewed or released.
+     * @return <code>true</code> if the node now holds the lease,
+     *         <code>false</code> if another node holds it.
+     */
+    boolean tryAcquire(String lease, String nodeId, Duration ttl);
+
+    /**
+     * Releases the specified lease, if it is held by the specified node. Has
+     * no effect otherwise.
+     *
+     * @param lease  The name of the lease.
+     * @param nodeId The node releasing the lease.
+     */
+    void release(String lease, String nodeId);
+
+    /**
+     * Withdraws the announcement of the specified node, and releases all its
+     * leases, so that other nodes can take over its work at once, instead of
+     * when its leases expire. Also frees all resources used by this object,
+     * which must not be used afterwards.
+     *
+     * @param nodeId The node that leaves.
+     */
+    void leave(String nodeId);
+}
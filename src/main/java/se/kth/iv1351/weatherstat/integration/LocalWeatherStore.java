@@ -0,0 +1,780 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.model.TemperatureSeries;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * An embedded {@link WeatherStore}, for sites where no MongoDB server is
+ * available. Only observation time and temperature, in degrees Celsius, are
+ * stored, raw payloads and other measurements are discarded. An observation
+ * without a temperature can therefore not be stored, and is reported as a
+ * failure.
+ * <p>
+ * There is one series per provider and city, stored in the directory
+ * <code>&lt;provider&gt;/&lt;city&gt;</code> below the directory named by the
+ * environment variable WEATHERSTAT_LOCAL_STORE_DIR (default
+ * {@value #DEFAULT_DIRECTORY}). Each series is a sequence of append-only,
+ * memory-mapped {@link ColumnSegment}s, holding WEATHERSTAT_LOCAL_SEGMENT_CAPACITY
+ * (default {@value #DEFAULT_SEGMENT_CAPACITY}) readings each. A new segment is
+ * created when the last one is full. Each segment has a footer with the time
+ * range, count, sum, sum of squares, min and max of its readings.
+ * <p>
+ * At startup, all segments are mapped and their footers are read, no readings
+ * are read unless a footer torn by a crash must be rebuilt. A statistics query skips segments whose time range does not
+ * overlap the query, uses the footer of segments whose time range is inside
+ * the query, and only reads the readings of segments that partly overlap the
+ * query. The footers also serve as running statistics. Readings are forced to
+ * disk before {@link #storeObservations(List)} returns.
+ * <p>
+ * Instances are thread safe. Any number of queries may run at the same time,
+ * but storing observations waits for running queries, and the other way around.
+ * Since the store is only used by one process, watching stored readings does
+ * not need polling, the watching listener is called by the thread storing the
+ * readings.
+ */
+public class LocalWeatherStore implements WeatherStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalWeatherStore.class);
+    private static final String DEFAULT_DIRECTORY = "weatherstat-data";
+    private static final int DEFAULT_SEGMENT_CAPACITY = 65_536;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 26;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String UNKNOWN_PROVIDER = "unknown";
+    /**
+     * The directory name of observations without city. URL encoding never
+     * produces a single percent sign, so no city has this directory name.
+     */
+    private static final String NO_CITY_DIRECTORY = "%";
+    private static final String EXPORTED_STATE_PREFIX = "local.exported.";
+    private static final String SEGMENTS_METRIC = "localstore_segments_read_total";
+    private static final String READ_LABEL = "read";
+    private static final Counter SEGMENTS_SKIPPED = Metrics.counter(SEGMENTS_METRIC, READ_LABEL, "skipped");
+    private static final Counter SEGMENTS_FROM_FOOTER = Metrics.counter(SEGMENTS_METRIC, READ_LABEL, "footer");
+    private static final Counter SEGMENTS_SCANNED = Metrics.counter(SEGMENTS_METRIC, READ_LABEL, "scanned");
+    private static final Histogram STATS_QUERY_LATENCY = Metrics.histogram("localstore_query_micros", "query",
+                                                                          "stats");
+    private static final Histogram PERCENTILE_QUERY_LATENCY = Metrics.histogram("localstore_query_micros", "query",
+                                                                               "percentile");
+    private static final Histogram SKETCH_QUERY_LATENCY = Metrics.histogram("localstore_query_micros", "query",
+                                                                           "sketch");
+    private final ObservationFormats formats = new ObservationFormats();
+    private final TemperatureExtractor tempExtractor = new TemperatureExtractor(formats);
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<List<String>, Series> allSeries = new HashMap<>();
+    private Consumer<List<TemperatureReading>> watcher;
+    private Path directory;
+    private int segmentCapacity;
+
+    /**
+     * Creates a new instance, and opens all existing segments.
+     *
+     * @throws UncheckedIOException If unable to open the store.
+     */
+    public LocalWeatherStore() {
+        readConfig();
+        try {
+            openAllSeries();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not open local store in " + directory, ioe);
+        }
+    }
+
+    /**
+     * Stores the observation time and temperature of all specified observations.
+     * If the provider is unknown, or the observation does not contain a time,
+     * the current time is used as observation time. An observation with the
+     * same time as the latest reading stored for its provider and city, which
+     * is what repeated polls of an unchanged observation return, is counted as
+     * a duplicate and not stored again.
+     *
+     * @param observations The observations to store.
+     * @return The result of storing, see {@link WeatherStore}.
+     * @throws UncheckedIOException If unable to write to the store. Readings
+     *                              appended before the failure stay stored.
+     */
+    @Override
+    public IngestResult storeObservations(List<String> observations) {
+        IngestResult result = new IngestResult();
+        Set<Series> appendedTo = new HashSet<>();
+        List<TemperatureReading> stored = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < observations.size(); i++) {
+                Document observation;
+                Double tempReading;
+                try {
+                    observation = Document.parse(observations.get(i));
+                    tempReading = tempExtractor.extract(observation);
+                } catch (RuntimeException parseFailure) {
+                    result.addFailure(i, parseFailure.getMessage());
+                    continue;
+                }
+                if (tempReading == null) {
+                    result.addFailure(i, "no temperature, which is all the local store keeps");
+                    continue;
+                }
+                String providerName = formats.providerOf(observation);
+                ObservationFormat format = formats.get(providerName);
+                String city = formats.cityOf(observation);
+                Long observationTime = format == null ? null : format.readObservationTime(observation);
+                if (providerName == null) {
+                    providerName = UNKNOWN_PROVIDER;
+                }
+                Instant observedAt = observationTime == null ? Instant.now()
+                        : Instant.ofEpochSecond(observationTime);
+
+                Series series = seriesFor(providerName, city);
+                if (observationTime != null && series.latestObservedAt == observedAt.toEpochMilli()) {
+                    result.addDuplicates(1);
+                    continue;
+                }
+                series.append(observedAt.toEpochMilli(), tempReading);
+                appendedTo.add(series);
+                result.addStored(1);
+                result.addStoredReading(providerName, city, observedAt);
+                stored.add(new TemperatureReading(providerName, city, observedAt, tempReading));
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not write to local store in " + directory, ioe);
+        } finally {
+            for (Series series : appendedTo) {
+                series.force();
+            }
+            if (watcher != null && !stored.isEmpty()) {
+                watcher.accept(stored);
+            }
+            lock.writeLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Returns statistics over all stored temperature readings, by merging the
+     * footers of all segments.
+     *
+     * @return Statistics over all stored temperature readings.
+     */
+    @Override
+    public TemperatureStats findRunningTempStats() {
+        lock.readLock().lock();
+        try {
+            TemperatureStats stats = new TemperatureStats();
+            for (ColumnSegment segment : allSegments()) {
+                stats.merge(segment.getStats());
+            }
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recomputes the footer of each segment from its readings. Footers that are
+     * already recomputed stay recomputed if the calling thread is interrupted.
+     *
+     * @return Statistics over all stored temperature readings, as recomputed.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureStats rebuildRunningStats() {
+        lock.writeLock().lock();
+        try {
+            TemperatureStats stats = new TemperatureStats();
+            for (ColumnSegment segment : allSegments()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The rebuild was interrupted.");
+                }
+                stats.merge(segment.rebuildFooter());
+            }
+            return stats;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Does nothing, since the footers of the segments already summarize their
+     * readings, and readings are never removed from the local store.
+     *
+     * @return Zero.
+     */
+    @Override
+    public long rollUpObservations() {
+        return 0;
+    }
+
+    /**
+     * Compares the footers of all segments with statistics computed by reading
+     * all readings.
+     *
+     * @return The result of the comparison.
+     */
+    @Override
+    public StatsConsistencyReport checkRunningStats() {
+        lock.readLock().lock();
+        try {
+            return new StatsConsistencyReport(findRunningTempStats(), scanArchiveTempStats());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void findAllTempReadings(DoubleConsumer tempReadings) {
+        lock.readLock().lock();
+        try {
+            for (ColumnSegment segment : allSegments()) {
+                segment.scanAll(tempReadings);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Computes statistics over all stored temperature readings by reading the
+     * temperature column of each segment, without using the footers. Segments
+     * are read one at a time, since reading a memory-mapped file is limited by
+     * the disk rather than by the processor.
+     *
+     * @return Statistics over all stored temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureStats scanArchiveTempStats() {
+        lock.readLock().lock();
+        try {
+            TemperatureStats stats = new TemperatureStats();
+            for (ColumnSegment segment : allSegments()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The scan was interrupted.");
+                }
+                segment.scanAll(stats);
+                SEGMENTS_SCANNED.increment();
+            }
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #findRunningTempStats()}, since the running statistics are
+     * the footers, which are always up to date.
+     *
+     * @return Statistics over all stored temperature readings.
+     */
+    @Override
+    public TemperatureStats findTempStats() {
+        return findRunningTempStats();
+    }
+
+    /**
+     * Returns statistics over the readings selected by the specified query.
+     * Only segments partly overlapping the selected time range are read, see
+     * {@link LocalWeatherStore}.
+     *
+     * @param query Selects the readings to include.
+     * @return Statistics over the selected temperature readings.
+     */
+    @Override
+    public TemperatureStats findTempStats(TemperatureQuery query) {
+        long startNanos = System.nanoTime();
+        long from = toEpochMilli(query.getFrom());
+        long to = toEpochMilli(query.getTo());
+        TemperatureStats stats = new TemperatureStats();
+        lock.readLock().lock();
+        try {
+            for (ColumnSegment segment : selectedSegments(query)) {
+                if (isOutside(segment, from, to)) {
+                    SEGMENTS_SKIPPED.increment();
+                } else if (segment.getEarliest() >= from && segment.getLatest() < to) {
+                    stats.merge(segment.getStats());
+                    SEGMENTS_FROM_FOOTER.increment();
+                } else {
+                    segment.scan(from, to, stats);
+                    SEGMENTS_SCANNED.increment();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        STATS_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return stats;
+    }
+
+    /**
+     * Returns the specified percentile of the readings selected by the
+     * specified query, with the nearest-rank method. All selected readings are
+     * read and sorted, segments outside the selected time range are skipped.
+     *
+     * @param query      Selects the readings to include.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The specified percentile, or <code>NaN</code> if no readings were
+     *         selected.
+     */
+    @Override
+    public double findTempPercentile(TemperatureQuery query, double percentile) {
+        long startNanos = System.nanoTime();
+        long from = toEpochMilli(query.getFrom());
+        long to = toEpochMilli(query.getTo());
+        TemperatureSeries selected = new TemperatureSeries();
+        lock.readLock().lock();
+        try {
+            for (ColumnSegment segment : selectedSegments(query)) {
+                if (isOutside(segment, from, to)) {
+                    SEGMENTS_SKIPPED.increment();
+                } else {
+                    segment.scan(from, to, selected);
+                    SEGMENTS_SCANNED.increment();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        PERCENTILE_QUERY_LATENCY.recordMicrosSince(startNanos);
+        if (selected.size() == 0) {
+            return Double.NaN;
+        }
+        double[] readings = selected.toArray();
+        Arrays.sort(readings);
+        long rank = (long) Math.ceil(percentile / 100 * readings.length);
+        return readings[(int) Math.max(0, Math.min(readings.length - 1, rank - 1))];
+    }
+
+    /**
+     * Returns a sketch of all stored temperature readings, built by reading the
+     * temperature column of each segment. Readings are added to the sketch
+     * while they are read, and are not kept.
+     *
+     * @return A sketch of all stored temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureSketch findTempSketch() {
+        long startNanos = System.nanoTime();
+        TemperatureSketch sketch = new TemperatureSketch();
+        lock.readLock().lock();
+        try {
+            for (ColumnSegment segment : allSegments()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The sketch query was interrupted.");
+                }
+                segment.scanAll(sketch);
+                SEGMENTS_SCANNED.increment();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        SKETCH_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return sketch;
+    }
+
+    /**
+     * Returns a sketch of the readings selected by the specified query. Segments
+     * outside the selected time range are skipped, the readings of the other
+     * segments are added to the sketch while they are read, and are not kept.
+     *
+     * @param query Selects the readings to include.
+     * @return A sketch of the selected temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureSketch findTempSketch(TemperatureQuery query) {
+        long startNanos = System.nanoTime();
+        long from = toEpochMilli(query.getFrom());
+        long to = toEpochMilli(query.getTo());
+        TemperatureSketch sketch = new TemperatureSketch();
+        lock.readLock().lock();
+        try {
+            for (ColumnSegment segment : selectedSegments(query)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The sketch query was interrupted.");
+                }
+                if (isOutside(segment, from, to)) {
+                    SEGMENTS_SKIPPED.increment();
+                } else {
+                    segment.scan(from, to, sketch);
+                    SEGMENTS_SCANNED.increment();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        SKETCH_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return sketch;
+    }
+
+    /**
+     * Counts the cities with a series holding readings. Since there is one
+     * series per provider and city, the count is exact.
+     *
+     * @return The number of cities.
+     */
+    @Override
+    public long countDistinctCities() {
+        Set<String> cities = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Series series : allSeries.values()) {
+                if (series.city != null && hasReadings(series, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                    cities.add(series.city);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return cities.size();
+    }
+
+    /**
+     * Counts the cities with a selected series holding readings in the selected
+     * time range. The footers are used to decide, only segments partly
+     * overlapping the time range are read, and the reading of a series stops at
+     * the first segment with selected readings. The count is exact.
+     *
+     * @param query Selects the readings to include.
+     * @return The number of cities.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public long countDistinctCities(TemperatureQuery query) {
+        long from = toEpochMilli(query.getFrom());
+        long to = toEpochMilli(query.getTo());
+        Set<String> cities = new HashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Series series : allSeries.values()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The distinct cities query was interrupted.");
+                }
+                if (series.city != null && !cities.contains(series.city) && isSelected(series, query)
+                        && hasReadings(series, from, to)) {
+                    cities.add(series.city);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return cities.size();
+    }
+
+    /**
+     * Exports the readings appended since the last export to the specified
+     * directory. Since segments are append-only, the number of exported readings
+     * of each series is saved as export state, and the next export starts after
+     * that number of readings. Only observation time and temperature are
+     * exported, the other columns are unknown. Storing observations waits for
+     * the export.
+     *
+     * @param exportDirectory The export directory.
+     * @return The number of exported readings and written files.
+     * @throws UncheckedIOException  If unable to write the export.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public ExportResult exportObservations(Path exportDirectory) {
+        lock.readLock().lock();
+        try (ObservationExporter exporter = new ObservationExporter(exportDirectory)) {
+            for (Series series : allSeries.values()) {
+                String stateKey = EXPORTED_STATE_PREFIX + directory.relativize(series.seriesDir).toString()
+                                                                   .replace('\\', '/');
+                String exportedState = exporter.getState(stateKey);
+                long exported = exportedState == null ? 0 : Long.parseLong(exportedState);
+                long skipped = 0;
+                for (ColumnSegment segment : series.segments) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("The export was interrupted.");
+                    }
+                    if (skipped + segment.getCount() > exported) {
+                        segment.scanReadingsFrom((int) (exported - skipped), (observedAt, temp) -> {
+                            try {
+                                exporter.add(series.provider, series.city, observedAt, temp, null, null, null);
+                            } catch (IOException ioe) {
+                                throw new UncheckedIOException(ioe);
+                            }
+                        });
+                    }
+                    skipped += segment.getCount();
+                }
+                exporter.setState(stateKey, Long.toString(Math.max(skipped, exported)));
+            }
+            return exporter.commit();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not export to " + exportDirectory, ioe);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes the stored readings observed at or after the specified time to the
+     * specified listener, in the calling thread, and then passes the readings of
+     * each call to {@link #storeObservations(List)} to the listener, in the
+     * thread storing them, before that call returns.
+     *
+     * @param since    Stored readings observed before this time are not passed.
+     * @param listener Receives the readings.
+     * @throws IllegalStateException If another listener is already watching.
+     */
+    @Override
+    public void watchReadings(Instant since, Consumer<List<TemperatureReading>> listener) {
+        long from = toEpochMilli(since);
+        lock.writeLock().lock();
+        try {
+            if (watcher != null) {
+                throw new IllegalStateException("Another listener is already watching.");
+            }
+            List<TemperatureReading> stored = new ArrayList<>();
+            for (Series series : allSeries.values()) {
+                for (ColumnSegment segment : series.segments) {
+                    if (!isOutside(segment, from, Long.MAX_VALUE)) {
+                        segment.scanReadings(from, (observedAt, temp) -> stored.add(
+                                new TemperatureReading(series.provider, series.city,
+                                                       Instant.ofEpochMilli(observedAt), temp)));
+                    }
+                }
+            }
+            if (!stored.isEmpty()) {
+                listener.accept(stored);
+            }
+            watcher = listener;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void stopWatching() {
+        lock.writeLock().lock();
+        try {
+            watcher = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void readConfig() {
+        String configuredDirectory = System.getenv("WEATHERSTAT_LOCAL_STORE_DIR");
+        directory = Paths.get(configuredDirectory == null ? DEFAULT_DIRECTORY : configuredDirectory);
+        String configuredCapacity = System.getenv("WEATHERSTAT_LOCAL_SEGMENT_CAPACITY");
+        segmentCapacity = configuredCapacity == null ? DEFAULT_SEGMENT_CAPACITY
+                : Integer.parseInt(configuredCapacity);
+        if (segmentCapacity < 1 || segmentCapacity > MAX_SEGMENT_CAPACITY) {
+            throw new IllegalArgumentException("WEATHERSTAT_LOCAL_SEGMENT_CAPACITY must be between 1 and "
+                    + MAX_SEGMENT_CAPACITY + ", was " + segmentCapacity);
+        }
+    }
+
+    private void openAllSeries() throws IOException {
+        Files.createDirectories(directory);
+        int segmentCount = 0;
+        try (DirectoryStream<Path> providerDirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path providerDir : providerDirs) {
+                try (DirectoryStream<Path> cityDirs = Files.newDirectoryStream(providerDir, Files::isDirectory)) {
+                    for (Path cityDir : cityDirs) {
+                        Series series = new Series(decode(providerDir.getFileName().toString()),
+                                                   decodeCity(cityDir.getFileName().toString()), cityDir);
+                        series.openSegments();
+                        allSeries.put(Arrays.asList(series.provider, series.city), series);
+                        segmentCount += series.segments.size();
+                    }
+                }
+            }
+        }
+        LOGGER.info("Opened " + segmentCount + " segments of " + allSeries.size() + " series in " + directory);
+    }
+
+    private Series seriesFor(String provider, String city) throws IOException {
+        List<String> key = Arrays.asList(provider, city);
+        Series series = allSeries.get(key);
+        if (series == null) {
+            Path seriesDir = directory.resolve(encode(provider))
+                                      .resolve(city == null ? NO_CITY_DIRECTORY : encode(city));
+            Files.createDirectories(seriesDir);
+            series = new Series(provider, city, seriesDir);
+            allSeries.put(key, series);
+        }
+        return series;
+    }
+
+    private List<ColumnSegment> allSegments() {
+        List<ColumnSegment> segments = new ArrayList<>();
+        for (Series series : allSeries.values()) {
+            segments.addAll(series.segments);
+        }
+        return segments;
+    }
+
+    private List<ColumnSegment> selectedSegments(TemperatureQuery query) {
+        List<ColumnSegment> segments = new ArrayList<>();
+        for (Series series : allSeries.values()) {
+            if (isSelected(series, query)) {
+                segments.addAll(series.segments);
+            }
+        }
+        return segments;
+    }
+
+    private boolean isSelected(Series series, TemperatureQuery query) {
+        return (query.getProvider() == null || query.getProvider().equals(series.provider))
+                && (query.getCity() == null || query.getCity().equals(series.city));
+    }
+
+    private boolean hasReadings(Series series, long from, long to) {
+        for (ColumnSegment segment : series.segments) {
+            if (isOutside(segment, from, to)) {
+                SEGMENTS_SKIPPED.increment();
+                continue;
+            }
+            if (segment.getEarliest() >= from && segment.getLatest() < to) {
+                SEGMENTS_FROM_FOOTER.increment();
+                return true;
+            }
+            TemperatureStats selected = new TemperatureStats();
+            segment.scan(from, to, selected);
+            SEGMENTS_SCANNED.increment();
+            if (selected.getCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOutside(ColumnSegment segment, long from, long to) {
+        return segment.getCount() == 0 || segment.getLatest() < from || segment.getEarliest() >= to;
+    }
+
+    private long toEpochMilli(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException outsideMillisRange) {
+            return instant.isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    private String encode(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8);
+    }
+
+    private String decode(String fileName) {
+        return URLDecoder.decode(fileName, StandardCharsets.UTF_8);
+    }
+
+    private String decodeCity(String fileName) {
+        return NO_CITY_DIRECTORY.equals(fileName) ? null : decode(fileName);
+    }
+
+    /**
+     * The segments of one provider and city, oldest first. Only the last segment
+     * may be appended to.
+     */
+    private class Series {
+        private final String provider;
+        private final String city;
+        private final Path seriesDir;
+        private final List<ColumnSegment> segments = new ArrayList<>();
+        private long latestObservedAt = Long.MIN_VALUE;
+
+        private Series(String provider, String city, Path seriesDir) {
+            this.provider = provider;
+            this.city = city;
+            this.seriesDir = seriesDir;
+        }
+
+        private void openSegments() throws IOException {
+            List<Path> segmentFiles = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(seriesDir, "*" + SEGMENT_SUFFIX)) {
+                files.forEach(segmentFiles::add);
+            }
+            Collections.sort(segmentFiles);
+            for (Path segmentFile : segmentFiles) {
+                ColumnSegment segment = ColumnSegment.open(segmentFile);
+                segments.add(segment);
+                latestObservedAt = Math.max(latestObservedAt, segment.getLatest());
+            }
+        }
+
+        private void append(long observedAt, double tempReading) throws IOException {
+            if (segments.isEmpty() || lastSegment().isFull()) {
+                if (!segments.isEmpty()) {
+                    lastSegment().force();
+                }
+                Path segmentFile = seriesDir.resolve(String.format("%08d%s", segments.size(), SEGMENT_SUFFIX));
+                segments.add(ColumnSegment.create(segmentFile, segmentCapacity));
+            }
+            lastSegment().append(observedAt, tempReading);
+            latestObservedAt = Math.max(latestObservedAt, observedAt);
+        }
+
+        private void force() {
+            if (!segments.isEmpty()) {
+                lastSegment().force();
+            }
+        }
+
+        private ColumnSegment lastSegment() {
+            return segments.get(segments.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Keeps leases and node announcements in the weather database, which means
+ * nodes on any number of hosts can coordinate, as long as they use the same
+ * database. Each lease is a document
+ * <code>{_id: &lt;lease&gt;, owner: &lt;node&gt;, expiresAt: &lt;date&gt;}</code>
+ * in the collection {@value #LEASES_COLLECTION_NAME}, and each announcement a
+ * document <code>{_id: &lt;node&gt;, expiresAt: &lt;date&gt;}</code> in the
+ * collection {@value #NODES_COLLECTION_NAME}.
+ * <p>
+ * Expiry times are computed and compared by the database server, with
+ * <code>$$NOW</code>, so the clocks of the nodes need not be synchronized.
+ * This requires MongoDB 4.2 or later. A lease is acquired with a single
+ * conditional upsert, which either matches a lease that is expired or held
+ * by the acquiring node, or inserts a lease that does not exist. If the lease
+ * is held by another node, the insert fails with a duplicate key error, and
+ * the lease is not acquired.
+ * <p>
+ * The store uses a client of its own, with a small pool and majority write
+ * concern, see {@link WeatherDBClientConfig#createLeaseClientSettings()}.
+ */
+class MongoLeaseStore implements LeaseStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoLeaseStore.class);
+    private static final String DB_NAME = "weatherdb";
+    private static final String LEASES_COLLECTION_NAME = "leases";
+    private static final String NODES_COLLECTION_NAME = "nodes";
+    private static final String ID_FIELD = "_id";
+    private static final String OWNER_FIELD = "owner";
+    private static final String EXPIRES_AT_FIELD = "expiresAt";
+    private static final String SERVER_TIME = "$$NOW";
+    private final MongoClient connection;
+    private final MongoCollection<Document> leasesColl;
+    private final MongoCollection<Document> nodesColl;
+
+    /**
+     * Connects to the database named by WEATHERDB_SERVER, with the settings
+     * described in {@link WeatherDBClientConfig}.
+     */
+    MongoLeaseStore() {
+        WeatherDBClientConfig config = new WeatherDBClientConfig(System.getenv("WEATHERDB_SERVER"));
+        connection = MongoClients.create(config.createLeaseClientSettings());
+        MongoDatabase weatherDb = connection.getDatabase(DB_NAME);
+        leasesColl = weatherDb.getCollection(LEASES_COLLECTION_NAME);
+        nodesColl = weatherDb.getCollection(NODES_COLLECTION_NAME);
+        nodesColl.createIndex(Indexes.ascending(EXPIRES_AT_FIELD),
+                              new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void announce(String nodeId, Duration ttl) {
+        nodesColl.updateOne(Filters.eq(ID_FIELD, nodeId), expiresAfter(ttl), new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public List<String> findLiveNodes() {
+        List<String> liveNodes = new ArrayList<>();
+        for (Document node : nodesColl.find(Filters.expr(compareToServerTime("$gt")))
+                                      .projection(Projections.include(ID_FIELD))) {
+            liveNodes.add(node.getString(ID_FIELD));
+        }
+        return liveNodes;
+    }
+
+    @Override
+    public boolean tryAcquire(String lease, String nodeId, Duration ttl) {
+        Bson acquirable = Filters.and(Filters.eq(ID_FIELD, lease),
+                                      Filters.or(Filters.eq(OWNER_FIELD, nodeId),
+                                                 Filters.expr(compareToServerTime("$lt"))));
+        List<Bson> acquire = new ArrayList<>(expiresAfter(ttl));
+        acquire.add(new Document("$set", new Document(OWNER_FIELD, nodeId)));
+        try {
+            UpdateResult result = leasesColl.updateOne(acquirable, acquire, new UpdateOptions().upsert(true));
+            return result.getMatchedCount() > 0 || result.getUpsertedId() != null;
+        } catch (MongoWriteException heldByOther) {
+            if (heldByOther.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                return false;
+            }
+            throw heldByOther;
+        }
+    }
+
+    @Override
+    public void release(String lease, String nodeId) {
+        leasesColl.deleteOne(Filters.and(Filters.eq(ID_FIELD, lease), Filters.eq(OWNER_FIELD, nodeId)));
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        try {
+            leasesColl.deleteMany(Filters.eq(OWNER_FIELD, nodeId));
+            nodesColl.deleteOne(Filters.eq(ID_FIELD, nodeId));
+        } catch (RuntimeException dbFailure) {
+            LOGGER.warn("Could not release the leases of " + nodeId + ", they are taken over when they expire.",
+                        dbFailure);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns an update pipeline setting the expiry time to the specified time
+     * after the current time of the server.
+     */
+    private List<Bson> expiresAfter(Duration ttl) {
+        Document expiresAt = new Document("$add", Arrays.asList(SERVER_TIME, ttl.toMillis()));
+        return List.of(new Document("$set", new Document(EXPIRES_AT_FIELD, expiresAt)));
+    }
+
+    /**
+     * Returns an aggregation expression comparing the expiry time to the
+     * current time of the server, with the specified operator.
+     */
+    private Document compareToServerTime(String operator) {
+        return new Document(operator, Arrays.asList("$" + EXPIRES_AT_FIELD, SERVER_TIME));
+    }
+}
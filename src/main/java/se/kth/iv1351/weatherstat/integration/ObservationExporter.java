@@ -0,0 +1,326 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Writes observations to compressed, columnar files, partitioned by provider
+ * and day. The files of one provider and day are placed in the directory
+ * <code>provider=&lt;provider&gt;/day=&lt;yyyy-mm-dd&gt;</code>, below the
+ * export directory, where the provider name is URL encoded. Each export writes
+ * new files, named <code>part-&lt;export start&gt;-&lt;number&gt;.wscol.gz</code>,
+ * and never changes files written by earlier exports.
+ * <p>
+ * A file is a gzip stream holding the magic number {@value #MAGIC} and the
+ * format version {@value #VERSION}, followed by row groups of at most
+ * {@value #ROW_GROUP_SIZE} observations, followed by a zero. All numbers are
+ * big endian, as written by <code>DataOutputStream</code>. A row group starts
+ * with its number of rows, and the earliest and latest observation time, which
+ * means readers can skip row groups outside a time range. Then follows one
+ * column at a time:
+ * <ol>
+ * <li>Observation time, one <code>long</code> per row, in milliseconds since
+ * the epoch.</li>
+ * <li>City, dictionary encoded. The number of distinct cities, each city as
+ * modified UTF-8, and then one <code>int</code> per row, which is the index of
+ * the row's city in the dictionary, or -1 if the city is not known.</li>
+ * <li>Temperature in degrees Celsius, relative humidity in percent, air
+ * pressure in hPa and wind speed in m/s, each one <code>double</code> per row,
+ * <code>NaN</code> if the value is not known.</li>
+ * </ol>
+ * <p>
+ * Observations are buffered per partition, and a row group is written each
+ * time a buffer is full. At most {@value #MAX_OPEN_PARTITIONS} partitions are
+ * open at the same time, the least recently written partition is closed when
+ * another is opened. Memory use is therefore bounded, regardless of the number
+ * of exported observations, but observations that are not ordered by time may
+ * be spread over several files per partition.
+ * <p>
+ * The export directory also holds a state file, where each store records how
+ * far it has exported, see {@link #getState(String)}. The state and the written
+ * files are kept only if the export is committed, see {@link #commit()}. An
+ * export that is closed without being committed removes its files, which means
+ * the next export starts from the same state. This class is not thread safe.
+ */
+class ObservationExporter implements Closeable {
+    private static final int MAGIC = 0x57534345;
+    private static final int VERSION = 1;
+    private static final int ROW_GROUP_SIZE = 8192;
+    private static final int MAX_OPEN_PARTITIONS = 32;
+    private static final int NO_CITY = -1;
+    private static final String STATE_FILE = "_export_state.properties";
+    private static final String FILE_SUFFIX = ".wscol.gz";
+    private static final Counter ROWS_EXPORTED = Metrics.counter("weatherstat_rows_exported_total");
+    private final Path directory;
+    private final long exportStart = System.currentTimeMillis();
+    private final Properties state = new Properties();
+    private final Map<List<Object>, Partition> openPartitions = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Path> writtenFiles = new ArrayList<>();
+    private long exportedCount;
+    private boolean committed;
+
+    /**
+     * Creates a new export to the specified directory, and reads the state of
+     * earlier exports to the same directory. The directory is created if it does
+     * not exist.
+     *
+     * @param directory The export directory.
+     * @throws IOException If unable to create the directory or read the state.
+     */
+    ObservationExporter(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        Path stateFile = directory.resolve(STATE_FILE);
+        if (Files.exists(stateFile)) {
+            try (InputStream stateIn = Files.newInputStream(stateFile)) {
+                state.load(stateIn);
+            }
+        }
+    }
+
+    /**
+     * Returns a value saved by an earlier, committed, export to the same
+     * directory. Each store decides which keys it uses, typically it saves the
+     * position of the last exported observation.
+     *
+     * @param key The key of the value.
+     * @return The value, or <code>null</code> if no value is saved for the key.
+     */
+    String getState(String key) {
+        return state.getProperty(key);
+    }
+
+    /**
+     * Saves a value that is returned by {@link #getState(String)} in later
+     * exports. The value is saved when this export is committed.
+     *
+     * @param key   The key of the value.
+     * @param value The value.
+     */
+    void setState(String key, String value) {
+        state.setProperty(key, value);
+    }
+
+    /**
+     * Adds an observation to this export.
+     *
+     * @param provider   The provider that produced the observation.
+     * @param city       The city where the observation was made, or
+     *                   <code>null</code> if not known.
+     * @param observedAt The observation time, in milliseconds since the epoch.
+     * @param temp       The temperature, or <code>null</code> if not known.
+     * @param humidity   The relative humidity, or <code>null</code> if not known.
+     * @param pressure   The air pressure, or <code>null</code> if not known.
+     * @param windSpeed  The wind speed, or <code>null</code> if not known.
+     * @throws IOException If unable to write the partition file.
+     */
+    void add(String provider, String city, long observedAt, Double temp, Double humidity, Double pressure,
+             Double windSpeed) throws IOException {
+        LocalDate day = Instant.ofEpochMilli(observedAt).atOffset(ZoneOffset.UTC).toLocalDate();
+        List<Object> partitionKey = Arrays.asList(provider, day);
+        Partition partition = openPartitions.get(partitionKey);
+        if (partition == null) {
+            partition = new Partition(provider, day);
+            openPartitions.put(partitionKey, partition);
+            if (openPartitions.size() > MAX_OPEN_PARTITIONS) {
+                Iterator<Partition> leastRecentlyWritten = openPartitions.values().iterator();
+                leastRecentlyWritten.next().close();
+                leastRecentlyWritten.remove();
+            }
+        }
+        partition.add(city, observedAt, valueOrNaN(temp), valueOrNaN(humidity), valueOrNaN(pressure),
+                      valueOrNaN(windSpeed));
+        exportedCount++;
+    }
+
+    /**
+     * Writes all buffered observations, closes all files, and saves the state.
+     * The state is replaced atomically, which means a crash leaves either the
+     * old or the new state.
+     *
+     * @return The number of exported observations and written files.
+     * @throws IOException If unable to write a file or the state.
+     */
+    ExportResult commit() throws IOException {
+        closePartitions();
+        Path stateFile = directory.resolve(STATE_FILE);
+        Path newStateFile = directory.resolve(STATE_FILE + ".new");
+        try (OutputStream stateOut = Files.newOutputStream(newStateFile)) {
+            state.store(stateOut, "Last exported observations, do not edit");
+        }
+        Files.move(newStateFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        ROWS_EXPORTED.add(exportedCount);
+        return new ExportResult(exportedCount, writtenFiles.size());
+    }
+
+    /**
+     * Closes all files. If this export was not committed, all files it has
+     * written are removed.
+     *
+     * @throws IOException If unable to close or remove a file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        try {
+            closePartitions();
+        } finally {
+            for (Path writtenFile : writtenFiles) {
+                Files.deleteIfExists(writtenFile);
+            }
+        }
+    }
+
+    private void closePartitions() throws IOException {
+        IOException closeFailure = null;
+        for (Partition partition : openPartitions.values()) {
+            try {
+                partition.close();
+            } catch (IOException ioe) {
+                closeFailure = ioe;
+            }
+        }
+        openPartitions.clear();
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+
+    private double valueOrNaN(Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
+    /**
+     * One open file, and the observations buffered for its next row group.
+     */
+    private class Partition {
+        private final DataOutputStream out;
+        private final long[] observedAt = new long[ROW_GROUP_SIZE];
+        private final int[] cities = new int[ROW_GROUP_SIZE];
+        private final double[][] values = new double[4][ROW_GROUP_SIZE];
+        private final Map<String, Integer> cityDictionary = new HashMap<>();
+        private final List<String> cityNames = new ArrayList<>();
+        private int rowCount;
+
+        private Partition(String provider, LocalDate day) throws IOException {
+            Path partitionDir = directory.resolve("provider=" + URLEncoder.encode(provider, StandardCharsets.UTF_8))
+                                         .resolve("day=" + day);
+            Files.createDirectories(partitionDir);
+            Path file = partitionDir.resolve("part-" + exportStart + "-" + writtenFiles.size() + FILE_SUFFIX);
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file))));
+            writtenFiles.add(file);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        private void add(String city, long time, double temp, double humidity, double pressure, double windSpeed)
+                throws IOException {
+            observedAt[rowCount] = time;
+            cities[rowCount] = city == null ? NO_CITY : cityDictionary.computeIfAbsent(city, newCity -> {
+                cityNames.add(newCity);
+                return cityNames.size() - 1;
+            });
+            values[0][rowCount] = temp;
+            values[1][rowCount] = humidity;
+            values[2][rowCount] = pressure;
+            values[3][rowCount] = windSpeed;
+            rowCount++;
+            if (rowCount == ROW_GROUP_SIZE) {
+                writeRowGroup();
+            }
+        }
+
+        private void writeRowGroup() throws IOException {
+            long earliest = Long.MAX_VALUE;
+            long latest = Long.MIN_VALUE;
+            for (int i = 0; i < rowCount; i++) {
+                earliest = Math.min(earliest, observedAt[i]);
+                latest = Math.max(latest, observedAt[i]);
+            }
+            out.writeInt(rowCount);
+            out.writeLong(earliest);
+            out.writeLong(latest);
+            for (int i = 0; i < rowCount; i++) {
+                out.writeLong(observedAt[i]);
+            }
+            out.writeInt(cityNames.size());
+            for (String cityName : cityNames) {
+                out.writeUTF(cityName);
+            }
+            for (int i = 0; i < rowCount; i++) {
+                out.writeInt(cities[i]);
+            }
+            for (double[] column : values) {
+                for (int i = 0; i < rowCount; i++) {
+                    out.writeDouble(column[i]);
+                }
+            }
+            rowCount = 0;
+            cityDictionary.clear();
+            cityNames.clear();
+        }
+
+        private void close() throws IOException {
+            try {
+                if (rowCount > 0) {
+                    writeRowGroup();
+                }
+                out.writeInt(0);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
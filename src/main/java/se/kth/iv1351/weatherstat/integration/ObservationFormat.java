@@ -0,0 +1,257 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.List;
+import java.util.Locale;
+
+import org.bson.Document;
+
+/**
+ * The format of the observations returned by one weather API, as given in the
+ * <code>format</code> object of the provider in the source configuration. Tells
+ * where in an observation the interesting fields are located, and in which
+ * unit the temperature is given. Each location is a path in dot notation, where
+ * each element is either a field name or, if the parent is an array, an array
+ * index. The object has the following fields.
+ * <ul>
+ * <li><code>temp</code> The path to the temperature. Required.</li>
+ * <li><code>tempUnit</code> The unit of the temperature, <code>celsius</code>,
+ * <code>kelvin</code> or <code>fahrenheit</code>. Required.</li>
+ * <li><code>time</code> The path to the observation time, in seconds since the
+ * epoch.</li>
+ * <li><code>humidity</code>, <code>pressure</code> and <code>windSpeed</code>
+ * The paths to the relative humidity in percent, the air pressure in hPa and
+ * the wind speed in m/s.</li>
+ * <li><code>city</code> The path to the city name. Only used for observations
+ * stored before observations were tagged with their source, see
+ * {@link WeatherSource#tag(String)}.</li>
+ * </ul>
+ * All fields except <code>temp</code> and <code>tempUnit</code> may be left
+ * out, the corresponding values are then not stored.
+ */
+class ObservationFormat {
+    private static final String PATH_DELIMITER = "\\.";
+    private static final double ZERO_CELSIUS_IN_FAHRENHEIT = 32;
+    private static final double FAHRENHEIT_PER_CELSIUS = 1.8;
+    private final String[] tempPath;
+    private final TempUnit tempUnit;
+    private final String[] timePath;
+    private final String[] cityPath;
+    private final String[] humidityPath;
+    private final String[] pressurePath;
+    private final String[] windSpeedPath;
+
+    /**
+     * The units in which a provider may give temperatures.
+     */
+    enum TempUnit {
+        CELSIUS, KELVIN, FAHRENHEIT
+    }
+
+    /**
+     * Creates a new instance from the specified <code>format</code> object.
+     *
+     * @param providerName The provider whose format this is, used in error
+     *                     messages.
+     * @param format       The format, as described above.
+     * @throws IllegalArgumentException If the format lacks the temperature
+     *                                  path or unit, or the unit is not known.
+     */
+    ObservationFormat(String providerName, Document format) {
+        String temp = format.getString("temp");
+        String unit = format.getString("tempUnit");
+        if (temp == null || unit == null) {
+            throw new IllegalArgumentException("The format of " + providerName + " must have temp and tempUnit.");
+        }
+        try {
+            tempUnit = TempUnit.valueOf(unit.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException unknownUnit) {
+            throw new IllegalArgumentException("Unknown tempUnit of " + providerName + ": " + unit);
+        }
+        tempPath = temp.split(PATH_DELIMITER);
+        timePath = toPath(format.getString("time"));
+        cityPath = toPath(format.getString("city"));
+        humidityPath = toPath(format.getString("humidity"));
+        pressurePath = toPath(format.getString("pressure"));
+        windSpeedPath = toPath(format.getString("windSpeed"));
+    }
+
+    /**
+     * Returns the path to the temperature reading in observations of this
+     * format. The returned array must not be changed.
+     *
+     * @return The path to the temperature reading.
+     */
+    String[] getTempPath() {
+        return tempPath;
+    }
+
+    /**
+     * Returns the path to the temperature reading in the dot notation used in
+     * MongoDB projections, which means array indexes are left out.
+     *
+     * @return The path to the temperature reading, without array indexes.
+     */
+    String getTempProjection() {
+        StringBuilder projection = new StringBuilder();
+        for (String key : tempPath) {
+            if (key.chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            if (projection.length() > 0) {
+                projection.append('.');
+            }
+            projection.append(key);
+        }
+        return projection.toString();
+    }
+
+    /**
+     * Tells if the specified observation looks like it has this format, which it
+     * does if it has the top-level field holding the temperature.
+     *
+     * @param observation An observation, as returned by a weather API.
+     * @return <code>true</code> if the observation may have this format.
+     */
+    boolean matches(Document observation) {
+        return observation.containsKey(tempPath[0]);
+    }
+
+    /**
+     * Returns the temperature reading in the specified observation.
+     *
+     * @param observation An observation of this format.
+     * @return The temperature reading in degrees Celsius, or <code>null</code>
+     *         if the observation does not contain a temperature.
+     */
+    Double readTemp(Document observation) {
+        Double reading = readDouble(observation, tempPath);
+        return reading == null ? null : toCelsius(reading);
+    }
+
+    /**
+     * Converts the specified temperature from the unit of this format to
+     * degrees Celsius.
+     *
+     * @param reading A temperature, in the unit of this format.
+     * @return The same temperature, in degrees Celsius.
+     */
+    double toCelsius(double reading) {
+        switch (tempUnit) {
+            case KELVIN:
+                return reading - TemperatureExtractor.ZERO_CELSIUS_IN_KELVIN;
+            case FAHRENHEIT:
+                return (reading - ZERO_CELSIUS_IN_FAHRENHEIT) / FAHRENHEIT_PER_CELSIUS;
+            default:
+                return reading;
+        }
+    }
+
+    /**
+     * @param observation An observation of this format.
+     * @return The relative humidity in percent, or <code>null</code> if the
+     *         observation does not contain a humidity.
+     */
+    Double readHumidity(Document observation) {
+        return readDouble(observation, humidityPath);
+    }
+
+    /**
+     * @param observation An observation of this format.
+     * @return The air pressure in hPa, or <code>null</code> if the observation
+     *         does not contain a pressure.
+     */
+    Double readPressure(Document observation) {
+        return readDouble(observation, pressurePath);
+    }
+
+    /**
+     * @param observation An observation of this format.
+     * @return The wind speed in m/s, or <code>null</code> if the observation
+     *         does not contain a wind speed.
+     */
+    Double readWindSpeed(Document observation) {
+        return readDouble(observation, windSpeedPath);
+    }
+
+    /**
+     * Returns the time when the specified observation was made.
+     *
+     * @param observation An observation of this format.
+     * @return The observation time, in seconds since the epoch, or
+     *         <code>null</code> if the observation does not contain a time.
+     */
+    Long readObservationTime(Document observation) {
+        Object time = read(observation, timePath);
+        if (!(time instanceof Number)) {
+            return null;
+        }
+        return ((Number) time).longValue();
+    }
+
+    /**
+     * Returns the name of the city given in the specified observation.
+     *
+     * @param observation An observation of this format.
+     * @return The city name, or <code>null</code> if the observation does not
+     *         contain a city name.
+     */
+    String readCity(Document observation) {
+        Object city = read(observation, cityPath);
+        return city instanceof String ? (String) city : null;
+    }
+
+    private String[] toPath(String dotNotation) {
+        return dotNotation == null ? null : dotNotation.split(PATH_DELIMITER);
+    }
+
+    private Double readDouble(Document observation, String[] path) {
+        Object value = read(observation, path);
+        if (!(value instanceof Number)) {
+            return null;
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    private Object read(Document observation, String[] path) {
+        if (path == null) {
+            return null;
+        }
+        Object current = observation;
+        for (String key : path) {
+            if (current instanceof Document) {
+                current = ((Document) current).get(key);
+            } else if (current instanceof List) {
+                List<?> list = (List<?>) current;
+                int index = Integer.parseInt(key);
+                current = index < list.size() ? list.get(index) : null;
+            } else {
+                return null;
+            }
+        }
+        return current;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * The observation formats of all configured providers. Tells which provider
+ * produced an observation, and in which city it was made. Observations loaded
+ * by this program are tagged with their source, see
+ * {@link WeatherSource#tag(String)}, and the provider and city are then read
+ * from the tag. Observations stored before they were tagged are identified by
+ * their structure, the first configured format that matches the observation is
+ * used, see {@link ObservationFormat#matches(Document)}.
+ */
+class ObservationFormats {
+    private final Map<String, ObservationFormat> formats = new LinkedHashMap<>();
+
+    /**
+     * Creates a new instance with the formats of the specified providers.
+     *
+     * @param providers The configured providers.
+     */
+    ObservationFormats(List<ProviderConfig> providers) {
+        for (ProviderConfig provider : providers) {
+            formats.put(provider.getName(), provider.getFormat());
+        }
+    }
+
+    /**
+     * Creates a new instance with the formats of the providers in the source
+     * configuration, see {@link WeatherSourceRegistry}.
+     */
+    ObservationFormats() {
+        this(new WeatherSourceRegistry().getProviders());
+    }
+
+    /**
+     * Returns the format of the specified provider.
+     *
+     * @param providerName The name of a provider, or <code>null</code>.
+     * @return The format of the provider, or <code>null</code> if the provider
+     *         is not configured.
+     */
+    ObservationFormat get(String providerName) {
+        return providerName == null ? null : formats.get(providerName);
+    }
+
+    /**
+     * Returns the name of the provider that produced the specified observation.
+     *
+     * @param observation A stored observation.
+     * @return The name of the provider, or <code>null</code> if the observation
+     *         has no source tag, and does not match any configured format.
+     */
+    String providerOf(Document observation) {
+        Document source = observation.get(WeatherSource.SOURCE_FIELD, Document.class);
+        if (source != null) {
+            return source.getString(WeatherSource.PROVIDER_FIELD);
+        }
+        for (Map.Entry<String, ObservationFormat> format : formats.entrySet()) {
+            if (format.getValue().matches(observation)) {
+                return format.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the city where the specified observation was made.
+     * This is the city of the observation's source, as configured. For an
+     * observation without source tag, it is the city given in the observation.
+     *
+     * @param observation A stored observation.
+     * @return The name of the city, or <code>null</code> if it is not known.
+     */
+    String cityOf(Document observation) {
+        Document source = observation.get(WeatherSource.SOURCE_FIELD, Document.class);
+        if (source != null) {
+            return source.getString(WeatherSource.CITY_FIELD);
+        }
+        ObservationFormat format = get(providerOf(observation));
+        return format == null ? null : format.readCity(observation);
+    }
+
+    /**
+     * Returns the first configured format whose temperature is below the
+     * specified top-level field.
+     *
+     * @param fieldName The name of a top-level field in an observation.
+     * @return The first matching format, or <code>null</code> if there is none.
+     */
+    ObservationFormat withTempBelow(String fieldName) {
+        for (ObservationFormat format : formats.values()) {
+            if (format.getTempPath()[0].equals(fieldName)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The temperature paths of all configured formats, in the dot
+     *         notation used in MongoDB projections.
+     */
+    List<String> getTempProjections() {
+        List<String> projections = new ArrayList<>();
+        for (ObservationFormat format : formats.values()) {
+            projections.add(format.getTempProjection());
+        }
+        return projections;
+    }
+}
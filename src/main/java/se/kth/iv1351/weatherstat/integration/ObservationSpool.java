@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, append-only, file holding observations that could not be stored in
+ * the database. Each observation is stored on its own line, in the JSON format
+ * returned by the weather API. Appended observations are flushed to disk before
+ * {@link #append(List)} returns, which means they are not lost if the program
+ * crashes. Spooled observations are later stored in the database by
+ * {@link #replay(Consumer, int)}. The name of the file is read from the
+ * environment variable WEATHERSTAT_SPOOL_FILE (default
+ * {@value #DEFAULT_SPOOL_FILE}). This class is thread safe.
+ */
+public class ObservationSpool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationSpool.class);
+    private static final String DEFAULT_SPOOL_FILE = "weatherstat-spool.jsonl";
+    private static final String REPLAY_SUFFIX = ".replaying";
+    private static final String OFFSET_SUFFIX = ".offset";
+    private static final String NEW_OFFSET_SUFFIX = ".offset.new";
+    private final Path spoolFile;
+    private final Path replayFile;
+    private final Path offsetFile;
+    private final Path newOffsetFile;
+    private final Object replayLock = new Object();
+
+    /**
+     * Creates a new instance, using the configured spool file. Observations
+     * spooled by an earlier run of the program are kept, and will be replayed.
+     */
+    public ObservationSpool() {
+        this(configuredSpoolFile());
+    }
+
+    /**
+     * Creates a new instance, using the specified spool file instead of the
+     * configured one.
+     *
+     * @param spoolFile The spool file.
+     */
+    ObservationSpool(Path spoolFile) {
+        this.spoolFile = spoolFile.toAbsolutePath();
+        replayFile = Paths.get(this.spoolFile + REPLAY_SUFFIX);
+        offsetFile = Paths.get(this.spoolFile + OFFSET_SUFFIX);
+        newOffsetFile = Paths.get(this.spoolFile + NEW_OFFSET_SUFFIX);
+    }
+
+    /**
+     * Appends the specified observations to the spool, and flushes them to disk.
+     * Appending is not blocked by a replay in progress.
+     *
+     * @param observations The observations to append.
+     * @throws IOException If unable to write the spool file.
+     */
+    public synchronized void append(List<String> observations) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (String observation : observations) {
+            lines.append(toSingleLine(observation)).append('\n');
+        }
+        try (FileChannel spool = FileChannel.open(spoolFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                  StandardOpenOption.APPEND)) {
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                spool.write(bytes);
+            }
+            spool.force(false);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there are spooled observations that have not
+     *         been replayed.
+     */
+    public synchronized boolean hasPending() {
+        return Files.exists(spoolFile) || Files.exists(replayFile);
+    }
+
+    /**
+     * Passes all spooled observations, in chunks and in the order they were
+     * appended, to the specified consumer, which is expected to store them. The
+     * spooled observations are first moved to a separate file, which is then
+     * read without blocking {@link #append(List)}. Observations appended during
+     * replay are kept for the next replay. After each chunk for which the
+     * consumer returns normally, the position in the file is saved, so that a
+     * stored chunk is not replayed again, also if the program stops during the
+     * replay. If the consumer throws an exception, replay stops, the failing
+     * chunk and all later chunks are kept, and the exception is rethrown. Only
+     * one replay runs at a time, a concurrent call waits for the running replay
+     * to finish.
+     *
+     * @param store     Stores a chunk of observations.
+     * @param chunkSize The highest number of observations in a chunk.
+     * @return The number of replayed observations.
+     * @throws IOException If unable to read or write the spool file.
+     */
+    public long replay(Consumer<List<String>> store, int chunkSize) throws IOException {
+        synchronized (replayLock) {
+            if (!takeSpoolForReplay()) {
+                return 0;
+            }
+            long replayed = 0;
+            long offset = readOffset();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(replayFile))) {
+                in.skipNBytes(offset);
+                List<String> chunk = new ArrayList<>(chunkSize);
+                long chunkEnd = offset;
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                for (int next = in.read(); next != -1; next = in.read()) {
+                    chunkEnd++;
+                    if (next != '\n') {
+                        line.write(next);
+                        continue;
+                    }
+                    addIfNotBlank(line, chunk);
+                    if (chunk.size() == chunkSize) {
+                        store.accept(chunk);
+                        replayed += chunk.size();
+                        chunk.clear();
+                        saveOffset(chunkEnd);
+                    }
+                }
+                addIfNotBlank(line, chunk);
+                if (!chunk.isEmpty()) {
+                    store.accept(chunk);
+                    replayed += chunk.size();
+                }
+            }
+            Files.delete(replayFile);
+            Files.deleteIfExists(offsetFile);
+            LOGGER.info("Replayed " + replayed + " spooled observations.");
+            return replayed;
+        }
+    }
+
+    /**
+     * Moves the spool file to the replay file, unless an earlier replay was not
+     * completed, in which case that replay file is replayed first. The offset
+     * of an earlier replay is removed before a new replay file is created.
+     *
+     * @return <code>true</code> if there is a file to replay.
+     */
+    private synchronized boolean takeSpoolForReplay() throws IOException {
+        if (Files.exists(replayFile)) {
+            return true;
+        }
+        if (!Files.exists(spoolFile)) {
+            return false;
+        }
+        Files.deleteIfExists(offsetFile);
+        Files.move(spoolFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private static Path configuredSpoolFile() {
+        String configuredFile = System.getenv("WEATHERSTAT_SPOOL_FILE");
+        return Paths.get(configuredFile == null ? DEFAULT_SPOOL_FILE : configuredFile);
+    }
+
+    private long readOffset() throws IOException {
+        if (!Files.exists(offsetFile)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(offsetFile, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Writes the offset to a new file, which is flushed to disk and then
+     * replaces the offset file, so that the offset file always holds a complete
+     * offset.
+     */
+    private void saveOffset(long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(newOffsetFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+        Files.move(newOffsetFile, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void addIfNotBlank(ByteArrayOutputStream line, List<String> chunk) {
+        String observation = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        if (!observation.isBlank()) {
+            chunk.add(observation);
+        }
+    }
+
+    /**
+     * Line breaks are only allowed as whitespace between JSON tokens, never inside
+     * string values, and can therefore be replaced by spaces.
+     */
+    private String toSingleLine(String observation) {
+        return observation.replace('\r', ' ').replace('\n', ' ');
+    }
+}
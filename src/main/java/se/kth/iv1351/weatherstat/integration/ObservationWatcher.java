@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Follows the inserts to the normalised observations, made by any process, and
+ * passes the temperature readings to a listener, in a thread of its own. First,
+ * the readings that are already stored and match a filter are passed. Then,
+ * inserts are followed with a change stream, which is resumed after network
+ * failures. Change streams require a replica set, if the server does not
+ * support them, the collection is instead polled every WEATHERDB_WATCH_POLL_MS
+ * (default {@value #DEFAULT_POLL_INTERVAL_MS}) milliseconds for observations
+ * with a recent <code>_id</code>. If the stored readings can not be passed
+ * because of a failure, or a change stream can not be resumed, some readings
+ * are missed.
+ * <p>
+ * Each reading is passed once, provided it is inserted within
+ * {@value #INSERT_LAG_SECONDS} seconds after its <code>_id</code> was created.
+ * To achieve this, the ids of readings passed during the last
+ * {@value #INSERT_LAG_SECONDS} seconds are remembered, and readings with those
+ * ids are not passed again.
+ */
+class ObservationWatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationWatcher.class);
+    private static final long INSERT_LAG_SECONDS = 60;
+    private static final long DEFAULT_POLL_INTERVAL_MS = 5000;
+    private static final long CHANGE_STREAM_AWAIT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final String ID_FIELD = "_id";
+    private static final String SOURCE_LABEL = "source";
+    private static final String WATCHED_METRIC = "weatherdb_watched_readings_total";
+    private static final Counter STORED_READINGS = Metrics.counter(WATCHED_METRIC, SOURCE_LABEL, "stored");
+    private static final Counter STREAMED_READINGS = Metrics.counter(WATCHED_METRIC, SOURCE_LABEL, "change_stream");
+    private static final Counter POLLED_READINGS = Metrics.counter(WATCHED_METRIC, SOURCE_LABEL, "poll");
+    private final MongoCollection<Document> observations;
+    private final Bson storedFilter;
+    private final Function<Document, TemperatureReading> toReading;
+    private final Consumer<List<TemperatureReading>> listener;
+    private final Set<ObjectId> recentlyPassed = new HashSet<>();
+    private final long pollIntervalMs;
+    private final Thread watcherThread = new Thread(this::watch, "observation-watcher");
+    private volatile boolean running;
+
+    /**
+     * Creates a new instance, that is not started.
+     *
+     * @param observations The collection to follow.
+     * @param storedFilter Selects the stored observations that are passed before
+     *                     inserts are followed.
+     * @param toReading    Reads the temperature reading of an observation, and
+     *                     returns <code>null</code> if there is none.
+     * @param listener     Receives the readings, in batches.
+     */
+    ObservationWatcher(MongoCollection<Document> observations, Bson storedFilter,
+                       Function<Document, TemperatureReading> toReading,
+                       Consumer<List<TemperatureReading>> listener) {
+        this.observations = observations;
+        this.storedFilter = storedFilter;
+        this.toReading = toReading;
+        this.listener = listener;
+        String configuredInterval = System.getenv("WEATHERDB_WATCH_POLL_MS");
+        this.pollIntervalMs = configuredInterval == null ? DEFAULT_POLL_INTERVAL_MS
+                : Long.parseLong(configuredInterval);
+        watcherThread.setDaemon(true);
+    }
+
+    /**
+     * Starts following inserts.
+     */
+    void start() {
+        running = true;
+        watcherThread.start();
+    }
+
+    /**
+     * Stops following inserts. The watcher thread stops within a second, or
+     * when the next poll is due.
+     */
+    void stop() {
+        running = false;
+    }
+
+    private void watch() {
+        BsonDocument resumeToken = null;
+        boolean storedPassed = false;
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> inserts = observations
+                    .watch(Collections.singletonList(Aggregates.match(Filters.eq("operationType", "insert"))))
+                    .maxAwaitTime(CHANGE_STREAM_AWAIT_MS, TimeUnit.MILLISECONDS).resumeAfter(resumeToken)
+                    .cursor()) {
+                if (!storedPassed) {
+                    storedPassed = true;
+                    passStored();
+                }
+                resumeToken = followChangeStream(inserts);
+            } catch (MongoCommandException changeStreamsNotSupported) {
+                if (resumeToken != null || storedPassed) {
+                    LOGGER.warn("Could not resume change stream, inserts made since the failure are missed.",
+                                changeStreamsNotSupported);
+                    resumeToken = null;
+                    pause(RETRY_DELAY_MS);
+                    continue;
+                }
+                LOGGER.warn("Change streams are not supported by the server, polling for inserts instead: "
+                        + changeStreamsNotSupported.getErrorMessage());
+                passStored();
+                pollForInserts();
+                return;
+            } catch (MongoException streamFailure) {
+                LOGGER.warn("Change stream failed, resuming.", streamFailure);
+                pause(RETRY_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Follows the specified change stream until stopped.
+     *
+     * @return The token needed to resume after the last received insert.
+     */
+    private BsonDocument followChangeStream(MongoChangeStreamCursor<ChangeStreamDocument<Document>> inserts) {
+        List<TemperatureReading> batch = new ArrayList<>();
+        BsonDocument resumeToken = inserts.getResumeToken();
+        while (running) {
+            ChangeStreamDocument<Document> insert = inserts.tryNext();
+            if (insert != null) {
+                resumeToken = insert.getResumeToken();
+                addIfNotPassed(insert.getFullDocument(), batch);
+            }
+            if (insert == null || batch.size() == MAX_BATCH_SIZE) {
+                forgetPassedBefore(Instant.now().getEpochSecond() - INSERT_LAG_SECONDS);
+                STREAMED_READINGS.add(batch.size());
+                pass(batch);
+            }
+        }
+        return resumeToken;
+    }
+
+    private void pollForInserts() {
+        while (running) {
+            long fromSecond = Instant.now().getEpochSecond() - INSERT_LAG_SECONDS;
+            forgetPassedBefore(fromSecond);
+            List<TemperatureReading> batch = new ArrayList<>();
+            try (MongoCursor<Document> recent = observations
+                    .find(Filters.gte(ID_FIELD, firstObjectIdAt(fromSecond))).sort(Sorts.ascending(ID_FIELD))
+                    .iterator()) {
+                while (recent.hasNext()) {
+                    addIfNotPassed(recent.next(), batch);
+                }
+            } catch (MongoException pollFailure) {
+                LOGGER.warn("Could not poll for inserted observations.", pollFailure);
+            }
+            POLLED_READINGS.add(batch.size());
+            pass(batch);
+            pause(pollIntervalMs);
+        }
+    }
+
+    private void passStored() {
+        long recentSecond = Instant.now().getEpochSecond() - INSERT_LAG_SECONDS;
+        List<TemperatureReading> batch = new ArrayList<>();
+        for (Document observation : observations.find(storedFilter)) {
+            TemperatureReading reading = toReading.apply(observation);
+            if (reading == null) {
+                continue;
+            }
+            ObjectId id = observation.getObjectId(ID_FIELD);
+            if (Integer.toUnsignedLong(id.getTimestamp()) >= recentSecond) {
+                recentlyPassed.add(id);
+            }
+            batch.add(reading);
+            if (batch.size() == MAX_BATCH_SIZE) {
+                STORED_READINGS.add(batch.size());
+                pass(batch);
+            }
+        }
+        STORED_READINGS.add(batch.size());
+        pass(batch);
+    }
+
+    private void addIfNotPassed(Document observation, List<TemperatureReading> batch) {
+        if (observation == null || !recentlyPassed.add(observation.getObjectId(ID_FIELD))) {
+            return;
+        }
+        TemperatureReading reading = toReading.apply(observation);
+        if (reading != null) {
+            batch.add(reading);
+        }
+    }
+
+    private void forgetPassedBefore(long epochSecond) {
+        recentlyPassed.removeIf(id -> Integer.toUnsignedLong(id.getTimestamp()) < epochSecond);
+    }
+
+    /**
+     * Passes the specified readings to the listener, and clears the specified
+     * list.
+     */
+    private void pass(List<TemperatureReading> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            listener.accept(new ArrayList<>(batch));
+        } catch (RuntimeException listenerFailure) {
+            LOGGER.error("Watch listener failed.", listenerFailure);
+        }
+        batch.clear();
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            running = false;
+        }
+    }
+
+    private ObjectId firstObjectIdAt(long epochSecond) {
+        return new ObjectId(String.format("%08x%016x", epochSecond, 0));
+    }
+}
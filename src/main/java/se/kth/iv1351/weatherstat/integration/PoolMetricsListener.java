@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Records utilisation of the MongoDB driver's connection pool in
+ * {@link Metrics}: the number of open and checked out connections, how long
+ * threads wait to check out a connection, and how many check outs fail, for
+ * example because the pool is exhausted and the wait time has passed.
+ */
+class PoolMetricsListener implements ConnectionPoolListener {
+    private final AtomicLong openConnections = new AtomicLong();
+    private final AtomicLong checkedOutConnections = new AtomicLong();
+    private final ThreadLocal<Long> checkOutStartNanos = new ThreadLocal<>();
+    private final Histogram checkOutWait = Metrics.histogram("weatherdb_pool_checkout_wait_micros");
+    private final Counter checkOutFailures = Metrics.counter("weatherdb_pool_checkout_failures_total");
+
+    /**
+     * Creates a new instance, and registers the gauges of the pool.
+     *
+     * @param maxPoolSize The highest number of connections in the pool.
+     */
+    PoolMetricsListener(int maxPoolSize) {
+        Metrics.gauge("weatherdb_pool_connections_open", openConnections::get);
+        Metrics.gauge("weatherdb_pool_connections_checked_out", checkedOutConnections::get);
+        Metrics.gauge("weatherdb_pool_connections_max", () -> maxPoolSize);
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        openConnections.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        openConnections.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        checkOutStartNanos.set(System.nanoTime());
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        checkedOutConnections.incrementAndGet();
+        recordCheckOutWait();
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        checkOutFailures.increment();
+        recordCheckOutWait();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOutConnections.decrementAndGet();
+    }
+
+    private void recordCheckOutWait() {
+        Long startNanos = checkOutStartNanos.get();
+        if (startNanos != null) {
+            checkOutWait.recordMicrosSince(startNanos);
+            checkOutStartNanos.remove();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * The configuration of one weather API, as read from the source configuration
+ * file. See {@link WeatherSourceRegistry} for a description of the file format.
+ */
+public class ProviderConfig {
+    private static final String CITY_PLACEHOLDER = "{city}";
+    private static final String KEY_PLACEHOLDER = "{key}";
+    private final String name;
+    private final String urlTemplate;
+    private final String keyEnvVar;
+    private final int maxRequestsPerMinute;
+    private final Duration pollingInterval;
+    private final List<String> cities;
+    private final ObservationFormat format;
+
+    ProviderConfig(Document config) {
+        name = requireField(config, "name").toString();
+        urlTemplate = requireField(config, "urlTemplate").toString();
+        keyEnvVar = config.getString("keyEnvVar");
+        maxRequestsPerMinute = ((Number) requireField(config, "maxRequestsPerMinute")).intValue();
+        pollingInterval = Duration.ofMinutes(((Number) requireField(config, "pollingIntervalMinutes")).longValue());
+        cities = new ArrayList<>(config.getList("cities", String.class, Collections.emptyList()));
+        format = new ObservationFormat(name, (Document) requireField(config, "format"));
+        if (maxRequestsPerMinute < 1) {
+            throw new IllegalArgumentException("maxRequestsPerMinute of " + name + " must be positive.");
+        }
+        if (pollingInterval.isZero() || pollingInterval.isNegative()) {
+            throw new IllegalArgumentException("pollingIntervalMinutes of " + name + " must be positive.");
+        }
+    }
+
+    /**
+     * @return The name of the provider.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The highest number of requests per minute the provider accepts.
+     */
+    public int getMaxRequestsPerMinute() {
+        return maxRequestsPerMinute;
+    }
+
+    /**
+     * @return The interval between two observations of the same city.
+     */
+    public Duration getPollingInterval() {
+        return pollingInterval;
+    }
+
+    /**
+     * @return All cities observed at this provider.
+     */
+    public List<String> getCities() {
+        return Collections.unmodifiableList(cities);
+    }
+
+    /**
+     * @return The format of the observations returned by this provider.
+     */
+    ObservationFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return One source for each city observed at this provider.
+     */
+    public List<WeatherSource> getSources() {
+        String key = keyEnvVar == null ? "" : System.getenv(keyEnvVar);
+        List<WeatherSource> sources = new ArrayList<>();
+        for (String city : cities) {
+            String urlWithoutKey = urlTemplate.replace(CITY_PLACEHOLDER, encode(city));
+            String url = urlWithoutKey.replace(KEY_PLACEHOLDER, encode(key == null ? "" : key));
+            sources.add(new WeatherSource(name, city, url, urlWithoutKey.replace(KEY_PLACEHOLDER, "")));
+        }
+        return sources;
+    }
+
+    private String encode(String urlParam) {
+        return URLEncoder.encode(urlParam, StandardCharsets.UTF_8);
+    }
+
+    private Object requireField(Document config, String fieldName) {
+        Object value = config.get(fieldName);
+        if (value == null) {
+            throw new IllegalArgumentException("Provider configuration lacks " + fieldName + ": " + config.toJson());
+        }
+        return value;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells how to answer a statistics query over a time range using as few
+ * documents as possible. The range is split into parts covered by whole months,
+ * whole days and whole hours, where each part uses the coarsest rollup that
+ * fits, and at most two raw parts at the ends of the range, that do not cover
+ * a whole hour, and must be answered from the observations. All rollups are in
+ * UTC.
+ */
+class RollupPlan {
+    private static final Granularity[] FINEST_FIRST = {Granularity.HOUR, Granularity.DAY, Granularity.MONTH};
+    private final List<Range> rollupRanges = new ArrayList<>();
+    private final List<Range> rawRanges = new ArrayList<>();
+
+    /**
+     * The length of the time period summarized by a rollup document.
+     */
+    enum Granularity {
+        HOUR("hour"), DAY("day"), MONTH("month");
+
+        private final String bucketName;
+
+        private Granularity(String bucketName) {
+            this.bucketName = bucketName;
+        }
+
+        /**
+         * @param bucketName The name of a granularity, as stored in rollup
+         *                   documents.
+         * @return The granularity with the specified name.
+         * @throws IllegalArgumentException If there is no such granularity.
+         */
+        static Granularity ofBucketName(String bucketName) {
+            for (Granularity granularity : values()) {
+                if (granularity.bucketName.equals(bucketName)) {
+                    return granularity;
+                }
+            }
+            throw new IllegalArgumentException("No granularity named " + bucketName);
+        }
+
+        /**
+         * @return The name of this granularity, as stored in rollup documents.
+         */
+        String getBucketName() {
+            return bucketName;
+        }
+
+        /**
+         * @param start The start of a period of this granularity.
+         * @return The start of the next period.
+         */
+        Instant next(Instant start) {
+            return ceil(start.plusMillis(1));
+        }
+
+        /**
+         * @param instant Any instant.
+         * @return The start of the period of this granularity that contains the
+         *         specified instant.
+         */
+        Instant floor(Instant instant) {
+            switch (this) {
+            case HOUR:
+                return instant.truncatedTo(ChronoUnit.HOURS);
+            case DAY:
+                return instant.truncatedTo(ChronoUnit.DAYS);
+            default:
+                return ZonedDateTime.ofInstant(instant, ZoneOffset.UTC).toLocalDate().withDayOfMonth(1)
+                                    .atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+        }
+
+        /**
+         * @param instant Any instant.
+         * @return The specified instant if it is the start of a period of this
+         *         granularity, otherwise the start of the next period.
+         */
+        Instant ceil(Instant instant) {
+            Instant start = floor(instant);
+            if (start.equals(instant)) {
+                return instant;
+            }
+            switch (this) {
+            case HOUR:
+                return start.plus(1, ChronoUnit.HOURS);
+            case DAY:
+                return start.plus(1, ChronoUnit.DAYS);
+            default:
+                return ZonedDateTime.ofInstant(start, ZoneOffset.UTC).plusMonths(1).toInstant();
+            }
+        }
+    }
+
+    /**
+     * A part of the planned time range. The start is inclusive and the end is
+     * exclusive.
+     */
+    static class Range {
+        private final Granularity granularity;
+        private final Instant from;
+        private final Instant to;
+
+        private Range(Granularity granularity, Instant from, Instant to) {
+            this.granularity = granularity;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @return The granularity of the rollups covering this part, or
+         *         <code>null</code> if this part must be read from the
+         *         observations.
+         */
+        Granularity getGranularity() {
+            return granularity;
+        }
+
+        Instant getFrom() {
+            return from;
+        }
+
+        Instant getTo() {
+            return to;
+        }
+    }
+
+    /**
+     * Plans a query over the specified time range.
+     *
+     * @param from The start of the time range, inclusive.
+     * @param to   The end of the time range, exclusive.
+     */
+    RollupPlan(Instant from, Instant to) {
+        split(from, to, 0);
+    }
+
+    /**
+     * @return The parts that are covered by whole rollup periods, coarsest
+     *         granularity first.
+     */
+    List<Range> getRollupRanges() {
+        List<Range> coarsestFirst = new ArrayList<>(rollupRanges);
+        coarsestFirst.sort((range, other) -> other.granularity.compareTo(range.granularity));
+        return Collections.unmodifiableList(coarsestFirst);
+    }
+
+    /**
+     * @return The parts that must be read from the observations.
+     */
+    List<Range> getRawRanges() {
+        return Collections.unmodifiableList(rawRanges);
+    }
+
+    /**
+     * Splits a range that is aligned to the granularity below the specified
+     * level, or not aligned at all if the level is zero.
+     */
+    private void split(Instant from, Instant to, int level) {
+        Granularity granularity = FINEST_FIRST[level];
+        Instant alignedFrom = granularity.ceil(from);
+        Instant alignedTo = granularity.floor(to);
+        if (!alignedFrom.isBefore(alignedTo)) {
+            addBelow(from, to, level);
+            return;
+        }
+        addBelow(from, alignedFrom, level);
+        if (level + 1 < FINEST_FIRST.length) {
+            split(alignedFrom, alignedTo, level + 1);
+        } else {
+            rollupRanges.add(new Range(granularity, alignedFrom, alignedTo));
+        }
+        addBelow(alignedTo, to, level);
+    }
+
+    private void addBelow(Instant from, Instant to, int level) {
+        if (!from.isBefore(to)) {
+            return;
+        }
+        if (level == 0) {
+            rawRanges.add(new Range(null, from, to));
+        } else {
+            rollupRanges.add(new Range(FINEST_FIRST[level - 1], from, to));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+
+/**
+ * Extracts the temperature reading from an observation, and converts it to
+ * degrees Celsius. The reading is looked up using the temperature path and unit
+ * of the provider that produced the observation, see {@link ObservationFormat}.
+ * Observations from unknown providers are flattened, and a field named
+ * <code>temp</code> on any level is assumed to hold the temperature. Since the
+ * unit of such a reading is not known, readings above
+ * {@value #KELVIN_THRESHOLD} are assumed to be in Kelvin, the others in
+ * degrees Celsius.
+ * <p>
+ * Observations read from the database can be handled as raw BSON. The BSON is
+ * then read as a stream, no document is decoded, values that are not on the
+ * temperature path are skipped, and reading stops as soon as the temperature
+ * is found.
+ */
+class TemperatureExtractor {
+    /**
+     * Readings of unknown unit above this value are assumed to be in Kelvin.
+     */
+    static final double KELVIN_THRESHOLD = 200;
+    /**
+     * The freezing point of water, in Kelvin.
+     */
+    static final double ZERO_CELSIUS_IN_KELVIN = 273.15;
+    private static final String TEMP_FIELD_NAME = "temp";
+    private final DocumentCodec documentCodec = new DocumentCodec();
+    private final ObservationFormats formats;
+
+    /**
+     * Creates a new instance, that reads observations of the formats in the
+     * source configuration.
+     */
+    TemperatureExtractor() {
+        this(new ObservationFormats());
+    }
+
+    /**
+     * Creates a new instance, that reads observations of the specified formats.
+     *
+     * @param formats The formats of all known providers.
+     */
+    TemperatureExtractor(ObservationFormats formats) {
+        this.formats = formats;
+    }
+
+    /**
+     * Returns the temperature reading in the specified observation.
+     *
+     * @param observation The observation to read.
+     * @return The temperature in degrees Celsius, or <code>null</code> if the
+     *         observation has no temperature reading.
+     */
+    Double extract(Document observation) {
+        ObservationFormat format = formats.get(formats.providerOf(observation));
+        if (format != null) {
+            Double reading = format.readTemp(observation);
+            if (reading != null) {
+                return reading;
+            }
+        }
+        return extractByFlattening(observation);
+    }
+
+    /**
+     * Returns the temperature reading in the specified observation, without
+     * decoding it. If the observation is tagged with its source, the tag must
+     * precede the temperature, as it does in observations tagged by
+     * {@link WeatherSource#tag(String)}.
+     *
+     * @param observation The observation to read.
+     * @return The temperature in degrees Celsius, or <code>null</code> if the
+     *         observation has no temperature reading.
+     */
+    Double extract(RawBsonDocument observation) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(observation.getByteBuffer().asNIO())) {
+            reader.readStartDocument();
+            ObservationFormat taggedFormat = null;
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String fieldName = reader.readName();
+                if (WeatherSource.SOURCE_FIELD.equals(fieldName)) {
+                    taggedFormat = formats.get(readTaggedProvider(reader));
+                    if (taggedFormat == null) {
+                        break;
+                    }
+                    continue;
+                }
+                ObservationFormat format = taggedFormat != null ? taggedFormat : formats.withTempBelow(fieldName);
+                if (format == null || !format.getTempPath()[0].equals(fieldName)) {
+                    reader.skipValue();
+                    continue;
+                }
+                Double reading = readNumberAt(reader, format.getTempPath(), 1);
+                if (reading != null) {
+                    return format.toCelsius(reading);
+                }
+                break;
+            }
+        }
+        return extractByFlattening(observation.decode(documentCodec));
+    }
+
+    /**
+     * Returns the temperature reading in the specified observation, by
+     * flattening the entire document and looking for a field named
+     * <code>temp</code>. This is slower than {@link #extract(Document)}, but does
+     * not require the provider to be known.
+     *
+     * @param observation The observation to read.
+     * @return The temperature in degrees Celsius, or <code>null</code> if the
+     *         observation has no temperature reading.
+     */
+    Double extractByFlattening(Document observation) {
+        Map<String, Object> flattenedDoc = flattenDoc(observation);
+        return convertToCelsius(convertTempToDouble(flattenedDoc.get(TEMP_FIELD_NAME)));
+    }
+
+    /**
+     * Reads the provider name in the source tag, at which the reader shall be
+     * positioned.
+     */
+    private String readTaggedProvider(BsonReader reader) {
+        if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+            reader.skipValue();
+            return null;
+        }
+        String provider = null;
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.readName().equals(WeatherSource.PROVIDER_FIELD)
+                    && reader.getCurrentBsonType() == BsonType.STRING) {
+                provider = reader.readString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return provider;
+    }
+
+    /**
+     * Reads the value at the specified path. The reader shall be positioned at
+     * the value of the path element preceding <code>pathIndex</code>. If the
+     * value is not found, the reader is left in an unspecified state.
+     */
+    private Double readNumberAt(BsonReader reader, String[] path, int pathIndex) {
+        BsonType type = reader.getCurrentBsonType();
+        if (pathIndex == path.length) {
+            return readNumber(reader, type);
+        }
+        if (type == BsonType.DOCUMENT) {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                if (reader.readName().equals(path[pathIndex])) {
+                    return readNumberAt(reader, path, pathIndex + 1);
+                }
+                reader.skipValue();
+            }
+        } else if (type == BsonType.ARRAY) {
+            int wantedIndex = Integer.parseInt(path[pathIndex]);
+            reader.readStartArray();
+            for (int i = 0; reader.readBsonType() != BsonType.END_OF_DOCUMENT; i++) {
+                if (i == wantedIndex) {
+                    return readNumberAt(reader, path, pathIndex + 1);
+                }
+                reader.skipValue();
+            }
+        }
+        return null;
+    }
+
+    private Double readNumber(BsonReader reader, BsonType type) {
+        switch (type) {
+            case DOUBLE:
+                return reader.readDouble();
+            case INT32:
+                return (double) reader.readInt32();
+            case INT64:
+                return (double) reader.readInt64();
+            case DECIMAL128:
+                return reader.readDecimal128().doubleValue();
+            default:
+                return null;
+        }
+    }
+
+    private Map<String, Object> flattenDoc(Document doc) {
+        Map<String, Object> flattenedDoc = new HashMap<>();
+        for (String fieldName : doc.keySet()) {
+            Object value = doc.get(fieldName);
+            if (value instanceof Document) {
+                flattenedDoc.putAll(flattenDoc((Document) value));
+            } else if (value instanceof List) {
+                for (Object element : (List) value) {
+                    if (element instanceof Document) {
+                        flattenedDoc.putAll(flattenDoc((Document) element));
+                    }
+                }
+            } else {
+                flattenedDoc.put(fieldName, value);
+            }
+        }
+        return flattenedDoc;
+    }
+
+    private Double convertTempToDouble(Object temperature) {
+        if (!(temperature instanceof Number)) {
+            return null;
+        }
+        return Double.valueOf(((Number) temperature).doubleValue());
+    }
+
+    private Double convertToCelsius(Double degrees) {
+        if (degrees == null) {
+            return null;
+        }
+        if (isInKelvin(degrees)) {
+            return degrees - ZERO_CELSIUS_IN_KELVIN;
+        } else {
+            return degrees;
+        }
+    }
+
+    private boolean isInKelvin(Double degrees) {
+        return degrees > KELVIN_THRESHOLD;
+    }
+}
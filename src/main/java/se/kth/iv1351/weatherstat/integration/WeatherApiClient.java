@@ -23,62 +23,455 @@
 
 package se.kth.iv1351.weatherstat.integration;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import se.kth.iv1351.weatherstat.util.Metrics;
 
 /**
- * This class is responsible for calling weather apis. Two hardcoded APIs are
- * used, openweathermap,org and weatherbit.io. The API keys shall be stored in
- * the environment variables OPENWEATHERMAP_KEY and WEATHERBIT_KEY.
+ * This class is responsible for calling weather apis. The APIs, and the cities
+ * observed at each API, are read from the source configuration, see
+ * {@link WeatherSourceRegistry}. The default configuration uses
+ * openweathermap,org and weatherbit.io, whose API keys shall be stored in the
+ * environment variables OPENWEATHERMAP_KEY and WEATHERBIT_KEY.
+ * <p>
+ * All APIs are called concurrently, using one shared HTTP client, which means
+ * connections are reused between loads. The timeout of each request is read
+ * from the environment variable WEATHER_API_REQUEST_TIMEOUT_MS (default
+ * {@value #DEFAULT_REQUEST_TIMEOUT_MS}), and the total time a load may take is
+ * read from the environment variable WEATHER_API_DEADLINE_MS (default
+ * {@value #DEFAULT_DEADLINE_MS}).
+ * <p>
+ * A request that fails because of a network error, or because the API responds
+ * with status 429 or 5xx, is retried. At most WEATHER_API_MAX_ATTEMPTS (default
+ * {@value #DEFAULT_MAX_ATTEMPTS}) attempts are made, and the delay before a
+ * retry starts at WEATHER_API_RETRY_BACKOFF_MS (default
+ * {@value #DEFAULT_RETRY_BACKOFF_MS}) and is doubled for each retry, with
+ * random jitter. Each provider has a {@link CircuitBreaker}, that stops all
+ * requests to the provider after WEATHER_API_BREAKER_FAILURES (default
+ * {@value #DEFAULT_BREAKER_FAILURES}) consecutive failures, for
+ * WEATHER_API_BREAKER_OPEN_MS (default {@value #DEFAULT_BREAKER_OPEN_MS})
+ * milliseconds.
+ * <p>
+ * Responses are cached on disk, in the directory named by the environment
+ * variable WEATHER_API_CACHE_DIR (default {@value #DEFAULT_CACHE_DIR}), which
+ * holds at most WEATHER_API_CACHE_MAX_BYTES (default
+ * {@value #DEFAULT_CACHE_MAX_BYTES}) bytes. A maximum of zero disables the
+ * cache. Responses are cached under the URL of their source without the API
+ * key, which is added to the request only when it is sent to the provider.
+ * Thereby the cache holds no API keys, the price is that sources that differ
+ * only in API key share cache entries. A provider whose responses have an
+ * <code>ETag</code> or
+ * <code>Last-Modified</code> header is then called with a conditional request,
+ * and a provider whose responses may be cached is not called at all while the
+ * cached response is fresh. Responses that have not changed since the previous
+ * call, according to the cache, are not returned, since they would only be
+ * stored again.
+ * <p>
+ * Each returned response is tagged with the provider and city of its source,
+ * see {@link WeatherSource#tag(String)}.
+ * <p>
+ * The latency and response size of each request, and the number of failed
+ * requests, are recorded per provider in {@link Metrics}.
  */
 public class WeatherApiClient {
   private static final Logger LOGGER = LoggerFactory.getLogger(WeatherApiClient.class);
-  private List<String> weatherServices = new ArrayList<>();
+  private static final long DEFAULT_REQUEST_TIMEOUT_MS = 10_000;
+  private static final long DEFAULT_DEADLINE_MS = 30_000;
+  private static final long DEFAULT_MAX_ATTEMPTS = 3;
+  private static final long DEFAULT_RETRY_BACKOFF_MS = 500;
+  private static final long DEFAULT_BREAKER_FAILURES = 5;
+  private static final long DEFAULT_BREAKER_OPEN_MS = 60_000;
+  private static final String DEFAULT_CACHE_DIR = "weatherstat-http-cache";
+  private static final long DEFAULT_CACHE_MAX_BYTES = 10L * 1024 * 1024;
+  private static final int HTTP_NOT_MODIFIED = 304;
+  private static final int MAX_BACKOFF_DOUBLINGS = 10;
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+  private static final int HTTP_SERVER_ERROR = 500;
+  private static final String PROVIDER_LABEL = "provider";
+  private final WeatherSourceRegistry registry;
+  private final List<WeatherSource> weatherServices;
+  private final OkHttpClient client;
+  private final long deadlineMs;
+  private final int maxAttempts;
+  private final long retryBackoffMs;
+  private final int breakerFailures;
+  private final long breakerOpenMs;
+  private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+    Thread retryThread = new Thread(task, "weather-api-retry");
+    retryThread.setDaemon(true);
+    return retryThread;
+  });
 
   /**
-   * Creates a new instance and adds hardcoded APIs.
+   * Creates a new instance and reads the source configuration.
    */
   public WeatherApiClient() {
-    weatherServices.add(
-        "http://api.openweathermap.org/data/2.5/weather?q=stockholm,se&APPID=" + System.getenv("OPENWEATHERMAP_KEY"));
-    weatherServices
-        .add("https://api.weatherbit.io/v2.0/current?city=Stockolm&country=SE&key=" + System.getenv("WEATHERBIT_KEY"));
+    this(new WeatherSourceRegistry(), readLong("WEATHER_API_REQUEST_TIMEOUT_MS", DEFAULT_REQUEST_TIMEOUT_MS),
+        readLong("WEATHER_API_DEADLINE_MS", DEFAULT_DEADLINE_MS),
+        (int) Math.max(1, readLong("WEATHER_API_MAX_ATTEMPTS", DEFAULT_MAX_ATTEMPTS)),
+        readLong("WEATHER_API_RETRY_BACKOFF_MS", DEFAULT_RETRY_BACKOFF_MS),
+        (int) readLong("WEATHER_API_BREAKER_FAILURES", DEFAULT_BREAKER_FAILURES),
+        readLong("WEATHER_API_BREAKER_OPEN_MS", DEFAULT_BREAKER_OPEN_MS), createCache());
+  }
+
+  /**
+   * Creates a new instance with the specified sources and settings, instead of
+   * those given in the environment.
+   * 
+   * @param registry         The sources to call.
+   * @param requestTimeoutMs The timeout of each API call.
+   * @param deadlineMs       The time loading from all APIs may take.
+   * @param maxAttempts      The number of times a failed call is attempted.
+   * @param retryBackoffMs   The delay before the first retry.
+   * @param breakerFailures  The number of consecutive failures that opens a
+   *                         provider's circuit breaker.
+   * @param breakerOpenMs    For how long an open circuit breaker stays open.
+   * @param cache            The cache of API responses, or <code>null</code>
+   *                         if responses shall not be cached.
+   */
+  WeatherApiClient(WeatherSourceRegistry registry, long requestTimeoutMs, long deadlineMs, int maxAttempts,
+      long retryBackoffMs, int breakerFailures, long breakerOpenMs, Cache cache) {
+    this.registry = registry;
+    weatherServices = registry.getAllSources();
+    this.deadlineMs = deadlineMs;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoffMs = retryBackoffMs;
+    this.breakerFailures = breakerFailures;
+    this.breakerOpenMs = breakerOpenMs;
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+    client = new OkHttpClient.Builder().dispatcher(dispatcher).cache(cache)
+        .addNetworkInterceptor(WeatherApiClient::addApiKey).callTimeout(requestTimeoutMs, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * @return All configured providers.
+   */
+  public List<ProviderConfig> getProviders() {
+    return registry.getProviders();
+  }
+
+  /**
+   * Loads the current observation from the specified source. This method is
+   * blocking, and will not return until the API has responded, all retries
+   * have failed, or the circuit breaker of the provider has stopped the
+   * request.
+   * 
+   * @param source The source to call.
+   * @return The response, or <code>null</code> if all attempts failed, the
+   *         provider's circuit breaker is open, or the response has not changed
+   *         since the previous call.
+   */
+  public String load(WeatherSource source) {
+    CircuitBreaker breaker = breakerFor(source);
+    for (int attempt = 1;; attempt++) {
+      if (!breaker.allowRequest()) {
+        LOGGER.warn("Not calling " + source + ", its circuit breaker is open.");
+        return null;
+      }
+      Request request = toRequest(source);
+      long startNanos = System.nanoTime();
+      boolean retryable;
+      try (Response response = client.newCall(request).execute()) {
+        if (isUnchanged(response)) {
+          breaker.recordSuccess();
+          recordUnchanged(source, startNanos);
+          return null;
+        }
+        if (response.isSuccessful()) {
+          String responseBody = response.body().string();
+          breaker.recordSuccess();
+          return source.tag(recordSuccess(source, responseBody, startNanos));
+        }
+        retryable = isRetryable(response.code());
+        LOGGER.warn(source + " responded with HTTP status " + response.code() + ".");
+      } catch (IOException ioe) {
+        retryable = true;
+        LOGGER.warn("Could not load observation from " + source + ".", ioe);
+      }
+      breaker.recordFailure();
+      recordFailure(source, startNanos);
+      if (!retryable || attempt == maxAttempts || !sleep(backoffMillis(attempt))) {
+        LOGGER.error("Could not load observation from " + source + ", gave up after " + attempt + " attempts.");
+        return null;
+      }
+      Metrics.counter("weather_api_retries_total", PROVIDER_LABEL, source.getProviderName()).increment();
+    }
   }
 
   /**
    * Returns a list containing the responses from all registered APIs. Only
    * responses with HTTP status codes indicating success (starting with 2 or 3)
-   * are included, responses with other status codes are silently ignored.
+   * are included. Failed requests are retried, the same way as in
+   * {@link #load(WeatherSource)}, and providers whose circuit breakers are open
+   * are not called. All APIs are called concurrently, the time this method
+   * takes is therefore roughly the response time of the slowest API. Responses
+   * that have not arrived when the deadline has passed are cancelled and not
+   * included, and neither are responses that have not changed since the
+   * previous call. All sources are called at once, without regard to the
+   * providers' rate limits.
    * 
    * @return A list with responses from all registered APIs. The list will be
    *         empty if there were no registered APIs, or if there were no
    *         successful responses.
    */
   public List<String> loadFromAllApis() {
-    List<String> responses = new ArrayList<>();
+    return loadFromAllApis(failedSource -> {
+    });
+  }
 
-    OkHttpClient client = new OkHttpClient();
-    for (String weatherService : weatherServices) {
+  /**
+   * Same as {@link #loadFromAllApis()}, but also tells which sources failed.
+   * A source has failed if it has neither responded successfully nor with an
+   * unchanged response, because all attempts failed, its provider's circuit
+   * breaker was open, or the deadline passed.
+   *
+   * @param failureListener Called with each source that failed, in the calling
+   *                        thread, before this method returns.
+   * @return A list with responses from all registered APIs, see
+   *         {@link #loadFromAllApis()}.
+   */
+  public List<String> loadFromAllApis(Consumer<WeatherSource> failureListener) {
+    ConcurrentLoad load = new ConcurrentLoad();
+    for (int i = 0; i < weatherServices.size(); i++) {
+      load.start(i, 1);
+    }
+    load.awaitResponses();
 
-      Request request = new Request.Builder().url(weatherService).build();
-      try (Response response = client.newCall(request).execute()) {
-        if (response.isSuccessful()) {
-          responses.add(response.body().string());
+    List<String> successfulResponses = new ArrayList<>();
+    for (int i = 0; i < load.responses.length(); i++) {
+      if (load.responses.get(i) != null) {
+        successfulResponses.add(load.responses.get(i));
+      } else if (!load.unchangedSources.contains(i)) {
+        failureListener.accept(weatherServices.get(i));
+      }
+    }
+    return successfulResponses;
+  }
+
+  /**
+   * @return The number of sources called by {@link #loadFromAllApis()}.
+   */
+  public int getSourceCount() {
+    return weatherServices.size();
+  }
+
+  private CircuitBreaker breakerFor(WeatherSource source) {
+    return breakers.computeIfAbsent(source.getProviderName(), provider -> {
+      CircuitBreaker breaker = new CircuitBreaker(breakerFailures, breakerOpenMs);
+      Metrics.gauge("weather_api_breaker_open", () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1,
+                    PROVIDER_LABEL, provider);
+      return breaker;
+    });
+  }
+
+  private static Request toRequest(WeatherSource source) {
+    return new Request.Builder().url(source.getCacheUrl()).tag(WeatherSource.class, source).build();
+  }
+
+  /**
+   * Sends a request to a source with the API key added. The response is
+   * returned with the request without API key, which is the request stored in
+   * the cache. Requests that do not have the source's URL, such as redirects,
+   * are sent unchanged.
+   */
+  private static Response addApiKey(Interceptor.Chain chain) throws IOException {
+    Request request = chain.request();
+    WeatherSource source = request.tag(WeatherSource.class);
+    if (source == null || !request.url().equals(HttpUrl.get(source.getCacheUrl()))) {
+      return chain.proceed(request);
+    }
+    Response response = chain.proceed(request.newBuilder().url(source.getUrl()).build());
+    return response.newBuilder().request(request).build();
+  }
+
+  private static Cache createCache() {
+    long cacheMaxBytes = readLong("WEATHER_API_CACHE_MAX_BYTES", DEFAULT_CACHE_MAX_BYTES);
+    if (cacheMaxBytes <= 0) {
+      return null;
+    }
+    String cacheDir = System.getenv("WEATHER_API_CACHE_DIR");
+    return new Cache(new File(cacheDir == null ? DEFAULT_CACHE_DIR : cacheDir), cacheMaxBytes);
+  }
+
+  /**
+   * A response is unchanged if it was served by the cache, either without
+   * calling the provider, or after the provider answered a conditional request
+   * with 304 Not Modified.
+   */
+  private boolean isUnchanged(Response response) {
+    return response.cacheResponse() != null
+        && (response.networkResponse() == null || response.networkResponse().code() == HTTP_NOT_MODIFIED);
+  }
+
+  private boolean isRetryable(int statusCode) {
+    return statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= HTTP_SERVER_ERROR;
+  }
+
+  private long backoffMillis(int failedAttempts) {
+    long maxDelayMs = retryBackoffMs << Math.min(failedAttempts - 1, MAX_BACKOFF_DOUBLINGS);
+    return maxDelayMs / 2 + ThreadLocalRandom.current().nextLong(maxDelayMs / 2 + 1);
+  }
+
+  private boolean sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+      return true;
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private String recordSuccess(WeatherSource source, String responseBody, long startNanos) {
+    String provider = source.getProviderName();
+    Metrics.histogram("weather_api_request_micros", PROVIDER_LABEL, provider).recordMicrosSince(startNanos);
+    Metrics.histogram("weather_api_response_chars", PROVIDER_LABEL, provider).record(responseBody.length());
+    Metrics.counter("weather_api_requests_total", PROVIDER_LABEL, provider, "outcome", "success").increment();
+    return responseBody;
+  }
+
+  private void recordUnchanged(WeatherSource source, long startNanos) {
+    String provider = source.getProviderName();
+    Metrics.histogram("weather_api_request_micros", PROVIDER_LABEL, provider).recordMicrosSince(startNanos);
+    Metrics.counter("weather_api_requests_total", PROVIDER_LABEL, provider, "outcome", "unchanged").increment();
+  }
+
+  private void recordFailure(WeatherSource source, long startNanos) {
+    String provider = source.getProviderName();
+    Metrics.histogram("weather_api_request_micros", PROVIDER_LABEL, provider).recordMicrosSince(startNanos);
+    Metrics.counter("weather_api_requests_total", PROVIDER_LABEL, provider, "outcome", "failure").increment();
+  }
+
+  private static long readLong(String envVarName, long defaultValue) {
+    String configuredValue = System.getenv(envVarName);
+    return configuredValue == null ? defaultValue : Long.parseLong(configuredValue);
+  }
+
+  /**
+   * Calls all sources concurrently, and retries failed calls until the
+   * deadline has passed. The latch is counted down once per source, when the
+   * source has responded or no more attempts will be made.
+   */
+  private class ConcurrentLoad {
+    private final AtomicReferenceArray<String> responses = new AtomicReferenceArray<>(weatherServices.size());
+    private final CountDownLatch pendingSources = new CountDownLatch(weatherServices.size());
+    private final Set<Integer> unchangedSources = ConcurrentHashMap.newKeySet();
+    private final Queue<Call> calls = new ConcurrentLinkedQueue<>();
+    private volatile boolean deadlinePassed;
+
+    private void start(int sourceIndex, int attempt) {
+      WeatherSource source = weatherServices.get(sourceIndex);
+      CircuitBreaker breaker = breakerFor(source);
+      if (deadlinePassed || !breaker.allowRequest()) {
+        pendingSources.countDown();
+        return;
+      }
+      Call call = client.newCall(toRequest(source));
+      calls.add(call);
+      long startNanos = System.nanoTime();
+      call.enqueue(new Callback() {
+        @Override
+        public void onResponse(Call call, Response response) {
+          try (response) {
+            if (isUnchanged(response)) {
+              breaker.recordSuccess();
+              recordUnchanged(source, startNanos);
+              unchangedSources.add(sourceIndex);
+              pendingSources.countDown();
+              return;
+            }
+            if (response.isSuccessful()) {
+              String responseBody = response.body().string();
+              breaker.recordSuccess();
+              responses.set(sourceIndex, source.tag(recordSuccess(source, responseBody, startNanos)));
+              pendingSources.countDown();
+              return;
+            }
+            LOGGER.warn(source + " responded with HTTP status " + response.code() + ".");
+            failed(call, sourceIndex, attempt, isRetryable(response.code()), startNanos);
+          } catch (IOException ioe) {
+            LOGGER.error("Could not load observation.", ioe);
+            failed(call, sourceIndex, attempt, true, startNanos);
+          }
         }
-      } catch (IOException ioe) {
-        LOGGER.error("Could not load observation.", ioe);
+
+        @Override
+        public void onFailure(Call call, IOException ioe) {
+          failed(call, sourceIndex, attempt, true, startNanos);
+          if (!call.isCanceled()) {
+            LOGGER.error("Could not load observation.", ioe);
+          }
+        }
+      });
+      if (deadlinePassed) {
+        call.cancel();
       }
+    }
 
+    /**
+     * Records a failed call, and retries it if possible. A call cancelled
+     * because the deadline passed is not held against the provider, neither by
+     * its circuit breaker nor in the failure metrics.
+     */
+    private void failed(Call call, int sourceIndex, int attempt, boolean retryable, long startNanos) {
+      if (deadlinePassed || call.isCanceled()) {
+        pendingSources.countDown();
+        return;
+      }
+      WeatherSource source = weatherServices.get(sourceIndex);
+      breakerFor(source).recordFailure();
+      recordFailure(source, startNanos);
+      if (retryable && attempt < maxAttempts && !deadlinePassed) {
+        Metrics.counter("weather_api_retries_total", PROVIDER_LABEL, source.getProviderName()).increment();
+        retryScheduler.schedule(() -> start(sourceIndex, attempt + 1), backoffMillis(attempt),
+                                TimeUnit.MILLISECONDS);
+      } else {
+        pendingSources.countDown();
+      }
     }
 
-    return responses;
+    private void awaitResponses() {
+      try {
+        if (!pendingSources.await(deadlineMs, TimeUnit.MILLISECONDS)) {
+          LOGGER.error("Deadline passed before all APIs responded.");
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      deadlinePassed = true;
+      for (Call call : calls) {
+        call.cancel();
+      }
+    }
   }
 }
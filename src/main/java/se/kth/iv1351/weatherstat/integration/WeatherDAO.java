@@ -23,119 +23,1571 @@
 
 package se.kth.iv1351.weatherstat.integration;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CreateCollectionOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import se.kth.iv1351.weatherstat.model.DistinctCounter;
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.model.TemperatureSeries;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Histogram;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
 /**
  * This data access object (DAO) encapsulates all database calls in the weather
  * application. No code outside this class shall have any knowledge about the
- * database. The URL of the MongoDB database server hosting the weather database
- * is read from the environment variable WEATHERDB_SERVER.
+ * database. This is the default {@link WeatherStore}. The URL of the MongoDB
+ * database server hosting the weather database is read from the environment
+ * variable WEATHERDB_SERVER.
+ * <p>
+ * Each observation is stored twice. The raw payload, exactly as returned by the
+ * weather API, is stored in an archive collection. A compact, normalised record
+ * is stored in the observations collection, with the same <code>_id</code> as
+ * the raw payload. The normalised record holds provider, city, observation time
+ * and, as typed numeric fields, temperature in degrees Celsius, relative
+ * humidity, air pressure and wind speed. All statistics queries read the
+ * normalised records, which are indexed on provider, city and observation time.
+ * An observation is stored only once per provider, city and observation time,
+ * later observations with the same provider, city and time, typically returned
+ * by repeated polls, are counted as duplicates and not stored. This is enforced
+ * by a unique index, and the normalised record is therefore stored before the
+ * raw payload, which is only archived if the record was not a duplicate.
+ * Provider and city are read from the source tag of the observation, see
+ * {@link WeatherSource#tag(String)}, and the other fields according to the
+ * provider's configured format, see {@link ObservationFormat}.
+ * The archive is compressed with the block compressor named by the environment
+ * variable WEATHERDB_ARCHIVE_COMPRESSOR (for example <code>zstd</code>), and
+ * raw payloads expire after the number of days in the environment variable
+ * WEATHERDB_ARCHIVE_TTL_DAYS. Both are optional, and only affect collections and
+ * indexes that do not already exist.
+ * <p>
+ * Besides the observations, the database holds running statistics, which are
+ * updated each time observations are stored. There is one statistics document
+ * per provider and hour, one per provider and day, and one per provider
+ * covering all time. Each statistics document holds count, sum, sum of squares,
+ * min and max of the temperature readings in its bucket, and the registers of a
+ * {@link DistinctCounter} of the cities of those readings.
+ * <p>
+ * Normalised records are also compacted, periodically, into rollup documents
+ * per provider, city and hour, day or month, see {@link #rollUpObservations()}.
+ * Statistics queries read whole periods from the coarsest matching rollups,
+ * see {@link RollupPlan}. Rolled up records can be removed by a retention
+ * policy, while the rollups are kept. Each rollup also holds the bins of a
+ * {@link TemperatureSketch} of its readings, which are merged to estimate
+ * percentiles.
+ * <p>
+ * Sketches are stored as subdocuments with one field per non-empty bin or
+ * register, and are updated with <code>$inc</code> and <code>$max</code>, which
+ * means concurrent writers, in this or other processes, merge their sketches
+ * in the database the same way as they add to the counts and sums.
+ * <p>
+ * The latency of each insert and query, and the number of documents and bytes
+ * read when scanning the archive, are recorded in {@link Metrics}.
+ * <p>
+ * There is one client, with one connection pool, configured as described in
+ * {@link WeatherDBClientConfig}. Collection handles are created once, when
+ * connecting. Statistics computed from the stored observations, and scans of
+ * the archive, read from the read preference of that configuration, which
+ * means they may be served by a secondary. Running statistics, and all reads
+ * and writes made when storing observations or rebuilding running statistics,
+ * use the primary.
  */
-public class WeatherDAO {
+public class WeatherDAO implements WeatherStore {
     private static final Logger LOGGER = LoggerFactory.getLogger(WeatherDAO.class);
     private static final String DB_NAME = "weatherdb";
-    private static final String COLLECTION_NAME = "weather_data";
+    private static final String ARCHIVE_COLLECTION_NAME = "weather_data";
+    private static final String OBSERVATIONS_COLLECTION_NAME = "observations";
+    private static final String STATS_COLLECTION_NAME = "weather_stats";
+    private static final String REBUILT_STATS_COLLECTION_NAME = "weather_stats_rebuild";
+    private static final String ROLLUPS_COLLECTION_NAME = "weather_rollups";
+    private static final String ROLLUP_WATERMARK_ID = "watermark";
+    private static final String LAST_ROLLED_UP_FIELD = "lastRolledUp";
+    private static final String ROLLED_UP_AT_FIELD = "rolledUpAt";
+    private static final long ROLLUP_LAG_SECONDS = 60;
+    private static final String UNKNOWN_PROVIDER = "unknown";
+    private static final String BUCKET_HOUR = "hour";
+    private static final String BUCKET_DAY = "day";
+    private static final String BUCKET_TOTAL = "total";
+    private static final String ID_FIELD = "_id";
+    private static final String STORED_AT_FIELD = "storedAt";
+    private static final String PROVIDER_FIELD = "provider";
+    private static final String CITY_FIELD = "city";
+    private static final String OBSERVED_AT_FIELD = "observedAt";
+    private static final String TEMP_FIELD = "temp";
+    private static final String HUMIDITY_FIELD = "humidity";
+    private static final String PRESSURE_FIELD = "pressure";
+    private static final String WIND_SPEED_FIELD = "windSpeed";
+    private static final String BUCKET_FIELD = "bucket";
+    private static final String START_FIELD = "start";
+    private static final String COUNT_FIELD = "count";
+    private static final String SUM_FIELD = "sum";
+    private static final String SUM_OF_SQUARES_FIELD = "sumOfSquares";
+    private static final String MIN_FIELD = "min";
+    private static final String MAX_FIELD = "max";
+    private static final String SKETCH_FIELD = "sketch";
+    private static final String CITIES_FIELD = "cities";
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int MAX_DEFAULT_SCAN_THREADS = 8;
+    private static final int DEFAULT_SCAN_BATCH_SIZE = 5000;
+    private static final int PARTITIONS_PER_SCAN_THREAD = 4;
+    private static final String TOP_LEVEL_TEMP_FIELD = "temp";
+    private static final String COLLECTION_LABEL = "collection";
+    private static final String QUERY_LABEL = "query";
+    private static final Histogram STATS_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                          QUERY_LABEL, "stats");
+    private static final Histogram PERCENTILE_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                               QUERY_LABEL, "percentile");
+    private static final Counter ARCHIVE_DOCS_SCANNED = Metrics.counter("weatherdb_archive_docs_scanned_total");
+    private static final Counter ARCHIVE_BYTES_READ = Metrics.counter("weatherdb_archive_bytes_read_total");
+    private static final Histogram STATS_UPDATE_LATENCY = Metrics.histogram("weatherdb_stats_update_micros");
+    private static final Histogram RUNNING_STATS_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                                  QUERY_LABEL, "running_stats");
+    private static final Histogram ROLLUP_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                           QUERY_LABEL, "rollups");
+    private static final Histogram SKETCH_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                           QUERY_LABEL, "sketch");
+    private static final Histogram DISTINCT_CITIES_QUERY_LATENCY = Metrics.histogram("weatherdb_query_micros",
+                                                                                    QUERY_LABEL, "distinct_cities");
+    private static final Histogram ROLLUP_UPDATE_LATENCY = Metrics.histogram("weatherdb_rollup_update_micros");
+    private static final Counter OBSERVATIONS_ROLLED_UP = Metrics.counter("weatherdb_observations_rolled_up_total");
+    private static final Counter DUPLICATES_SKIPPED = Metrics.counter("weatherdb_duplicate_observations_total");
+    private static final String UNIQUE_OBSERVATION_INDEX = "unique_provider_city_observedAt";
+    private static final String LAST_EXPORTED_STATE = "mongodb.lastExportedId";
+    private final ObservationFormats formats = new ObservationFormats();
+    private final TemperatureExtractor tempExtractor = new TemperatureExtractor(formats);
+    private final AtomicReference<ObservationWatcher> watcher = new AtomicReference<>();
+    private final ReadWriteLock ingestLock = new ReentrantReadWriteLock();
     private MongoClient connection;
+    private MongoCollection<Document> archiveColl;
+    private MongoCollection<Document> observationsColl;
+    private MongoCollection<Document> statsColl;
+    private MongoCollection<Document> rollupsColl;
+    private MongoCollection<Document> rollupsStatsColl;
+    private MongoCollection<RawBsonDocument> rawArchiveStatsColl;
+    private MongoCollection<Document> observationsStatsColl;
+    private int batchSize;
+    private boolean orderedInserts;
+    private int scanThreads;
+    private int scanBatchSize;
 
     /**
      * Constructs a new DAO object connected to the weather database.
      */
     public WeatherDAO() {
+        readIngestConfig();
+        readScanConfig();
         connectToWeatherDB();
     }
 
     /**
-     * Stores all specified observations in the weather database.
+     * Stores all specified observations in the weather database, and updates the
+     * running statistics with the temperature readings of the stored
+     * observations. Both the raw payload and a normalised record are stored for
+     * each observation. The observations are inserted in batches, the batch size
+     * is read from the environment variable WEATHERDB_BATCH_SIZE (default
+     * {@value #DEFAULT_BATCH_SIZE}). Batches are inserted unordered, unless the
+     * environment variable WEATHERDB_ORDERED_INSERTS is <code>true</code>. An
+     * observation that can not be parsed or inserted does not prevent the other
+     * observations from being stored, unless inserts are ordered, in which case
+     * the rest of the failing batch is not stored. Observations whose provider,
+     * city and observation time are already stored are counted as duplicates,
+     * and are not stored again. Observations are not stored while the running
+     * statistics are recomputed by {@link #rebuildRunningStats()}, this method
+     * then waits until they are recomputed.
      * 
      * @param observations The observations to store.
+     * @return The number of stored observations, and a description of each
+     *         observation that could not be stored. The position of a failure is
+     *         the index of the observation in the specified list. Also the time
+     *         range of the stored temperature readings is included.
      */
-    public void storeObservations(List<String> observations) {
-        MongoDatabase weatherDb = connection.getDatabase(DB_NAME);
-        MongoCollection<Document> weatherColl = weatherDb.getCollection(COLLECTION_NAME);
-        for (String observation : observations) {
-            weatherColl.insertOne(Document.parse(observation));
+    @Override
+    public IngestResult storeObservations(List<String> observations) {
+        ingestLock.readLock().lock();
+        try {
+            return storeObservationsInBatches(observations);
+        } finally {
+            ingestLock.readLock().unlock();
         }
     }
 
     /**
-     * Returns a list containing all stored temperature readings, in degrees
-     * Celsius. A field in a stored observation is assumed to contain a temperature
-     * if it's name is <code>temp</code>. The list is empty if there are no such
-     * observations.
+     * Returns the number, sum, sum of squares, min and max of all stored
+     * temperature readings, as maintained in the running statistics. Only one
+     * statistics document per provider is read, no observations are read.
      * 
-     * @return A list containing all stored temperature readings, in degrees
-     *         Celsius.
+     * @return Statistics over all stored temperature readings.
      */
-    public List<Double> findAllTempReadings() {
-        MongoDatabase weatherDb = connection.getDatabase(DB_NAME);
-        MongoCollection<Document> weatherColl = weatherDb.getCollection(COLLECTION_NAME);
-        MongoCursor<Document> observations = weatherColl.find().iterator();
+    @Override
+    public TemperatureStats findRunningTempStats() {
+        long startNanos = System.nanoTime();
+        TemperatureStats allProviders = new TemperatureStats();
+        for (Document statsDoc : statsColl.find(Filters.eq(ID_FIELD + "." + BUCKET_FIELD, BUCKET_TOTAL))) {
+            allProviders.merge(toTemperatureStats(statsDoc));
+        }
+        RUNNING_STATS_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return allProviders;
+    }
+
+    /**
+     * Recreates the normalised record of each raw payload in the archive, and
+     * then discards the running statistics and recomputes them from all
+     * normalised records. Normalised records whose raw payload has expired from
+     * the archive are kept as they are. This method reads all stored
+     * observations, and is used to recover from inconsistencies, and to create
+     * normalised records for observations stored by earlier versions of this
+     * program. If the calling thread is interrupted while normalised records are
+     * recreated, the rebuild stops, and the running statistics are not changed.
+     * <p>
+     * Normalised records that did not exist before, and are older than the last
+     * roll-up, are added to the rollups. The running statistics are recomputed
+     * from the hourly rollups and the observations that are not yet rolled up,
+     * which means observations removed by the retention policy are included.
+     * <p>
+     * While the running statistics are recomputed, observations are not stored
+     * by this object, see {@link #storeObservations(List)}. The recomputed
+     * statistics are written to a separate collection, which then replaces the
+     * running statistics in one rename, so readers see either the old or the new
+     * statistics, never a partial result. Observations stored by other
+     * instances of the program while the statistics are recomputed may be left
+     * out, do not load from several instances while rebuilding.
+     * 
+     * @return Statistics over all stored temperature readings, as recomputed.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public synchronized TemperatureStats rebuildRunningStats() {
+        ObjectId lastRolledUp = findLastRolledUp(rollupsColl);
+        Map<Document, BucketDelta> missingRollups = new HashMap<>();
+        List<ReplaceOneModel<Document>> normalisedRecords = new ArrayList<>(batchSize);
+        ReplaceOptions upsert = new ReplaceOptions().upsert(true);
+        for (Document rawObservation : archiveColl.find()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("The rebuild was interrupted.");
+            }
+            ARCHIVE_DOCS_SCANNED.increment();
+            Document normalised = toNormalisedRecord(rawObservation);
+            normalisedRecords.add(new ReplaceOneModel<>(Filters.eq(ID_FIELD, normalised.get(ID_FIELD)),
+                                                        normalised, upsert));
+            if (normalisedRecords.size() == batchSize) {
+                replaceNormalisedRecords(normalisedRecords, lastRolledUp, missingRollups);
+                normalisedRecords.clear();
+            }
+        }
+        if (!normalisedRecords.isEmpty()) {
+            replaceNormalisedRecords(normalisedRecords, lastRolledUp, missingRollups);
+        }
+
+        ingestLock.writeLock().lock();
+        try {
+            return recomputeRunningStats(lastRolledUp, missingRollups);
+        } finally {
+            ingestLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds all normalised records stored since the last roll-up to the hourly,
+     * daily and monthly rollups of their provider and city, and marks them as
+     * rolled up. Each rollup document holds count, sum, sum of squares, min and
+     * max of the temperature readings in its period, and a sketch of those
+     * readings. Records stored during the
+     * last {@value #ROLLUP_LAG_SECONDS} seconds are left for the next roll-up,
+     * to make sure no batch is still being inserted. Records are rolled up in
+     * chunks of WEATHERDB_BATCH_SIZE, in the order they were stored, and the
+     * last rolled up record is saved after each chunk. If the program stops
+     * between updating the rollups and saving the last rolled up record, that
+     * chunk is rolled up twice.
+     * <p>
+     * Once rolled up, a normalised record is removed after the number of days in
+     * WEATHERDB_OBSERVATIONS_RETENTION_DAYS, if that variable is set. Records
+     * that are not rolled up are never removed.
+     *
+     * @return The number of rolled up records.
+     */
+    @Override
+    public synchronized long rollUpObservations() {
+        long startNanos = System.nanoTime();
+        ObjectId lastRolledUp = findLastRolledUp(rollupsColl);
+        ObjectId rollUpBefore = firstObjectIdAt(Instant.now().getEpochSecond() - ROLLUP_LAG_SECONDS);
+        Bson notRolledUp = lastRolledUp == null ? Filters.lt(ID_FIELD, rollUpBefore)
+                : Filters.and(Filters.gt(ID_FIELD, lastRolledUp), Filters.lt(ID_FIELD, rollUpBefore));
+        Map<Document, BucketDelta> rollups = new HashMap<>();
+        long rolledUp = 0;
+        int chunkSize = 0;
+        ObjectId chunkEnd = null;
+        try (MongoCursor<Document> observations = observationsColl.find(notRolledUp)
+                .projection(Projections.include(PROVIDER_FIELD, CITY_FIELD, OBSERVED_AT_FIELD, TEMP_FIELD))
+                .sort(Sorts.ascending(ID_FIELD)).iterator()) {
+            while (observations.hasNext()) {
+                Document observation = observations.next();
+                addToRollups(observation, rollups);
+                chunkEnd = observation.getObjectId(ID_FIELD);
+                if (++chunkSize == batchSize) {
+                    completeRollupChunk(rollups, lastRolledUp, chunkEnd);
+                    lastRolledUp = chunkEnd;
+                    rolledUp += chunkSize;
+                    chunkSize = 0;
+                }
+            }
+        }
+        if (chunkSize > 0) {
+            completeRollupChunk(rollups, lastRolledUp, chunkEnd);
+            rolledUp += chunkSize;
+        }
+        OBSERVATIONS_ROLLED_UP.add(rolledUp);
+        ROLLUP_UPDATE_LATENCY.recordMicrosSince(startNanos);
+        return rolledUp;
+    }
+
+    /**
+     * Compares the running statistics with statistics computed by scanning all
+     * stored observations.
+     * 
+     * @return The result of the comparison.
+     */
+    @Override
+    public StatsConsistencyReport checkRunningStats() {
+        return new StatsConsistencyReport(findRunningTempStats(), findTempStats());
+    }
+
+    /**
+     * Passes all temperature readings in the raw payloads in the archive, in
+     * degrees Celsius, to the specified consumer. The temperature is read from
+     * the location used by the provider that produced the observation. If the
+     * provider is not known, a field in a stored observation is assumed to
+     * contain a temperature if it's name is <code>temp</code>. The observations
+     * are read as raw BSON, and are not decoded, see
+     * {@link TemperatureExtractor}. The readings are not collected, pass a
+     * {@link TemperatureStats} to summarize them while they are read, or a
+     * {@link TemperatureSeries} to keep them.
+     * 
+     * @param tempReadings Receives all archived temperature readings, in degrees
+     *                     Celsius.
+     */
+    @Override
+    public void findAllTempReadings(DoubleConsumer tempReadings) {
+        try (MongoCursor<RawBsonDocument> observations = rawArchiveStatsColl.find().iterator()) {
+            while (observations.hasNext()) {
+                RawBsonDocument observation = observations.next();
+                ARCHIVE_DOCS_SCANNED.increment();
+                ARCHIVE_BYTES_READ.add(observation.getByteBuffer().remaining());
+                Double tempReading = tempExtractor.extract(observation);
+                if (tempReading != null) {
+                    tempReadings.accept(tempReading);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number, sum, sum of squares, min and max of all temperature
+     * readings in the raw payloads in the archive, in degrees Celsius. This
+     * gives the same result as passing a {@link TemperatureStats} to
+     * {@link #findAllTempReadings(DoubleConsumer)}, except that observations of
+     * unknown format are only included if their temperature is a top-level
+     * <code>temp</code> field, but the archive is read in parallel.
+     * <p>
+     * The archive is split into ranges of <code>_id</code>, which is ordered by
+     * insertion time. Ranges are split in two, fork-join style, until there are
+     * about {@value #PARTITIONS_PER_SCAN_THREAD} ranges per thread. Each range is
+     * read with its own cursor, and only the fields holding temperatures are
+     * transferred. The statistics of the ranges are merged when all ranges are
+     * read. At most WEATHERDB_SCAN_THREADS (default the number of processors, but
+     * at most {@value #MAX_DEFAULT_SCAN_THREADS}) ranges are read at the same
+     * time, which also caps the number of database connections used. The number
+     * of documents fetched per round trip is read from WEATHERDB_SCAN_BATCH_SIZE
+     * (default {@value #DEFAULT_SCAN_BATCH_SIZE}). Observations stored while the
+     * scan is running may or may not be included.
+     *
+     * @return Statistics over all archived temperature readings.
+     * @throws CancellationException If the calling thread is interrupted during
+     *                               the scan.
+     */
+    @Override
+    public TemperatureStats scanArchiveTempStats() {
+        MongoCollection<RawBsonDocument> archiveColl = rawArchiveStatsColl;
+        Bson idOnly = Projections.include(ID_FIELD);
+        RawBsonDocument first = archiveColl.find().projection(idOnly).sort(Sorts.ascending(ID_FIELD)).first();
+        RawBsonDocument last = archiveColl.find().projection(idOnly).sort(Sorts.descending(ID_FIELD)).first();
+        if (first == null || last == null) {
+            return new TemperatureStats();
+        }
+        long firstSecond = Integer.toUnsignedLong(first.getObjectId(ID_FIELD).getValue().getTimestamp());
+        long endSecond = Integer.toUnsignedLong(last.getObjectId(ID_FIELD).getValue().getTimestamp()) + 1;
+        long minRangeSeconds = Math.max(1, (endSecond - firstSecond) / (scanThreads * PARTITIONS_PER_SCAN_THREAD));
+
+        ForkJoinPool workers = new ForkJoinPool(scanThreads);
+        try {
+            return workers.submit(new ArchiveScanTask(archiveColl, firstSecond, endSecond, minRangeSeconds)).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("The archive scan was interrupted.");
+        } catch (ExecutionException scanFailure) {
+            if (scanFailure.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) scanFailure.getCause();
+            }
+            throw new IllegalStateException("The archive scan failed.", scanFailure.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the number, sum, sum of squares, min and max of all stored
+     * temperature readings, in degrees Celsius. The calculation is performed by
+     * the database server, using aggregation pipelines over the monthly rollups
+     * and the normalised records that are not yet rolled up, which means only
+     * the result, not the observations, is transferred to this program.
+     * 
+     * @return Statistics over all stored temperature readings.
+     */
+    @Override
+    public TemperatureStats findTempStats() {
+        ObjectId lastRolledUp = findLastRolledUp(rollupsStatsColl);
+        if (lastRolledUp == null) {
+            return aggregateTempStats(Filters.exists(TEMP_FIELD));
+        }
+        TemperatureStats stats = aggregateRollups(Filters.eq(ID_FIELD + "." + BUCKET_FIELD,
+                                                             RollupPlan.Granularity.MONTH.getBucketName()));
+        stats.merge(aggregateTempStats(Filters.and(Filters.gt(ID_FIELD, lastRolledUp),
+                                                   Filters.exists(TEMP_FIELD))));
+        return stats;
+    }
+
+    /**
+     * Returns the number, sum, sum of squares, min and max of the temperature
+     * readings selected by the specified query, in degrees Celsius. The
+     * calculation is performed by the database server, the same way as in
+     * {@link #findTempStats()}. The time range is split by a {@link RollupPlan},
+     * the whole months, days and hours in the range are read from the coarsest
+     * matching rollups, and only the parts of the range that do not cover a
+     * whole hour are read from the normalised records. Records that are not yet
+     * rolled up are always read. Readings in the partial hours at the ends of
+     * the range are only included if they have not been removed by the retention
+     * policy.
+     * 
+     * @param query Selects the readings to include.
+     * @return Statistics over the selected temperature readings.
+     */
+    @Override
+    public TemperatureStats findTempStats(TemperatureQuery query) {
+        ObjectId lastRolledUp = findLastRolledUp(rollupsStatsColl);
+        if (lastRolledUp == null) {
+            return aggregateTempStats(toFilter(query));
+        }
+        List<Bson> rawConditions = new ArrayList<>();
+        Bson rollupFilter = planRollupQuery(query, lastRolledUp, rawConditions);
+        TemperatureStats stats = new TemperatureStats();
+        if (rollupFilter != null) {
+            stats.merge(aggregateRollups(rollupFilter));
+        }
+        stats.merge(aggregateTempStats(toRawFilter(query, rawConditions)));
+        return stats;
+    }
+
+    /**
+     * Returns the specified percentile of the temperature readings selected by
+     * the specified query, in degrees Celsius. The percentile is calculated with
+     * the nearest-rank method, which means the returned value is always one of
+     * the selected readings. The readings are sorted by the database server, only
+     * the searched reading is transferred to this program. Rollups can not be
+     * used to find percentiles, which means only readings that have not been
+     * removed by the retention policy are included. The rank is therefore
+     * computed from the number of such readings, not from the rollups.
+     * 
+     * @param query      Selects the readings to include.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The specified percentile, or <code>NaN</code> if no readings were
+     *         selected.
+     */
+    @Override
+    public double findTempPercentile(TemperatureQuery query, double percentile) {
+        long startNanos = System.nanoTime();
+        Bson filter = toFilter(query);
+        long count = aggregateTempStats(filter).getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long skip = Math.max(0, Math.min(count - 1, rank - 1));
+
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(filter),
+                                            Aggregates.project(Projections.fields(Projections.excludeId(),
+                                                                                  Projections.include(TEMP_FIELD))),
+                                            Aggregates.sort(Sorts.ascending(TEMP_FIELD)),
+                                            Aggregates.skip((int) skip),
+                                            Aggregates.limit(1));
+        Document result = observationsStatsColl.aggregate(pipeline).allowDiskUse(true).first();
+        PERCENTILE_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return result == null ? Double.NaN : result.getDouble(TEMP_FIELD);
+    }
+
+    /**
+     * Returns a sketch of all stored temperature readings, merged from the
+     * sketches of the monthly rollups, and the normalised records that are not
+     * yet rolled up. Only the sketches and the temperatures of the records that
+     * are not rolled up are transferred to this program. Rollups created by
+     * earlier versions of this program, that have no sketch, are replaced by
+     * the records they were rolled up from, unless those have been removed by
+     * the retention policy.
+     *
+     * @return A sketch of all stored temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureSketch findTempSketch() {
+        long startNanos = System.nanoTime();
+        TemperatureSketch sketch = new TemperatureSketch();
+        ObjectId lastRolledUp = findLastRolledUp(rollupsStatsColl);
+        if (lastRolledUp == null) {
+            streamTempReadings(Filters.exists(TEMP_FIELD), sketch);
+        } else {
+            mergeRollupSketches(Filters.eq(ID_FIELD + "." + BUCKET_FIELD, RollupPlan.Granularity.MONTH.getBucketName()),
+                                lastRolledUp, sketch);
+            streamTempReadings(Filters.and(Filters.gt(ID_FIELD, lastRolledUp), Filters.exists(TEMP_FIELD)), sketch);
+        }
+        SKETCH_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return sketch;
+    }
+
+    /**
+     * Returns a sketch of the temperature readings selected by the specified
+     * query. The rollups and normalised records to read are chosen the same way
+     * as in {@link #findTempStats(TemperatureQuery)}, and they are read the same
+     * way as in {@link #findTempSketch()}.
+     *
+     * @param query Selects the readings to include.
+     * @return A sketch of the selected temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public TemperatureSketch findTempSketch(TemperatureQuery query) {
+        long startNanos = System.nanoTime();
+        TemperatureSketch sketch = new TemperatureSketch();
+        ObjectId lastRolledUp = findLastRolledUp(rollupsStatsColl);
+        if (lastRolledUp == null) {
+            streamTempReadings(toFilter(query), sketch);
+        } else {
+            List<Bson> rawConditions = new ArrayList<>();
+            Bson rollupFilter = planRollupQuery(query, lastRolledUp, rawConditions);
+            if (rollupFilter != null) {
+                mergeRollupSketches(rollupFilter, lastRolledUp, sketch);
+            }
+            streamTempReadings(toRawFilter(query, rawConditions), sketch);
+        }
+        SKETCH_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return sketch;
+    }
+
+    /**
+     * Estimates the number of distinct cities with stored temperature readings,
+     * by merging the city sketches of the running statistics covering all time.
+     * Only one statistics document per provider is read. Cities are only counted
+     * in running statistics created or rebuilt by this version of the program.
+     *
+     * @return The estimated number of cities.
+     */
+    @Override
+    public long countDistinctCities() {
+        long startNanos = System.nanoTime();
+        DistinctCounter cities = new DistinctCounter();
+        for (Document statsDoc : statsColl.find(Filters.eq(ID_FIELD + "." + BUCKET_FIELD, BUCKET_TOTAL))
+                                          .projection(Projections.include(CITIES_FIELD))) {
+            mergeCities(statsDoc, cities);
+        }
+        DISTINCT_CITIES_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return cities.estimate();
+    }
+
+    /**
+     * Estimates the number of distinct cities among the temperature readings
+     * selected by the specified query. The time range is split by a
+     * {@link RollupPlan}, the city sketches of the hourly running statistics
+     * are read for whole hours, those of the daily running statistics for whole
+     * days and months, and the cities of the normalised records are read for
+     * the parts of the range that do not cover a whole hour. If the query
+     * selects a city, the result is one if there are any selected readings, and
+     * otherwise zero.
+     *
+     * @param query Selects the readings to include.
+     * @return The estimated number of cities.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public long countDistinctCities(TemperatureQuery query) {
+        if (query.getCity() != null) {
+            return findTempStats(query).getCount() > 0 ? 1 : 0;
+        }
+        long startNanos = System.nanoTime();
+        RollupPlan plan = new RollupPlan(query.getFrom(), query.getTo());
+        List<Bson> bucketConditions = new ArrayList<>();
+        for (RollupPlan.Range range : plan.getRollupRanges()) {
+            String bucket = range.getGranularity() == RollupPlan.Granularity.HOUR ? BUCKET_HOUR : BUCKET_DAY;
+            String bucketStart = ID_FIELD + "." + START_FIELD;
+            bucketConditions.add(Filters.and(Filters.eq(ID_FIELD + "." + BUCKET_FIELD, bucket),
+                                             Filters.gte(bucketStart, Date.from(range.getFrom())),
+                                             Filters.lt(bucketStart, Date.from(range.getTo()))));
+        }
+        List<Bson> rawConditions = new ArrayList<>();
+        for (RollupPlan.Range range : plan.getRawRanges()) {
+            rawConditions.add(observedIn(range));
+        }
+
+        DistinctCounter cities = new DistinctCounter();
+        if (!bucketConditions.isEmpty()) {
+            List<Bson> statsFilter = selectionConditions(query, ID_FIELD + ".");
+            statsFilter.add(Filters.or(bucketConditions));
+            for (Document statsDoc : statsColl.find(Filters.and(statsFilter))
+                                              .projection(Projections.include(CITIES_FIELD))) {
+                mergeCities(statsDoc, cities);
+            }
+        }
+        if (!rawConditions.isEmpty()) {
+            for (Document normalised : observationsStatsColl.find(toRawFilter(query, rawConditions))
+                                                            .projection(Projections.include(CITY_FIELD))
+                                                            .batchSize(scanBatchSize)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The distinct cities query was interrupted.");
+                }
+                cities.add(normalised.getString(CITY_FIELD));
+            }
+        }
+        DISTINCT_CITIES_QUERY_LATENCY.recordMicrosSince(startNanos);
+        return cities.estimate();
+    }
+
+    /**
+     * Exports the normalised records inserted since the last export to the
+     * specified directory, in <code>_id</code> order. The id of the last exported
+     * record is saved as export state, and the next export starts after it.
+     * Records are read with the read preference of statistics queries, which
+     * means the export may be served by a secondary, and in batches of
+     * WEATHERDB_SCAN_BATCH_SIZE records. Records inserted during the last
+     * {@value #ROLLUP_LAG_SECONDS} seconds are left to the next export, since
+     * records with lower ids may still be in flight. For the same reason, a
+     * record that has not replicated to the secondary within that time is
+     * never exported.
+     *
+     * @param directory The export directory.
+     * @return The number of exported records and written files.
+     * @throws UncheckedIOException  If unable to write the export.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    @Override
+    public ExportResult exportObservations(Path directory) {
+        ObjectId exportUpTo = firstObjectIdAt(Instant.now().minusSeconds(ROLLUP_LAG_SECONDS).getEpochSecond());
+        try (ObservationExporter exporter = new ObservationExporter(directory)) {
+            Bson toExport = Filters.lt(ID_FIELD, exportUpTo);
+            String lastExported = exporter.getState(LAST_EXPORTED_STATE);
+            if (lastExported != null) {
+                toExport = Filters.and(Filters.gt(ID_FIELD, new ObjectId(lastExported)), toExport);
+            }
+            ObjectId lastId = null;
+            for (Document normalised : observationsStatsColl.find(toExport).sort(Sorts.ascending(ID_FIELD))
+                                                            .batchSize(scanBatchSize)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The export was interrupted.");
+                }
+                exporter.add(normalised.getString(PROVIDER_FIELD), normalised.getString(CITY_FIELD),
+                             normalised.getDate(OBSERVED_AT_FIELD).getTime(), normalised.getDouble(TEMP_FIELD),
+                             normalised.getDouble(HUMIDITY_FIELD), normalised.getDouble(PRESSURE_FIELD),
+                             normalised.getDouble(WIND_SPEED_FIELD));
+                lastId = normalised.getObjectId(ID_FIELD);
+            }
+            if (lastId != null) {
+                exporter.setState(LAST_EXPORTED_STATE, lastId.toHexString());
+            }
+            return exporter.commit();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not export to " + directory, ioe);
+        }
+    }
+
+    /**
+     * Passes stored and newly inserted readings to the specified listener, as
+     * described in {@link ObservationWatcher}. Inserts are followed on the
+     * primary.
+     *
+     * @param since    Stored readings observed before this time are not passed.
+     * @param listener Receives the readings, in the watcher thread.
+     * @throws IllegalStateException If another listener is already watching.
+     */
+    @Override
+    public void watchReadings(Instant since, Consumer<List<TemperatureReading>> listener) {
+        Bson storedFilter = Filters.and(Filters.gte(OBSERVED_AT_FIELD, Date.from(since)),
+                                        Filters.exists(TEMP_FIELD));
+        ObservationWatcher newWatcher = new ObservationWatcher(observationsColl, storedFilter,
+                                                               this::toTemperatureReading, listener);
+        if (!watcher.compareAndSet(null, newWatcher)) {
+            throw new IllegalStateException("Another listener is already watching.");
+        }
+        newWatcher.start();
+    }
+
+    @Override
+    public void stopWatching() {
+        ObservationWatcher current = watcher.getAndSet(null);
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    private IngestResult storeObservationsInBatches(List<String> observations) {
+        IngestResult result = new IngestResult();
+        List<Document> batch = new ArrayList<>(Math.min(batchSize, observations.size()));
+        List<Integer> batchIndexes = new ArrayList<>(Math.min(batchSize, observations.size()));
+        for (int i = 0; i < observations.size(); i++) {
+            try {
+                Document observation = Document.parse(observations.get(i));
+                observation.put(ID_FIELD, new ObjectId());
+                observation.put(STORED_AT_FIELD, new Date());
+                batch.add(observation);
+                batchIndexes.add(i);
+            } catch (RuntimeException parseFailure) {
+                result.addFailure(i, parseFailure.getMessage());
+            }
+            if (batch.size() == batchSize) {
+                insertBatch(batch, batchIndexes, result);
+                batch.clear();
+                batchIndexes.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            insertBatch(batch, batchIndexes, result);
+        }
+        return result;
+    }
+
+    private TemperatureStats recomputeRunningStats(ObjectId lastRolledUp, Map<Document, BucketDelta> missingRollups) {
+        Map<Document, BucketDelta> recomputed = new HashMap<>();
+        Bson notRolledUp = Filters.exists(TEMP_FIELD);
+        if (lastRolledUp != null) {
+            incrementBuckets(rollupsColl, missingRollups, ROLLUP_UPDATE_LATENCY);
+            observationsColl.updateMany(Filters.and(Filters.lte(ID_FIELD, lastRolledUp),
+                                                    Filters.exists(ROLLED_UP_AT_FIELD, false)),
+                                        Updates.set(ROLLED_UP_AT_FIELD, new Date()));
+            for (Document hourRollup : rollupsColl.find(Filters.eq(ID_FIELD + "." + BUCKET_FIELD,
+                                                                   RollupPlan.Granularity.HOUR.getBucketName()))
+                                                  .projection(Projections.exclude(SKETCH_FIELD))) {
+                Document rollupId = hourRollup.get(ID_FIELD, Document.class);
+                addToStatsBuckets(rollupId.getString(PROVIDER_FIELD), rollupId.getString(CITY_FIELD),
+                                  rollupId.getDate(START_FIELD).toInstant(), toTemperatureStats(hourRollup),
+                                  recomputed);
+            }
+            notRolledUp = Filters.and(Filters.gt(ID_FIELD, lastRolledUp), notRolledUp);
+        }
+        for (Document observation : observationsColl.find(notRolledUp)) {
+            addToStatsBuckets(observation, recomputed);
+        }
+        List<Document> statsDocs = new ArrayList<>();
+        TemperatureStats allProviders = new TemperatureStats();
+        for (Map.Entry<Document, BucketDelta> bucket : recomputed.entrySet()) {
+            statsDocs.add(toStatsDoc(bucket.getKey(), bucket.getValue()));
+            if (BUCKET_TOTAL.equals(bucket.getKey().getString(BUCKET_FIELD))) {
+                allProviders.merge(bucket.getValue().stats);
+            }
+        }
+        replaceRunningStats(statsDocs);
+        return allProviders;
+    }
+
+    private void replaceRunningStats(List<Document> statsDocs) {
+        MongoCollection<Document> rebuiltColl = connection.getDatabase(DB_NAME)
+                                                          .getCollection(REBUILT_STATS_COLLECTION_NAME)
+                                                          .withWriteConcern(statsColl.getWriteConcern());
+        rebuiltColl.drop();
+        rebuiltColl.createIndex(Indexes.ascending(ID_FIELD + "." + BUCKET_FIELD, ID_FIELD + "." + START_FIELD));
+        if (!statsDocs.isEmpty()) {
+            rebuiltColl.insertMany(statsDocs);
+        }
+        rebuiltColl.renameCollection(new MongoNamespace(DB_NAME, STATS_COLLECTION_NAME),
+                                     new RenameCollectionOptions().dropTarget(true));
+    }
+
+    private TemperatureStats aggregateTempStats(Bson filter) {
+        long startNanos = System.nanoTime();
+        String temp = "$" + TEMP_FIELD;
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(filter),
+                Aggregates.group(null, Accumulators.sum(COUNT_FIELD, 1),
+                                 Accumulators.sum(SUM_FIELD, temp),
+                                 Accumulators.sum(SUM_OF_SQUARES_FIELD,
+                                                  new Document("$multiply", Arrays.asList(temp, temp))),
+                                 Accumulators.min(MIN_FIELD, temp),
+                                 Accumulators.max(MAX_FIELD, temp)));
+
+        Document result = observationsStatsColl.aggregate(pipeline).first();
+        STATS_QUERY_LATENCY.recordMicrosSince(startNanos);
+        if (result == null) {
+            return new TemperatureStats();
+        }
+        return toTemperatureStats(result);
+    }
+
+    private TemperatureStats aggregateRollups(Bson filter) {
+        long startNanos = System.nanoTime();
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(filter),
+                Aggregates.group(null, Accumulators.sum(COUNT_FIELD, "$" + COUNT_FIELD),
+                                 Accumulators.sum(SUM_FIELD, "$" + SUM_FIELD),
+                                 Accumulators.sum(SUM_OF_SQUARES_FIELD, "$" + SUM_OF_SQUARES_FIELD),
+                                 Accumulators.min(MIN_FIELD, "$" + MIN_FIELD),
+                                 Accumulators.max(MAX_FIELD, "$" + MAX_FIELD)));
+
+        Document result = rollupsStatsColl.aggregate(pipeline).first();
+        ROLLUP_QUERY_LATENCY.recordMicrosSince(startNanos);
+        if (result == null) {
+            return new TemperatureStats();
+        }
+        return toTemperatureStats(result);
+    }
+
+    /**
+     * Splits the time range of the specified query as described in
+     * {@link #findTempStats(TemperatureQuery)}. Adds the conditions selecting the
+     * normalised records to read to the specified list, and returns the filter
+     * selecting the rollups to read, or <code>null</code> if no rollups shall be
+     * read.
+     */
+    private Bson planRollupQuery(TemperatureQuery query, ObjectId lastRolledUp, List<Bson> rawConditions) {
+        RollupPlan plan = new RollupPlan(query.getFrom(), query.getTo());
+        List<Bson> rollupConditions = new ArrayList<>();
+        List<Bson> rolledUpRanges = new ArrayList<>();
+        for (RollupPlan.Range range : plan.getRollupRanges()) {
+            String rollupStart = ID_FIELD + "." + START_FIELD;
+            rollupConditions.add(Filters.and(Filters.eq(ID_FIELD + "." + BUCKET_FIELD,
+                                                        range.getGranularity().getBucketName()),
+                                             Filters.gte(rollupStart, Date.from(range.getFrom())),
+                                             Filters.lt(rollupStart, Date.from(range.getTo()))));
+            rolledUpRanges.add(observedIn(range));
+        }
+        for (RollupPlan.Range range : plan.getRawRanges()) {
+            rawConditions.add(observedIn(range));
+        }
+        if (rollupConditions.isEmpty()) {
+            return null;
+        }
+        rawConditions.add(Filters.and(Filters.gt(ID_FIELD, lastRolledUp), Filters.or(rolledUpRanges)));
+        List<Bson> rollupFilter = selectionConditions(query, ID_FIELD + ".");
+        rollupFilter.add(Filters.or(rollupConditions));
+        return Filters.and(rollupFilter);
+    }
+
+    private Bson toRawFilter(TemperatureQuery query, List<Bson> rawConditions) {
+        List<Bson> rawFilter = selectionConditions(query, "");
+        rawFilter.add(Filters.or(rawConditions));
+        rawFilter.add(Filters.exists(TEMP_FIELD));
+        return Filters.and(rawFilter);
+    }
+
+    /**
+     * Merges the sketches of the rollups selected by the specified filter into
+     * the specified sketch. A rollup whose sketch does not hold all its readings
+     * was, at least partly, rolled up by an earlier version of this program, and
+     * the readings of its period are instead read from the normalised records
+     * that were rolled up.
+     */
+    private void mergeRollupSketches(Bson rollupFilter, ObjectId lastRolledUp, TemperatureSketch sketch) {
+        for (Document rollup : rollupsStatsColl.find(rollupFilter)
+                                               .projection(Projections.include(COUNT_FIELD, SKETCH_FIELD))
+                                               .batchSize(scanBatchSize)) {
+            TemperatureSketch rollupSketch = toTemperatureSketch(rollup.get(SKETCH_FIELD, Document.class));
+            if (rollupSketch.getCount() == ((Number) rollup.get(COUNT_FIELD)).longValue()) {
+                sketch.merge(rollupSketch);
+                continue;
+            }
+            Document rollupId = rollup.get(ID_FIELD, Document.class);
+            RollupPlan.Granularity granularity = RollupPlan.Granularity.ofBucketName(rollupId.getString(BUCKET_FIELD));
+            Instant start = rollupId.getDate(START_FIELD).toInstant();
+            streamTempReadings(Filters.and(Filters.eq(PROVIDER_FIELD, rollupId.getString(PROVIDER_FIELD)),
+                                           Filters.eq(CITY_FIELD, rollupId.getString(CITY_FIELD)),
+                                           Filters.gte(OBSERVED_AT_FIELD, Date.from(start)),
+                                           Filters.lt(OBSERVED_AT_FIELD, Date.from(granularity.next(start))),
+                                           Filters.lte(ID_FIELD, lastRolledUp),
+                                           Filters.exists(TEMP_FIELD)),
+                               sketch);
+        }
+    }
 
-        List<Double> tempReadings = new ArrayList<>();
-        while (observations.hasNext()) {
-            Double tempReading = extractTempReading(observations.next());
-            if (tempReading != null) {
-                tempReadings.add(tempReading);
+    /**
+     * Passes the temperature of each normalised record selected by the
+     * specified filter to the specified consumer. Only the temperatures are
+     * transferred, in batches of WEATHERDB_SCAN_BATCH_SIZE records.
+     */
+    private void streamTempReadings(Bson filter, DoubleConsumer tempReadings) {
+        for (Document normalised : observationsStatsColl.find(filter)
+                .projection(Projections.fields(Projections.excludeId(), Projections.include(TEMP_FIELD)))
+                .batchSize(scanBatchSize)) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("The sketch query was interrupted.");
             }
+            tempReadings.accept(normalised.getDouble(TEMP_FIELD));
+        }
+    }
+
+    private ObjectId findLastRolledUp(MongoCollection<Document> rollups) {
+        Document watermark = rollups.find(Filters.eq(ID_FIELD, ROLLUP_WATERMARK_ID)).first();
+        return watermark == null ? null : watermark.getObjectId(LAST_ROLLED_UP_FIELD);
+    }
+
+    /**
+     * Adds the specified chunk of rollups, marks the normalised records after
+     * <code>previousEnd</code> up to and including <code>chunkEnd</code> as rolled
+     * up, and saves <code>chunkEnd</code> as the last rolled up record. The
+     * specified rollups are cleared.
+     */
+    private void completeRollupChunk(Map<Document, BucketDelta> rollups, ObjectId previousEnd,
+                                     ObjectId chunkEnd) {
+        incrementBuckets(rollupsColl, rollups, ROLLUP_UPDATE_LATENCY);
+        rollups.clear();
+        Bson chunk = previousEnd == null ? Filters.lte(ID_FIELD, chunkEnd)
+                : Filters.and(Filters.gt(ID_FIELD, previousEnd), Filters.lte(ID_FIELD, chunkEnd));
+        observationsColl.updateMany(chunk, Updates.set(ROLLED_UP_AT_FIELD, new Date()));
+        rollupsColl.updateOne(Filters.eq(ID_FIELD, ROLLUP_WATERMARK_ID), Updates.set(LAST_ROLLED_UP_FIELD, chunkEnd),
+                              new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Replaces the specified normalised records, and adds those that did not
+     * exist before, and are not newer than the last roll-up, to the specified
+     * rollups.
+     */
+    private void replaceNormalisedRecords(List<ReplaceOneModel<Document>> normalisedRecords, ObjectId lastRolledUp,
+                                          Map<Document, BucketDelta> missingRollups) {
+        BulkWriteResult result;
+        try {
+            result = observationsColl.bulkWrite(normalisedRecords, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException bulkFailure) {
+            for (BulkWriteError error : bulkFailure.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw bulkFailure;
+                }
+            }
+            LOGGER.warn("Skipped " + bulkFailure.getWriteErrors().size() + " archived observations whose provider,"
+                    + " city and observation time are already stored.");
+            result = bulkFailure.getWriteResult();
+        }
+        if (lastRolledUp == null) {
+            return;
+        }
+        for (BulkWriteUpsert inserted : result.getUpserts()) {
+            Document normalised = normalisedRecords.get(inserted.getIndex()).getReplacement();
+            if (normalised.getObjectId(ID_FIELD).compareTo(lastRolledUp) <= 0) {
+                addToRollups(normalised, missingRollups);
+            }
+        }
+    }
+
+    private Bson observedIn(RollupPlan.Range range) {
+        return Filters.and(Filters.gte(OBSERVED_AT_FIELD, Date.from(range.getFrom())),
+                           Filters.lt(OBSERVED_AT_FIELD, Date.from(range.getTo())));
+    }
+
+    private List<Bson> selectionConditions(TemperatureQuery query, String fieldPrefix) {
+        List<Bson> conditions = new ArrayList<>();
+        if (query.getProvider() != null) {
+            conditions.add(Filters.eq(fieldPrefix + PROVIDER_FIELD, query.getProvider()));
+        }
+        if (query.getCity() != null) {
+            conditions.add(Filters.eq(fieldPrefix + CITY_FIELD, query.getCity()));
+        }
+        return conditions;
+    }
+
+    private ObjectId firstObjectIdAt(long epochSecond) {
+        return new ObjectId(String.format("%08x%016x", epochSecond, 0));
+    }
+
+    /**
+     * Returns the filter selecting the normalised records with temperatures in
+     * the time range of the specified query, and of its provider and city, if
+     * given. This is the filter of all range queries, and shall be covered by
+     * the indexes created when connecting.
+     */
+    Bson toFilter(TemperatureQuery query) {
+        List<Bson> conditions = selectionConditions(query, "");
+        conditions.add(Filters.gte(OBSERVED_AT_FIELD, Date.from(query.getFrom())));
+        conditions.add(Filters.lt(OBSERVED_AT_FIELD, Date.from(query.getTo())));
+        conditions.add(Filters.exists(TEMP_FIELD));
+        return Filters.and(conditions);
+    }
+
+    /**
+     * Creates the normalised record of the specified raw payload. Fields that are
+     * missing in the raw payload are left out of the normalised record. If the
+     * provider is unknown, or the payload does not contain a time, the time when
+     * the payload was stored is used as observation time.
+     */
+    private Document toNormalisedRecord(Document rawObservation) {
+        String providerName = formats.providerOf(rawObservation);
+        ObservationFormat format = formats.get(providerName);
+        Long observationTime = format == null ? null : format.readObservationTime(rawObservation);
+        Date observedAt;
+        if (observationTime != null) {
+            observedAt = Date.from(Instant.ofEpochSecond(observationTime));
+        } else if (rawObservation.getDate(STORED_AT_FIELD) != null) {
+            observedAt = rawObservation.getDate(STORED_AT_FIELD);
+        } else {
+            observedAt = rawObservation.getObjectId(ID_FIELD).getDate();
         }
-        return tempReadings;
+
+        Document normalised = new Document(ID_FIELD, rawObservation.get(ID_FIELD));
+        normalised.append(PROVIDER_FIELD, providerName == null ? UNKNOWN_PROVIDER : providerName);
+        appendIfPresent(normalised, CITY_FIELD, formats.cityOf(rawObservation));
+        normalised.append(OBSERVED_AT_FIELD, observedAt);
+        appendIfPresent(normalised, TEMP_FIELD, tempExtractor.extract(rawObservation));
+        if (format != null) {
+            appendIfPresent(normalised, HUMIDITY_FIELD, format.readHumidity(rawObservation));
+            appendIfPresent(normalised, PRESSURE_FIELD, format.readPressure(rawObservation));
+            appendIfPresent(normalised, WIND_SPEED_FIELD, format.readWindSpeed(rawObservation));
+        }
+        return normalised;
+    }
+
+    private TemperatureReading toTemperatureReading(Document normalisedObservation) {
+        Double tempReading = normalisedObservation.getDouble(TEMP_FIELD);
+        if (tempReading == null) {
+            return null;
+        }
+        return new TemperatureReading(normalisedObservation.getString(PROVIDER_FIELD),
+                                      normalisedObservation.getString(CITY_FIELD),
+                                      normalisedObservation.getDate(OBSERVED_AT_FIELD).toInstant(), tempReading);
     }
 
-    private Double extractTempReading(Document observation) {
-        String tempFieldName = "temp";
-        Map<String, Object> flattenedDoc = flattenDoc(observation);
-        return convertToCelsius(convertTempToDouble(flattenedDoc.get(tempFieldName)));
+    private void appendIfPresent(Document doc, String fieldName, Object value) {
+        if (value != null) {
+            doc.append(fieldName, value);
+        }
     }
 
-    private Map<String, Object> flattenDoc(Document doc) {
-        Map<String, Object> flattenedDoc = new HashMap<>();
-        for (String fieldName : doc.keySet()) {
-            Object value = doc.get(fieldName);
-            if (value instanceof Document) {
-                flattenedDoc.putAll(flattenDoc((Document) value));
-            } else if (value instanceof List) {
-                for (Object element : (List) value) {
-                    flattenedDoc.putAll(flattenDoc((Document) element));
+    /**
+     * Stores the normalised records of the specified batch, skipping duplicates,
+     * then archives the raw payloads of the records that were stored, and
+     * finally updates the running statistics. A normalised record whose raw
+     * payload could not be archived is removed again.
+     */
+    private void insertBatch(List<Document> batch, List<Integer> batchIndexes, IngestResult result) {
+        List<Document> normalisedBatch = new ArrayList<>(batch.size());
+        for (Document rawObservation : batch) {
+            normalisedBatch.add(toNormalisedRecord(rawObservation));
+        }
+        Set<Integer> notNormalised = upsertNormalisedRecords(normalisedBatch, batchIndexes, result);
+        List<Document> rawBatch = new ArrayList<>(batch.size());
+        List<Integer> rawIndexes = new ArrayList<>(batch.size());
+        List<Document> storedBatch = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (!notNormalised.contains(i)) {
+                rawBatch.add(batch.get(i));
+                rawIndexes.add(batchIndexes.get(i));
+                storedBatch.add(normalisedBatch.get(i));
+            }
+        }
+        if (rawBatch.isEmpty()) {
+            return;
+        }
+        Set<Integer> notArchived = insertAll(archiveColl, rawBatch, rawIndexes, result);
+        if (!notArchived.isEmpty()) {
+            List<Object> orphanIds = new ArrayList<>(notArchived.size());
+            for (int i : notArchived) {
+                orphanIds.add(rawBatch.get(i).get(ID_FIELD));
+            }
+            observationsColl.deleteMany(Filters.in(ID_FIELD, orphanIds));
+        }
+
+        Map<Document, BucketDelta> statsUpdates = new HashMap<>();
+        for (int i = 0; i < storedBatch.size(); i++) {
+            if (!notArchived.contains(i)) {
+                Document normalised = storedBatch.get(i);
+                addToStatsBuckets(normalised, statsUpdates);
+                if (normalised.containsKey(TEMP_FIELD)) {
+                    result.addStoredReading(normalised.getString(PROVIDER_FIELD), normalised.getString(CITY_FIELD),
+                                            normalised.getDate(OBSERVED_AT_FIELD).toInstant());
                 }
+            }
+        }
+        incrementBuckets(statsColl, statsUpdates, STATS_UPDATE_LATENCY);
+        result.addStored(storedBatch.size() - notArchived.size());
+    }
+
+    /**
+     * Inserts each of the specified normalised records that is not a duplicate,
+     * and returns the indexes of all records that were not inserted. A record
+     * with a city is inserted with an upsert on provider, city and observation
+     * time, which leaves an existing record unchanged. Records without city,
+     * whose observation time is not known to come from the provider, are always
+     * inserted. Duplicates are counted in the specified result, and other
+     * records that were not inserted are reported as failures.
+     */
+    private Set<Integer> upsertNormalisedRecords(List<Document> normalisedBatch, List<Integer> positions,
+                                                 IngestResult result) {
+        List<WriteModel<Document>> writes = new ArrayList<>(normalisedBatch.size());
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        for (Document normalised : normalisedBatch) {
+            if (normalised.containsKey(CITY_FIELD)) {
+                writes.add(new UpdateOneModel<>(Filters.and(Filters.eq(PROVIDER_FIELD, normalised.get(PROVIDER_FIELD)),
+                                                            Filters.eq(CITY_FIELD, normalised.get(CITY_FIELD)),
+                                                            Filters.eq(OBSERVED_AT_FIELD,
+                                                                       normalised.get(OBSERVED_AT_FIELD))),
+                                                Updates.setOnInsert(normalised), upsert));
             } else {
-                flattenedDoc.put(fieldName, value);
+                writes.add(new InsertOneModel<>(normalised));
+            }
+        }
+
+        Set<Integer> notInserted = new HashSet<>();
+        Set<Integer> failed = new HashSet<>();
+        long duplicates = 0;
+        BulkWriteResult writeResult;
+        Histogram insertLatency = Metrics.histogram("weatherdb_insert_micros", COLLECTION_LABEL,
+                                                    OBSERVATIONS_COLLECTION_NAME);
+        long startNanos = System.nanoTime();
+        try {
+            writeResult = observationsColl.bulkWrite(writes, new BulkWriteOptions().ordered(orderedInserts));
+        } catch (MongoBulkWriteException bulkFailure) {
+            writeResult = bulkFailure.getWriteResult();
+            int firstFailure = writes.size();
+            for (BulkWriteError error : bulkFailure.getWriteErrors()) {
+                notInserted.add(error.getIndex());
+                failed.add(error.getIndex());
+                firstFailure = Math.min(firstFailure, error.getIndex());
+                if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                    duplicates++;
+                } else {
+                    result.addFailure(positions.get(error.getIndex()), error.getMessage());
+                }
+            }
+            if (orderedInserts) {
+                for (int i = firstFailure + 1; i < writes.size(); i++) {
+                    notInserted.add(i);
+                    failed.add(i);
+                    result.addFailure(positions.get(i), "not inserted after earlier failure");
+                }
+            }
+        } finally {
+            insertLatency.recordMicrosSince(startNanos);
+        }
+
+        if (writeResult.wasAcknowledged()) {
+            Set<Integer> upserted = new HashSet<>();
+            for (BulkWriteUpsert inserted : writeResult.getUpserts()) {
+                upserted.add(inserted.getIndex());
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                if (writes.get(i) instanceof UpdateOneModel && !upserted.contains(i) && !failed.contains(i)) {
+                    notInserted.add(i);
+                    duplicates++;
+                }
+            }
+        }
+        result.addDuplicates(duplicates);
+        DUPLICATES_SKIPPED.add(duplicates);
+        Metrics.counter("weatherdb_docs_inserted_total", COLLECTION_LABEL, OBSERVATIONS_COLLECTION_NAME)
+               .add(writes.size() - notInserted.size());
+        return notInserted;
+    }
+
+    /**
+     * Inserts the specified documents, and returns the indexes of all documents
+     * that were not inserted. Each document that was not inserted is reported as
+     * a failure in the specified result.
+     */
+    private Set<Integer> insertAll(MongoCollection<Document> collection, List<Document> docs,
+                                   List<Integer> positions, IngestResult result) {
+        Set<Integer> notInserted = new HashSet<>();
+        Histogram insertLatency = Metrics.histogram("weatherdb_insert_micros", COLLECTION_LABEL,
+                                                    collection.getNamespace().getCollectionName());
+        long startNanos = System.nanoTime();
+        try {
+            collection.insertMany(docs, new InsertManyOptions().ordered(orderedInserts));
+        } catch (MongoBulkWriteException bulkFailure) {
+            int firstFailure = docs.size();
+            for (BulkWriteError error : bulkFailure.getWriteErrors()) {
+                notInserted.add(error.getIndex());
+                firstFailure = Math.min(firstFailure, error.getIndex());
+                result.addFailure(positions.get(error.getIndex()), error.getMessage());
+            }
+            if (orderedInserts) {
+                for (int i = firstFailure + 1; i < docs.size(); i++) {
+                    notInserted.add(i);
+                    result.addFailure(positions.get(i), "not inserted after earlier failure");
+                }
             }
+        } finally {
+            insertLatency.recordMicrosSince(startNanos);
         }
-        return flattenedDoc;
+        Metrics.counter("weatherdb_docs_inserted_total", COLLECTION_LABEL,
+                        collection.getNamespace().getCollectionName()).add(docs.size() - notInserted.size());
+        return notInserted;
+    }
 
+    private void addToStatsBuckets(Document normalisedObservation, Map<Document, BucketDelta> buckets) {
+        Double tempReading = normalisedObservation.getDouble(TEMP_FIELD);
+        if (tempReading == null) {
+            return;
+        }
+        TemperatureStats reading = new TemperatureStats();
+        reading.add(tempReading);
+        addToStatsBuckets(normalisedObservation.getString(PROVIDER_FIELD), normalisedObservation.getString(CITY_FIELD),
+                          normalisedObservation.getDate(OBSERVED_AT_FIELD).toInstant(), reading, buckets);
     }
 
-    private Double convertTempToDouble(Object temperature) {
-        return Double.valueOf(((Number) temperature).doubleValue());
+    private void addToStatsBuckets(String providerName, String city, Instant observedAt, TemperatureStats stats,
+                                   Map<Document, BucketDelta> buckets) {
+        Date hour = Date.from(observedAt.truncatedTo(ChronoUnit.HOURS));
+        Date day = Date.from(observedAt.truncatedTo(ChronoUnit.DAYS));
+        for (Document bucketId : Arrays.asList(bucketId(providerName, BUCKET_HOUR, hour),
+                                               bucketId(providerName, BUCKET_DAY, day),
+                                               bucketId(providerName, BUCKET_TOTAL, null))) {
+            buckets.computeIfAbsent(bucketId, id -> new BucketDelta()).addCity(stats, city);
+        }
     }
 
-    private Double convertToCelsius(Double degrees) {
-        if (isInKelvin(degrees)) {
-            return degrees - 273.15;
-        } else { // TODO: Add check for Fahrenheit.
-            return degrees;
+    private void addToRollups(Document normalisedObservation, Map<Document, BucketDelta> rollups) {
+        Double tempReading = normalisedObservation.getDouble(TEMP_FIELD);
+        if (tempReading == null) {
+            return;
+        }
+        Instant observedAt = normalisedObservation.getDate(OBSERVED_AT_FIELD).toInstant();
+        for (RollupPlan.Granularity granularity : RollupPlan.Granularity.values()) {
+            Document rollupId = new Document(PROVIDER_FIELD, normalisedObservation.getString(PROVIDER_FIELD))
+                    .append(CITY_FIELD, normalisedObservation.getString(CITY_FIELD))
+                    .append(BUCKET_FIELD, granularity.getBucketName())
+                    .append(START_FIELD, Date.from(granularity.floor(observedAt)));
+            rollups.computeIfAbsent(rollupId, id -> new BucketDelta()).addReading(tempReading);
         }
     }
 
-    private boolean isInKelvin(Double degrees) {
-        return degrees > 200;
+    private Document bucketId(String providerName, String bucket, Date start) {
+        return new Document(PROVIDER_FIELD, providerName).append(BUCKET_FIELD, bucket).append(START_FIELD, start);
+    }
+
+    private void incrementBuckets(MongoCollection<Document> collection, Map<Document, BucketDelta> statsUpdates,
+                                  Histogram updateLatency) {
+        if (statsUpdates.isEmpty()) {
+            return;
+        }
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        UpdateOptions upsert = new UpdateOptions().upsert(true);
+        for (Map.Entry<Document, BucketDelta> bucket : statsUpdates.entrySet()) {
+            BucketDelta delta = bucket.getValue();
+            List<Bson> update = new ArrayList<>(Arrays.asList(Updates.inc(COUNT_FIELD, delta.stats.getCount()),
+                                                              Updates.inc(SUM_FIELD, delta.stats.getSum()),
+                                                              Updates.inc(SUM_OF_SQUARES_FIELD,
+                                                                          delta.stats.getSumOfSquares()),
+                                                              Updates.min(MIN_FIELD, delta.stats.getMin()),
+                                                              Updates.max(MAX_FIELD, delta.stats.getMax())));
+            if (delta.tempSketch != null) {
+                delta.tempSketch.forEachBin((bin, binCount) -> update.add(Updates.inc(SKETCH_FIELD + "." + bin,
+                                                                                      binCount)));
+            }
+            if (delta.cities != null) {
+                delta.cities.forEachRegister((index, value) -> update.add(Updates.max(CITIES_FIELD + "." + index,
+                                                                                      value)));
+            }
+            updates.add(new UpdateOneModel<>(Filters.eq(ID_FIELD, bucket.getKey()), Updates.combine(update), upsert));
+        }
+        long startNanos = System.nanoTime();
+        collection.bulkWrite(updates);
+        updateLatency.recordMicrosSince(startNanos);
+    }
+
+    private Document toStatsDoc(Document bucketId, BucketDelta bucket) {
+        TemperatureStats stats = bucket.stats;
+        Document statsDoc = new Document(ID_FIELD, bucketId).append(COUNT_FIELD, stats.getCount())
+                                                            .append(SUM_FIELD, stats.getSum())
+                                                            .append(SUM_OF_SQUARES_FIELD, stats.getSumOfSquares())
+                                                            .append(MIN_FIELD, stats.getMin())
+                                                            .append(MAX_FIELD, stats.getMax());
+        if (bucket.cities != null) {
+            Document registers = new Document();
+            bucket.cities.forEachRegister((index, value) -> registers.append(Integer.toString(index), value));
+            statsDoc.append(CITIES_FIELD, registers);
+        }
+        return statsDoc;
+    }
+
+    private TemperatureSketch toTemperatureSketch(Document sketchDoc) {
+        TemperatureSketch sketch = new TemperatureSketch();
+        if (sketchDoc != null) {
+            for (Map.Entry<String, Object> bin : sketchDoc.entrySet()) {
+                sketch.addToBin(Integer.parseInt(bin.getKey()), ((Number) bin.getValue()).longValue());
+            }
+        }
+        return sketch;
+    }
+
+    private void mergeCities(Document statsDoc, DistinctCounter cities) {
+        Document registers = statsDoc.get(CITIES_FIELD, Document.class);
+        if (registers == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> register : registers.entrySet()) {
+            cities.mergeRegister(Integer.parseInt(register.getKey()), ((Number) register.getValue()).intValue());
+        }
+    }
+
+    private TemperatureStats toTemperatureStats(Document statsDoc) {
+        return new TemperatureStats(((Number) statsDoc.get(COUNT_FIELD)).longValue(),
+                                    ((Number) statsDoc.get(SUM_FIELD)).doubleValue(),
+                                    ((Number) statsDoc.get(SUM_OF_SQUARES_FIELD)).doubleValue(),
+                                    ((Number) statsDoc.get(MIN_FIELD)).doubleValue(),
+                                    ((Number) statsDoc.get(MAX_FIELD)).doubleValue());
+    }
+
+    private void readIngestConfig() {
+        String configuredBatchSize = System.getenv("WEATHERDB_BATCH_SIZE");
+        batchSize = configuredBatchSize == null ? DEFAULT_BATCH_SIZE : Integer.parseInt(configuredBatchSize);
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("WEATHERDB_BATCH_SIZE must be positive, was " + batchSize);
+        }
+        orderedInserts = Boolean.parseBoolean(System.getenv("WEATHERDB_ORDERED_INSERTS"));
+    }
+
+    private void readScanConfig() {
+        String configuredThreads = System.getenv("WEATHERDB_SCAN_THREADS");
+        scanThreads = configuredThreads == null
+                ? Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_SCAN_THREADS)
+                : Integer.parseInt(configuredThreads);
+        if (scanThreads < 1) {
+            throw new IllegalArgumentException("WEATHERDB_SCAN_THREADS must be positive, was " + scanThreads);
+        }
+        String configuredBatchSize = System.getenv("WEATHERDB_SCAN_BATCH_SIZE");
+        scanBatchSize = configuredBatchSize == null ? DEFAULT_SCAN_BATCH_SIZE
+                : Integer.parseInt(configuredBatchSize);
     }
 
     private void connectToWeatherDB() {
-        String weatherDbUrl = System.getenv("WEATHERDB_SERVER");
-        connection = MongoClients.create(weatherDbUrl);
+        WeatherDBClientConfig config = new WeatherDBClientConfig(System.getenv("WEATHERDB_SERVER"));
+        connection = MongoClients.create(config.createClientSettings(
+                new PoolMetricsListener(config.getMaxPoolSize())));
+        createArchiveCollection();
+
+        MongoDatabase weatherDb = connection.getDatabase(DB_NAME);
+        archiveColl = weatherDb.getCollection(ARCHIVE_COLLECTION_NAME);
+        observationsColl = weatherDb.getCollection(OBSERVATIONS_COLLECTION_NAME);
+        statsColl = weatherDb.getCollection(STATS_COLLECTION_NAME);
+        rollupsColl = weatherDb.getCollection(ROLLUPS_COLLECTION_NAME);
+        if (config.getIngestWriteConcern() != null) {
+            archiveColl = archiveColl.withWriteConcern(config.getIngestWriteConcern());
+            observationsColl = observationsColl.withWriteConcern(config.getIngestWriteConcern());
+            statsColl = statsColl.withWriteConcern(config.getIngestWriteConcern());
+            rollupsColl = rollupsColl.withWriteConcern(config.getIngestWriteConcern());
+        }
+        rawArchiveStatsColl = weatherDb.getCollection(ARCHIVE_COLLECTION_NAME, RawBsonDocument.class)
+                                       .withReadPreference(config.getStatsReadPreference());
+        observationsStatsColl = observationsColl.withReadPreference(config.getStatsReadPreference());
+        rollupsStatsColl = rollupsColl.withReadPreference(config.getStatsReadPreference());
+        createIndexes();
+    }
+
+    private void createIndexes() {
+        observationsColl.createIndex(Indexes.ascending(OBSERVED_AT_FIELD));
+        observationsColl.createIndex(Indexes.ascending(PROVIDER_FIELD, OBSERVED_AT_FIELD));
+        observationsColl.createIndex(Indexes.ascending(CITY_FIELD, OBSERVED_AT_FIELD));
+        createUniqueObservationIndex();
+        rollupsColl.createIndex(Indexes.ascending(ID_FIELD + "." + BUCKET_FIELD, ID_FIELD + "." + START_FIELD));
+        statsColl.createIndex(Indexes.ascending(ID_FIELD + "." + BUCKET_FIELD, ID_FIELD + "." + START_FIELD));
+
+        createTtlIndex(archiveColl, STORED_AT_FIELD, System.getenv("WEATHERDB_ARCHIVE_TTL_DAYS"));
+        createTtlIndex(observationsColl, ROLLED_UP_AT_FIELD, System.getenv("WEATHERDB_OBSERVATIONS_RETENTION_DAYS"));
+    }
+
+    /**
+     * Creates the unique index on provider, city and observation time. Only
+     * records with a city are indexed, see
+     * {@link #upsertNormalisedRecords(List, List, IngestResult)}. The index can
+     * not be created if duplicates are already stored, or if the non-unique
+     * index created by earlier versions exists. Duplicates are then still
+     * prevented by the upserts, but not when two processes store the same
+     * observation at the same time.
+     */
+    private void createUniqueObservationIndex() {
+        try {
+            observationsColl.createIndex(Indexes.ascending(PROVIDER_FIELD, CITY_FIELD, OBSERVED_AT_FIELD),
+                                         new IndexOptions().name(UNIQUE_OBSERVATION_INDEX).unique(true)
+                                                           .partialFilterExpression(Filters.exists(CITY_FIELD)));
+        } catch (MongoCommandException indexNotCreated) {
+            LOGGER.warn("Could not create unique index on " + OBSERVATIONS_COLLECTION_NAME + "." + PROVIDER_FIELD
+                    + ", " + CITY_FIELD + ", " + OBSERVED_AT_FIELD + ". Remove duplicate observations, and the"
+                    + " index " + PROVIDER_FIELD + "_1_" + CITY_FIELD + "_1_" + OBSERVED_AT_FIELD + "_1 if it"
+                    + " exists, and restart.", indexNotCreated);
+        }
+    }
+
+    private void createTtlIndex(MongoCollection<Document> collection, String dateField, String ttlDays) {
+        if (ttlDays == null) {
+            return;
+        }
+        try {
+            collection.createIndex(Indexes.ascending(dateField),
+                                   new IndexOptions().expireAfter(Long.parseLong(ttlDays), TimeUnit.DAYS));
+        } catch (MongoCommandException existingIndexDiffers) {
+            LOGGER.warn("Could not create TTL index on " + collection.getNamespace().getCollectionName() + "."
+                    + dateField + ", an index with other options already exists.", existingIndexDiffers);
+        }
+    }
+
+    private void createArchiveCollection() {
+        String compressor = System.getenv("WEATHERDB_ARCHIVE_COMPRESSOR");
+        MongoDatabase weatherDb = connection.getDatabase(DB_NAME);
+        if (compressor == null
+                || weatherDb.listCollectionNames().into(new ArrayList<>()).contains(ARCHIVE_COLLECTION_NAME)) {
+            return;
+        }
+        Document wiredTigerOptions = new Document("configString", "block_compressor=" + compressor);
+        weatherDb.createCollection(ARCHIVE_COLLECTION_NAME, new CreateCollectionOptions()
+                .storageEngineOptions(new Document("wiredTiger", wiredTigerOptions)));
+    }
+
+    /**
+     * The change to one statistics or rollup document. Readings added to a
+     * rollup are also added to its temperature sketch, and cities added to a
+     * statistics document are added to its city sketch.
+     */
+    private static class BucketDelta {
+        private final TemperatureStats stats = new TemperatureStats();
+        private TemperatureSketch tempSketch;
+        private DistinctCounter cities;
+
+        private void addReading(double tempReading) {
+            stats.add(tempReading);
+            if (tempSketch == null) {
+                tempSketch = new TemperatureSketch();
+            }
+            tempSketch.add(tempReading);
+        }
+
+        private void addCity(TemperatureStats readings, String city) {
+            stats.merge(readings);
+            if (cities == null) {
+                cities = new DistinctCounter();
+            }
+            cities.add(city);
+        }
+    }
+
+    /**
+     * Computes statistics over the archived observations whose <code>_id</code>
+     * was created in the specified range of seconds since the epoch.
+     */
+    private class ArchiveScanTask extends RecursiveTask<TemperatureStats> {
+        private static final long serialVersionUID = 1L;
+        private final transient MongoCollection<RawBsonDocument> archiveColl;
+        private final long fromSecond;
+        private final long toSecond;
+        private final long minRangeSeconds;
+
+        private ArchiveScanTask(MongoCollection<RawBsonDocument> archiveColl, long fromSecond, long toSecond,
+                                long minRangeSeconds) {
+            this.archiveColl = archiveColl;
+            this.fromSecond = fromSecond;
+            this.toSecond = toSecond;
+            this.minRangeSeconds = minRangeSeconds;
+        }
+
+        @Override
+        protected TemperatureStats compute() {
+            if (toSecond - fromSecond > minRangeSeconds) {
+                long middleSecond = fromSecond + (toSecond - fromSecond) / 2;
+                ArchiveScanTask lowerHalf = new ArchiveScanTask(archiveColl, fromSecond, middleSecond,
+                                                                minRangeSeconds);
+                lowerHalf.fork();
+                TemperatureStats stats = new ArchiveScanTask(archiveColl, middleSecond, toSecond, minRangeSeconds)
+                        .compute();
+                stats.merge(lowerHalf.join());
+                return stats;
+            }
+            return scanRange();
+        }
+
+        private TemperatureStats scanRange() {
+            List<String> tempFields = new ArrayList<>();
+            tempFields.add(TOP_LEVEL_TEMP_FIELD);
+            tempFields.add(WeatherSource.SOURCE_FIELD + "." + WeatherSource.PROVIDER_FIELD);
+            tempFields.addAll(formats.getTempProjections());
+            Bson inRange = Filters.and(Filters.gte(ID_FIELD, firstObjectIdAt(fromSecond)),
+                                       Filters.lt(ID_FIELD, firstObjectIdAt(toSecond)));
+            TemperatureStats stats = new TemperatureStats();
+            try (MongoCursor<RawBsonDocument> observations = archiveColl.find(inRange)
+                    .projection(Projections.include(tempFields)).batchSize(scanBatchSize).iterator()) {
+                while (observations.hasNext()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new CancellationException("The archive scan was interrupted.");
+                    }
+                    RawBsonDocument observation = observations.next();
+                    ARCHIVE_DOCS_SCANNED.increment();
+                    ARCHIVE_BYTES_READ.add(observation.getByteBuffer().remaining());
+                    Double tempReading = tempExtractor.extract(observation);
+                    if (tempReading != null) {
+                        stats.add(tempReading);
+                    }
+                }
+            }
+            return stats;
+        }
     }
 }
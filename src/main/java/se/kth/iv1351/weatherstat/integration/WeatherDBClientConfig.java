@@ -0,0 +1,248 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The configuration of the connection to the weather database. All settings
+ * are read from environment variables, and have defaults that fit this
+ * application. A setting that is not specified by an environment variable, but
+ * as an option in the connection string in WEATHERDB_SERVER, is read from the
+ * connection string.
+ * <ul>
+ * <li>WEATHERDB_MAX_POOL_SIZE (default {@value #DEFAULT_MAX_POOL_SIZE}) and
+ * WEATHERDB_MIN_POOL_SIZE (default {@value #DEFAULT_MIN_POOL_SIZE}), the
+ * highest and lowest number of pooled connections.</li>
+ * <li>WEATHERDB_MAX_WAIT_MS (default {@value #DEFAULT_MAX_WAIT_MS}), how long a
+ * thread may wait for a pooled connection before the operation fails.</li>
+ * <li>WEATHERDB_CONNECT_TIMEOUT_MS (default
+ * {@value #DEFAULT_CONNECT_TIMEOUT_MS}) and WEATHERDB_SOCKET_TIMEOUT_MS
+ * (default {@value #DEFAULT_SOCKET_TIMEOUT_MS}), the timeouts of connecting and
+ * of reading a response.</li>
+ * <li>WEATHERDB_SERVER_SELECTION_TIMEOUT_MS (default
+ * {@value #DEFAULT_SERVER_SELECTION_TIMEOUT_MS}), how long to wait for a
+ * suitable server, for example while a replica set elects a new primary.</li>
+ * <li>WEATHERDB_COMPRESSORS (default {@value #DEFAULT_COMPRESSORS}), the wire
+ * compressors offered to the server, in order of preference. A compressor whose
+ * library is not on the class path is left out. Not used if the connection
+ * string specifies compressors.</li>
+ * <li>WEATHERDB_INGEST_WRITE_CONCERN, the write concern used when storing
+ * observations, either a number of nodes or a name like
+ * <code>majority</code>, and WEATHERDB_INGEST_JOURNAL, whether the write must
+ * be journaled. By default the write concern of the connection string is
+ * used.</li>
+ * <li>WEATHERDB_STATS_READ_PREFERENCE (default
+ * {@value #DEFAULT_STATS_READ_PREFERENCE}), the read preference of statistics
+ * queries. Reading from secondaries moves load from the primary, but the
+ * result may miss the most recently stored observations.</li>
+ * </ul>
+ */
+class WeatherDBClientConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WeatherDBClientConfig.class);
+    private static final int DEFAULT_MAX_POOL_SIZE = 20;
+    private static final int DEFAULT_MIN_POOL_SIZE = 2;
+    private static final int LEASE_POOL_SIZE = 2;
+    private static final long DEFAULT_MAX_WAIT_MS = 10_000;
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+    private static final long DEFAULT_SOCKET_TIMEOUT_MS = 300_000;
+    private static final long DEFAULT_SERVER_SELECTION_TIMEOUT_MS = 10_000;
+    private static final String DEFAULT_COMPRESSORS = "zstd,snappy,zlib";
+    private static final String DEFAULT_STATS_READ_PREFERENCE = "secondaryPreferred";
+    private static final String ZSTD_CLASS = "com.github.luben.zstd.Zstd";
+    private static final String SNAPPY_CLASS = "org.xerial.snappy.Snappy";
+    private final ConnectionString connectionString;
+    private final int maxPoolSize;
+    private final ReadPreference statsReadPreference;
+    private final WriteConcern ingestWriteConcern;
+
+    /**
+     * Reads the configuration.
+     *
+     * @param serverUrl The connection string of the database server.
+     */
+    WeatherDBClientConfig(String serverUrl) {
+        connectionString = new ConnectionString(serverUrl);
+        maxPoolSize = (int) readLong("WEATHERDB_MAX_POOL_SIZE", connectionString.getMaxConnectionPoolSize(),
+                                     DEFAULT_MAX_POOL_SIZE);
+        statsReadPreference = ReadPreference.valueOf(readString("WEATHERDB_STATS_READ_PREFERENCE",
+                                                                DEFAULT_STATS_READ_PREFERENCE));
+        ingestWriteConcern = readWriteConcern();
+    }
+
+    /**
+     * Creates the settings of a client connecting to the configured server.
+     *
+     * @param poolListener Is notified about connection pool events.
+     * @return The client settings.
+     */
+    MongoClientSettings createClientSettings(PoolMetricsListener poolListener) {
+        int minPoolSize = (int) readLong("WEATHERDB_MIN_POOL_SIZE", connectionString.getMinConnectionPoolSize(),
+                                         DEFAULT_MIN_POOL_SIZE);
+        MongoClientSettings.Builder settings = createCommonSettings();
+        settings.applyToConnectionPoolSettings(pool -> pool.maxSize(maxPoolSize).minSize(minPoolSize)
+                .addConnectionPoolListener(poolListener));
+        return settings.build();
+    }
+
+    /**
+     * Creates the settings of the client used for leases, see
+     * {@link MongoLeaseStore}. It has a pool of its own, so that renewing a
+     * lease never waits for a connection held by a long scan, and writes with
+     * majority write concern, so that a lease is not lost if the primary
+     * fails. The ingest write concern and stats read preference are not used.
+     *
+     * @return The client settings.
+     */
+    MongoClientSettings createLeaseClientSettings() {
+        MongoClientSettings.Builder settings = createCommonSettings();
+        settings.applyToConnectionPoolSettings(pool -> pool.maxSize(LEASE_POOL_SIZE).minSize(0));
+        settings.writeConcern(WriteConcern.MAJORITY).readPreference(ReadPreference.primary());
+        return settings.build();
+    }
+
+    /**
+     * @return The highest number of pooled connections.
+     */
+    int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @return The read preference of statistics queries.
+     */
+    ReadPreference getStatsReadPreference() {
+        return statsReadPreference;
+    }
+
+    /**
+     * @return The write concern used when storing observations, or
+     *         <code>null</code> if the write concern of the client shall be
+     *         used.
+     */
+    WriteConcern getIngestWriteConcern() {
+        return ingestWriteConcern;
+    }
+
+    /**
+     * Creates the settings that are the same for all clients, that is all
+     * except the pool size and pool listener.
+     */
+    private MongoClientSettings.Builder createCommonSettings() {
+        long maxWaitMs = readLong("WEATHERDB_MAX_WAIT_MS", connectionString.getMaxWaitTime(), DEFAULT_MAX_WAIT_MS);
+        long connectTimeoutMs = readLong("WEATHERDB_CONNECT_TIMEOUT_MS", connectionString.getConnectTimeout(),
+                                         DEFAULT_CONNECT_TIMEOUT_MS);
+        long socketTimeoutMs = readLong("WEATHERDB_SOCKET_TIMEOUT_MS", connectionString.getSocketTimeout(),
+                                        DEFAULT_SOCKET_TIMEOUT_MS);
+        long serverSelectionTimeoutMs = readLong("WEATHERDB_SERVER_SELECTION_TIMEOUT_MS",
+                                                 connectionString.getServerSelectionTimeout(),
+                                                 DEFAULT_SERVER_SELECTION_TIMEOUT_MS);
+        MongoClientSettings.Builder settings = MongoClientSettings.builder().applyConnectionString(connectionString);
+        settings.applyToConnectionPoolSettings(pool -> pool.maxWaitTime(maxWaitMs, TimeUnit.MILLISECONDS));
+        settings.applyToSocketSettings(socket -> socket.connectTimeout((int) connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout((int) socketTimeoutMs, TimeUnit.MILLISECONDS));
+        settings.applyToClusterSettings(cluster -> cluster.serverSelectionTimeout(serverSelectionTimeoutMs,
+                                                                                  TimeUnit.MILLISECONDS));
+        if (connectionString.getCompressorList().isEmpty()) {
+            settings.compressorList(readCompressors());
+        }
+        return settings;
+    }
+
+    private List<MongoCompressor> readCompressors() {
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String name : readString("WEATHERDB_COMPRESSORS", DEFAULT_COMPRESSORS).split(",")) {
+            switch (name.trim().toLowerCase()) {
+                case "zstd":
+                    if (isOnClassPath(ZSTD_CLASS)) {
+                        compressors.add(MongoCompressor.createZstdCompressor());
+                    }
+                    break;
+                case "snappy":
+                    if (isOnClassPath(SNAPPY_CLASS)) {
+                        compressors.add(MongoCompressor.createSnappyCompressor());
+                    }
+                    break;
+                case "zlib":
+                    compressors.add(MongoCompressor.createZlibCompressor());
+                    break;
+                case "":
+                case "none":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown compressor in WEATHERDB_COMPRESSORS: " + name);
+            }
+        }
+        return compressors;
+    }
+
+    private boolean isOnClassPath(String className) {
+        try {
+            Class.forName(className, false, getClass().getClassLoader());
+            return true;
+        } catch (ClassNotFoundException notFound) {
+            LOGGER.debug("Compressor library " + className + " not found, not offering it to the server.");
+            return false;
+        }
+    }
+
+    private WriteConcern readWriteConcern() {
+        String configured = System.getenv("WEATHERDB_INGEST_WRITE_CONCERN");
+        String journal = System.getenv("WEATHERDB_INGEST_JOURNAL");
+        if (configured == null && journal == null) {
+            return null;
+        }
+        WriteConcern writeConcern = WriteConcern.ACKNOWLEDGED;
+        if (configured != null) {
+            writeConcern = configured.chars().allMatch(Character::isDigit)
+                    ? new WriteConcern(Integer.parseInt(configured))
+                    : new WriteConcern(configured);
+        }
+        return journal == null ? writeConcern : writeConcern.withJournal(Boolean.parseBoolean(journal));
+    }
+
+    private long readLong(String envVarName, Integer connectionStringValue, long defaultValue) {
+        String configuredValue = System.getenv(envVarName);
+        if (configuredValue != null) {
+            return Long.parseLong(configuredValue);
+        }
+        return connectionStringValue == null ? defaultValue : connectionStringValue;
+    }
+
+    private String readString(String envVarName, String defaultValue) {
+        String configuredValue = System.getenv(envVarName);
+        return configuredValue == null ? defaultValue : configuredValue;
+    }
+}
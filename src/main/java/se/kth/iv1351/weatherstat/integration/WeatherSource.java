@@ -0,0 +1,120 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.util.Map;
+
+import org.bson.Document;
+
+/**
+ * One city at one weather API, that is one URL from which observations are
+ * loaded.
+ */
+public class WeatherSource {
+    /**
+     * The field holding the source tag of an observation, see
+     * {@link #tag(String)}.
+     */
+    static final String SOURCE_FIELD = "weatherstatSource";
+    /**
+     * The field holding the provider name in a source tag.
+     */
+    static final String PROVIDER_FIELD = "provider";
+    /**
+     * The field holding the city in a source tag.
+     */
+    static final String CITY_FIELD = "city";
+    private final String providerName;
+    private final String city;
+    private final String url;
+    private final String cacheUrl;
+
+    WeatherSource(String providerName, String city, String url, String cacheUrl) {
+        this.providerName = providerName;
+        this.city = city;
+        this.url = url;
+        this.cacheUrl = cacheUrl;
+    }
+
+    /**
+     * @return The name of the provider hosting the API.
+     */
+    public String getProviderName() {
+        return providerName;
+    }
+
+    /**
+     * @return The city whose weather is observed.
+     */
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * @return The URL from which observations are loaded. The URL contains the
+     *         API key, and must therefore not be logged.
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The URL from which observations are loaded, without the API key.
+     *         Responses are cached under this URL, so that API keys are not
+     *         written to the cache.
+     */
+    String getCacheUrl() {
+        return cacheUrl;
+    }
+
+    /**
+     * Tags the specified observation with this source. The tag is a document
+     * holding the provider name and the city, stored first in the observation,
+     * in the field {@value #SOURCE_FIELD}. Thereby, the provider and city of an
+     * observation are known also if its format does not contain them.
+     *
+     * @param observation An observation loaded from this source.
+     * @return The tagged observation, or the specified observation unchanged if
+     *         it is not a JSON object.
+     */
+    String tag(String observation) {
+        Document payload;
+        try {
+            payload = Document.parse(observation);
+        } catch (RuntimeException notAnObject) {
+            return observation;
+        }
+        Document tagged = new Document(SOURCE_FIELD, new Document(PROVIDER_FIELD, providerName).append(CITY_FIELD,
+                                                                                                       city));
+        for (Map.Entry<String, Object> field : payload.entrySet()) {
+            tagged.putIfAbsent(field.getKey(), field.getValue());
+        }
+        return tagged.toJson();
+    }
+
+    @Override
+    public String toString() {
+        return providerName + "/" + city;
+    }
+}
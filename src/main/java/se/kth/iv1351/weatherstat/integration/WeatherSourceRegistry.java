@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * Holds all weather APIs and cities from which observations are loaded. The
+ * registry is read from the JSON file named by the environment variable
+ * WEATHER_SOURCES_CONFIG, or from the file {@value #DEFAULT_CONFIG_RESOURCE} on
+ * the class path if that variable is not set. The file shall contain an array
+ * <code>providers</code>, where each element has the following fields.
+ * <ul>
+ * <li><code>name</code> The name of the provider.</li>
+ * <li><code>urlTemplate</code> The URL of the API, where <code>{city}</code>
+ * is replaced by the city and <code>{key}</code> by the API key.</li>
+ * <li><code>keyEnvVar</code> The environment variable holding the API
+ * key.</li>
+ * <li><code>maxRequestsPerMinute</code> The highest number of requests per
+ * minute accepted by the provider.</li>
+ * <li><code>pollingIntervalMinutes</code> The interval between two
+ * observations of the same city.</li>
+ * <li><code>cities</code> An array with the cities to observe.</li>
+ * <li><code>format</code> The format of the observations returned by the API,
+ * see {@link ObservationFormat}.</li>
+ * </ul>
+ */
+public class WeatherSourceRegistry {
+    private static final String DEFAULT_CONFIG_RESOURCE = "weather-sources.json";
+    private final List<ProviderConfig> providers = new ArrayList<>();
+
+    /**
+     * Creates a new instance, and reads the configuration file.
+     *
+     * @throws UncheckedIOException If unable to read the configuration file.
+     */
+    public WeatherSourceRegistry() {
+        this(readConfig());
+    }
+
+    /**
+     * Creates a new instance from the specified configuration, instead of
+     * reading the configuration file.
+     *
+     * @param configJson The configuration, in the format of the configuration
+     *                   file.
+     */
+    WeatherSourceRegistry(String configJson) {
+        Document config = Document.parse(configJson);
+        for (Document providerConfig : config.getList("providers", Document.class, Collections.emptyList())) {
+            providers.add(new ProviderConfig(providerConfig));
+        }
+    }
+
+    /**
+     * @return All configured providers.
+     */
+    public List<ProviderConfig> getProviders() {
+        return Collections.unmodifiableList(providers);
+    }
+
+    /**
+     * @return All configured sources, that is all cities at all providers.
+     */
+    public List<WeatherSource> getAllSources() {
+        List<WeatherSource> sources = new ArrayList<>();
+        for (ProviderConfig provider : providers) {
+            sources.addAll(provider.getSources());
+        }
+        return sources;
+    }
+
+    private static String readConfig() {
+        String configFile = System.getenv("WEATHER_SOURCES_CONFIG");
+        try {
+            if (configFile != null) {
+                return Files.readString(Paths.get(configFile));
+            }
+            try (InputStream config = WeatherSourceRegistry.class.getClassLoader()
+                    .getResourceAsStream(DEFAULT_CONFIG_RESOURCE)) {
+                if (config == null) {
+                    throw new IOException("Found no " + DEFAULT_CONFIG_RESOURCE + " on the class path.");
+                }
+                return new String(config.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Could not read weather source configuration.", ioe);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureReading;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * Stores observations and computes temperature statistics over them. No code
+ * outside the integration layer shall know which implementation is used. The
+ * implementation is chosen by the environment variable WEATHERSTAT_STORE, see
+ * {@link #fromEnvironment()}.
+ */
+public interface WeatherStore {
+    /**
+     * The value of WEATHERSTAT_STORE that selects {@link WeatherDAO}, which is
+     * also the default.
+     */
+    String MONGODB_STORE = "mongodb";
+    /**
+     * The value of WEATHERSTAT_STORE that selects {@link LocalWeatherStore}.
+     */
+    String LOCAL_STORE = "local";
+
+    /**
+     * Creates the store named by the environment variable WEATHERSTAT_STORE,
+     * which is either {@value #MONGODB_STORE} (the default) or
+     * {@value #LOCAL_STORE}.
+     *
+     * @return The configured store.
+     * @throws IllegalArgumentException If WEATHERSTAT_STORE names an unknown
+     *                                  store.
+     */
+    static WeatherStore fromEnvironment() {
+        String store = System.getenv("WEATHERSTAT_STORE");
+        if (store == null || MONGODB_STORE.equals(store)) {
+            return new WeatherDAO();
+        }
+        if (LOCAL_STORE.equals(store)) {
+            return new LocalWeatherStore();
+        }
+        throw new IllegalArgumentException("Unknown WEATHERSTAT_STORE " + store + ", must be " + MONGODB_STORE
+                + " or " + LOCAL_STORE);
+    }
+
+    /**
+     * Returns a store that is not opened until it is first used, and then is
+     * the store named by WEATHERSTAT_STORE, see {@link #fromEnvironment()}.
+     * This means neither connection problems nor an unknown WEATHERSTAT_STORE
+     * are reported until the store is used.
+     *
+     * @return The configured store, opened on first use.
+     */
+    static WeatherStore lazilyFromEnvironment() {
+        return new LazyWeatherStore(WeatherStore::fromEnvironment);
+    }
+
+    /**
+     * Stores all specified observations, and updates the running statistics with
+     * their temperature readings. An observation that can not be stored does not
+     * prevent the other observations from being stored.
+     *
+     * @param observations The observations to store, in the JSON format returned
+     *                     by the weather APIs.
+     * @return The number of stored observations, a description of each
+     *         observation that could not be stored, and the time range of the
+     *         stored temperature readings. The position of a failure is the
+     *         index of the observation in the specified list.
+     */
+    IngestResult storeObservations(List<String> observations);
+
+    /**
+     * Returns statistics over all stored temperature readings, as maintained in
+     * the running statistics, without reading any observations.
+     *
+     * @return Statistics over all stored temperature readings.
+     */
+    TemperatureStats findRunningTempStats();
+
+    /**
+     * Discards the running statistics, and recomputes them from all stored
+     * observations.
+     *
+     * @return Statistics over all stored temperature readings, as recomputed.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    TemperatureStats rebuildRunningStats();
+
+    /**
+     * Compacts observations stored since the last call into hourly, daily and
+     * monthly rollups, that are used to answer statistics queries over long time
+     * ranges without reading every observation. This is called periodically, in
+     * the background.
+     *
+     * @return The number of compacted observations.
+     */
+    long rollUpObservations();
+
+    /**
+     * Compares the running statistics with statistics computed by reading all
+     * stored observations.
+     *
+     * @return The result of the comparison.
+     */
+    StatsConsistencyReport checkRunningStats();
+
+    /**
+     * Passes all stored temperature readings, in degrees Celsius, to the
+     * specified consumer.
+     *
+     * @param tempReadings Receives all stored temperature readings.
+     */
+    void findAllTempReadings(DoubleConsumer tempReadings);
+
+    /**
+     * Computes statistics over all stored temperature readings by reading every
+     * stored observation, in parallel where the store supports it.
+     *
+     * @return Statistics over all stored temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    TemperatureStats scanArchiveTempStats();
+
+    /**
+     * @return Statistics over all stored temperature readings, in degrees
+     *         Celsius.
+     */
+    TemperatureStats findTempStats();
+
+    /**
+     * @param query Selects the readings to include.
+     * @return Statistics over the selected temperature readings, in degrees
+     *         Celsius.
+     */
+    TemperatureStats findTempStats(TemperatureQuery query);
+
+    /**
+     * Returns the specified percentile of the selected temperature readings,
+     * calculated with the nearest-rank method.
+     *
+     * @param query      Selects the readings to include.
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The specified percentile, in degrees Celsius, or <code>NaN</code>
+     *         if no readings were selected.
+     */
+    double findTempPercentile(TemperatureQuery query, double percentile);
+
+    /**
+     * Returns a sketch of all stored temperature readings, from which any
+     * percentile can be estimated, see {@link TemperatureSketch}. Memory use
+     * does not depend on the number of readings.
+     *
+     * @return A sketch of all stored temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    TemperatureSketch findTempSketch();
+
+    /**
+     * Returns a sketch of the selected temperature readings, from which any
+     * percentile can be estimated, see {@link TemperatureSketch}. Memory use
+     * does not depend on the number of readings.
+     *
+     * @param query Selects the readings to include.
+     * @return A sketch of the selected temperature readings.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    TemperatureSketch findTempSketch(TemperatureQuery query);
+
+    /**
+     * Estimates the number of distinct cities with stored temperature readings.
+     *
+     * @return The estimated number of cities.
+     */
+    long countDistinctCities();
+
+    /**
+     * Estimates the number of distinct cities among the selected temperature
+     * readings.
+     *
+     * @param query Selects the readings to include.
+     * @return The estimated number of cities.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    long countDistinctCities(TemperatureQuery query);
+
+    /**
+     * Writes the observations stored since the last export to the specified
+     * directory to compressed, columnar files in that directory, partitioned
+     * by provider and day, see {@link ObservationExporter}. Observations are
+     * streamed, memory use does not depend on the number of exported
+     * observations. If the export fails or is interrupted, the files it has
+     * written are removed, and the next export starts from the same position.
+     *
+     * @param directory The export directory.
+     * @return The number of exported observations and written files.
+     * @throws UncheckedIOException  If unable to write the export.
+     * @throws CancellationException If the calling thread is interrupted.
+     */
+    ExportResult exportObservations(Path directory);
+
+    /**
+     * Passes the stored temperature readings observed at or after the specified
+     * time, and then each temperature reading stored from now on, by this or any
+     * other process using the same storage, to the specified listener. The
+     * listener is called with batches of readings, possibly in another thread,
+     * and must not block. Only one listener can watch at a time.
+     *
+     * @param since    Stored readings observed before this time are not passed.
+     * @param listener Receives the readings.
+     * @throws IllegalStateException If another listener is already watching.
+     */
+    void watchReadings(Instant since, Consumer<List<TemperatureReading>> listener);
+
+    /**
+     * Stops passing readings to the listener of
+     * {@link #watchReadings(Instant, Consumer)}. Has no effect if there is no
+     * such listener.
+     */
+    void stopWatching();
+}
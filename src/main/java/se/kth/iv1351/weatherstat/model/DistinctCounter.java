@@ -0,0 +1,237 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct values, for example city names, in a set of
+ * values, without keeping the values. This is a HyperLogLog sketch with
+ * {@value #REGISTER_COUNT} registers, each value is hashed, the hash selects a
+ * register, and the register keeps the highest number of leading zeros seen
+ * in the rest of the hashes it was selected by. The standard error of the
+ * estimate is about 1.6%, regardless of the number of values, and small counts
+ * are close to exact.
+ * <p>
+ * Sketches of different sets of values are merged by keeping the highest value
+ * of each register, see {@link #merge(DistinctCounter)}, which means they can
+ * be kept per time period and combined for any range of periods, and a sketch
+ * can be stored as its non-zero registers, see
+ * {@link #forEachRegister(RegisterConsumer)}. As long as few registers are
+ * set, only those registers are kept in memory, which means a sketch of a
+ * handful of cities needs a few bytes instead of one byte per register. This
+ * class is not thread safe.
+ */
+public class DistinctCounter {
+    /**
+     * The number of registers.
+     */
+    public static final int REGISTER_COUNT = 4096;
+    private static final int INDEX_BITS = 12;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_SPARSE_REGISTERS = REGISTER_COUNT / 16;
+    private static final int VALUE_BITS = 8;
+    private static final int VALUE_MASK = (1 << VALUE_BITS) - 1;
+    private byte[] registers;
+    private int[] sparseRegisters = new int[4];
+    private int sparseCount;
+
+    /**
+     * Receives the registers of a sketch.
+     */
+    public interface RegisterConsumer {
+        /**
+         * @param index The index of the register, between zero and
+         *              {@link DistinctCounter#REGISTER_COUNT}.
+         * @param value The value of the register.
+         */
+        void accept(int index, int value);
+    }
+
+    /**
+     * Adds the specified value to the values summarized by this sketch.
+     * <code>null</code> is ignored.
+     *
+     * @param value The value to add.
+     */
+    public void add(String value) {
+        if (value == null) {
+            return;
+        }
+        long hash = hash(value);
+        int index = (int) (hash >>> (Long.SIZE - INDEX_BITS));
+        int leadingZeros = Long.numberOfLeadingZeros(hash << INDEX_BITS | 1L << (INDEX_BITS - 1));
+        mergeRegister(index, leadingZeros + 1);
+    }
+
+    /**
+     * Sets the specified register to the specified value, unless it already
+     * holds a higher value. This is used to recreate a stored sketch.
+     *
+     * @param index The index of the register, as passed to
+     *              {@link #forEachRegister(RegisterConsumer)}.
+     * @param value The value of the register.
+     * @throws IllegalArgumentException If there is no such register.
+     */
+    public void mergeRegister(int index, int value) {
+        if (index < 0 || index >= REGISTER_COUNT) {
+            throw new IllegalArgumentException("No register " + index + ", there are " + REGISTER_COUNT
+                    + " registers");
+        }
+        if (value <= 0) {
+            return;
+        }
+        if (registers != null) {
+            registers[index] = (byte) Math.max(registers[index], value);
+            return;
+        }
+        int position = findSparseRegister(index);
+        if (position >= 0) {
+            int storedValue = sparseRegisters[position] & VALUE_MASK;
+            sparseRegisters[position] = index << VALUE_BITS | Math.max(storedValue, value);
+            return;
+        }
+        if (sparseCount == MAX_SPARSE_REGISTERS) {
+            toDense();
+            registers[index] = (byte) value;
+            return;
+        }
+        int insertAt = -position - 1;
+        if (sparseCount == sparseRegisters.length) {
+            sparseRegisters = Arrays.copyOf(sparseRegisters, sparseCount * 2);
+        }
+        System.arraycopy(sparseRegisters, insertAt, sparseRegisters, insertAt + 1, sparseCount - insertAt);
+        sparseRegisters[insertAt] = index << VALUE_BITS | value;
+        sparseCount++;
+    }
+
+    /**
+     * Adds all values summarized by the specified sketch to the values
+     * summarized by this sketch. The specified sketch is not changed.
+     *
+     * @param other The sketch to merge into this sketch.
+     */
+    public void merge(DistinctCounter other) {
+        other.forEachRegister(this::mergeRegister);
+    }
+
+    /**
+     * Passes each non-zero register to the specified consumer, in order.
+     *
+     * @param consumer Receives the registers.
+     */
+    public void forEachRegister(RegisterConsumer consumer) {
+        if (registers == null) {
+            for (int i = 0; i < sparseCount; i++) {
+                consumer.accept(sparseRegisters[i] >>> VALUE_BITS, sparseRegisters[i] & VALUE_MASK);
+            }
+            return;
+        }
+        for (int i = 0; i < REGISTER_COUNT; i++) {
+            if (registers[i] != 0) {
+                consumer.accept(i, registers[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The estimated number of distinct values.
+     */
+    public long estimate() {
+        double inverseSum = 0;
+        int emptyRegisters = 0;
+        if (registers == null) {
+            emptyRegisters = REGISTER_COUNT - sparseCount;
+            inverseSum = emptyRegisters;
+            for (int i = 0; i < sparseCount; i++) {
+                inverseSum += 1.0 / (1L << (sparseRegisters[i] & VALUE_MASK));
+            }
+        } else {
+            for (byte register : registers) {
+                inverseSum += 1.0 / (1L << register);
+                if (register == 0) {
+                    emptyRegisters++;
+                }
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / REGISTER_COUNT);
+        double estimate = alpha * REGISTER_COUNT * REGISTER_COUNT / inverseSum;
+        if (estimate <= 2.5 * REGISTER_COUNT && emptyRegisters > 0) {
+            estimate = REGISTER_COUNT * Math.log((double) REGISTER_COUNT / emptyRegisters);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Returns the position of the specified register among the sparse registers
+     * if it is set, and otherwise <code>-(insertion point) - 1</code>.
+     */
+    private int findSparseRegister(int index) {
+        int low = 0;
+        int high = sparseCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleIndex = sparseRegisters[middle] >>> VALUE_BITS;
+            if (middleIndex < index) {
+                low = middle + 1;
+            } else if (middleIndex > index) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    private void toDense() {
+        registers = new byte[REGISTER_COUNT];
+        for (int i = 0; i < sparseCount; i++) {
+            registers[sparseRegisters[i] >>> VALUE_BITS] = (byte) (sparseRegisters[i] & VALUE_MASK);
+        }
+        sparseRegisters = null;
+        sparseCount = 0;
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of the specified value with 64-bit FNV-1a, and
+     * mixes the result with the finalizer of MurmurHash3, since the low-order
+     * bits of FNV-1a are not well enough distributed to select registers.
+     */
+    private long hash(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * The outcome of storing a number of observations. Observations that could not
+ * be stored do not prevent other observations from being stored, instead each
+ * failure is reported here. To limit memory usage when very many observations
+ * fail, only the first {@link #MAX_REPORTED_ERRORS} error messages are kept, but
+ * all failures are counted. Observations that were already stored are neither
+ * stored again nor counted as failures, they are only counted as duplicates.
+ * <p>
+ * Also the time range of the stored temperature readings, per provider and
+ * city, is reported. This tells which statistics have been changed by the
+ * stored observations.
+ */
+public class IngestResult {
+    /**
+     * The highest number of error messages kept by an instance.
+     */
+    public static final int MAX_REPORTED_ERRORS = 100;
+    private long storedCount;
+    private long failedCount;
+    private long duplicateCount;
+    private final List<Failure> failures = new ArrayList<>();
+    private final Map<List<String>, StoredRange> storedRanges = new HashMap<>();
+
+    /**
+     * Describes one observation that could not be stored.
+     */
+    public static class Failure {
+        private final long position;
+        private final String message;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param position Identifies the observation that could not be stored, for
+         *                 example its index in a list or its line in a file.
+         * @param message  The reason the observation could not be stored.
+         */
+        public Failure(long position, String message) {
+            this.position = position;
+            this.message = message;
+        }
+
+        /**
+         * @return Identifies the observation that could not be stored.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return The reason the observation could not be stored.
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * The time range of the temperature readings stored for one provider and
+     * city.
+     */
+    public static class StoredRange {
+        private final String provider;
+        private final String city;
+        private Instant earliest;
+        private Instant latest;
+
+        /**
+         * Creates a new instance covering only the specified time.
+         *
+         * @param provider   The provider that produced the readings.
+         * @param city       The city where the readings were made, or
+         *                   <code>null</code> if the city is not known.
+         * @param observedAt The time of the reading.
+         */
+        public StoredRange(String provider, String city, Instant observedAt) {
+            this.provider = provider;
+            this.city = city;
+            this.earliest = observedAt;
+            this.latest = observedAt;
+        }
+
+        /**
+         * @return The provider that produced the readings.
+         */
+        public String getProvider() {
+            return provider;
+        }
+
+        /**
+         * @return The city where the readings were made, or <code>null</code> if
+         *         the city is not known.
+         */
+        public String getCity() {
+            return city;
+        }
+
+        /**
+         * @return The time of the earliest stored reading.
+         */
+        public Instant getEarliest() {
+            return earliest;
+        }
+
+        /**
+         * @return The time of the latest stored reading.
+         */
+        public Instant getLatest() {
+            return latest;
+        }
+
+        private void extend(Instant from, Instant to) {
+            if (from.isBefore(earliest)) {
+                earliest = from;
+            }
+            if (to.isAfter(latest)) {
+                latest = to;
+            }
+        }
+    }
+
+    /**
+     * Records that the specified number of observations were stored.
+     *
+     * @param count The number of stored observations.
+     */
+    public void addStored(long count) {
+        storedCount += count;
+    }
+
+    /**
+     * Records that a temperature reading with the specified provider, city and
+     * observation time was stored. This does not increase the number of stored
+     * observations, see {@link #addStored(long)}.
+     *
+     * @param provider   The provider that produced the reading.
+     * @param city       The city where the reading was made, or
+     *                   <code>null</code> if the city is not known.
+     * @param observedAt The time of the reading.
+     */
+    public void addStoredReading(String provider, String city, Instant observedAt) {
+        addStoredRange(provider, city, observedAt, observedAt);
+    }
+
+    /**
+     * Records that the specified number of observations were not stored, since
+     * they were already stored.
+     *
+     * @param count The number of duplicate observations.
+     */
+    public void addDuplicates(long count) {
+        duplicateCount += count;
+    }
+
+    /**
+     * Records that an observation could not be stored.
+     *
+     * @param position Identifies the observation that could not be stored.
+     * @param message  The reason the observation could not be stored.
+     */
+    public void addFailure(long position, String message) {
+        failedCount++;
+        if (failures.size() < MAX_REPORTED_ERRORS) {
+            failures.add(new Failure(position, message));
+        }
+    }
+
+    /**
+     * Adds all stored observations and failures in the specified result to this
+     * result. The positions of the failures in the specified result are
+     * translated with the specified function, since they normally are relative
+     * to another set of observations than the positions in this result. The
+     * specified result is not changed.
+     *
+     * @param other           The result to merge into this result.
+     * @param positionMapping Translates the positions of failures in the
+     *                        specified result to positions in this result.
+     */
+    public void merge(IngestResult other, LongUnaryOperator positionMapping) {
+        storedCount += other.storedCount;
+        failedCount += other.failedCount;
+        duplicateCount += other.duplicateCount;
+        for (Failure failure : other.failures) {
+            if (failures.size() >= MAX_REPORTED_ERRORS) {
+                break;
+            }
+            failures.add(new Failure(positionMapping.applyAsLong(failure.position), failure.message));
+        }
+        for (StoredRange range : other.storedRanges.values()) {
+            addStoredRange(range.provider, range.city, range.earliest, range.latest);
+        }
+    }
+
+    /**
+     * @return The number of stored observations.
+     */
+    public long getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * @return The number of observations that could not be stored.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return The number of observations that were not stored, since they were
+     *         already stored.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * @return The first failures, at most {@link #MAX_REPORTED_ERRORS} are
+     *         included.
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return The time range of the stored temperature readings, one range per
+     *         provider and city.
+     */
+    public Collection<StoredRange> getStoredRanges() {
+        return Collections.unmodifiableCollection(storedRanges.values());
+    }
+
+    private void addStoredRange(String provider, String city, Instant from, Instant to) {
+        List<String> providerAndCity = Arrays.asList(provider, city);
+        StoredRange range = storedRanges.get(providerAndCity);
+        if (range == null) {
+            range = new StoredRange(provider, city, from);
+            storedRanges.put(providerAndCity, range);
+        }
+        range.extend(from, to);
+    }
+}
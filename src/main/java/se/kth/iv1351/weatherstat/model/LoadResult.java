@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.util.List;
+
+/**
+ * The outcome of loading observations from all sources. A load is complete if
+ * all sources were loaded, and all loaded observations were stored. Sources
+ * that responded that their observation had not changed were loaded. If the
+ * database was unavailable, the loaded observations were spooled, and will be
+ * stored later.
+ */
+public class LoadResult {
+    private final int sourceCount;
+    private final List<String> failedSources;
+    private final int loadedCount;
+    private final IngestResult ingestResult;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param sourceCount   The number of sources that were called.
+     * @param failedSources A description of each source that could not be
+     *                      loaded.
+     * @param loadedCount   The number of loaded observations.
+     * @param ingestResult  The result of storing the loaded observations, or
+     *                      <code>null</code> if they were spooled.
+     */
+    public LoadResult(int sourceCount, List<String> failedSources, int loadedCount, IngestResult ingestResult) {
+        this.sourceCount = sourceCount;
+        this.failedSources = List.copyOf(failedSources);
+        this.loadedCount = loadedCount;
+        this.ingestResult = ingestResult;
+    }
+
+    /**
+     * @return The number of sources that were called.
+     */
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    /**
+     * @return A description of each source that could not be loaded.
+     */
+    public List<String> getFailedSources() {
+        return failedSources;
+    }
+
+    /**
+     * @return The number of loaded observations.
+     */
+    public int getLoadedCount() {
+        return loadedCount;
+    }
+
+    /**
+     * @return The result of storing the loaded observations, or
+     *         <code>null</code> if they were spooled.
+     */
+    public IngestResult getIngestResult() {
+        return ingestResult;
+    }
+
+    /**
+     * @return <code>true</code> if the loaded observations were spooled, since
+     *         the database was unavailable.
+     */
+    public boolean isSpooled() {
+        return ingestResult == null;
+    }
+
+    /**
+     * @return <code>true</code> if there were sources, and all of them failed.
+     */
+    public boolean isFailed() {
+        return sourceCount > 0 && failedSources.size() == sourceCount;
+    }
+
+    /**
+     * @return <code>true</code> if all sources were loaded, and all loaded
+     *         observations were stored.
+     */
+    public boolean isComplete() {
+        return failedSources.isEmpty() && !isSpooled() && ingestResult.getFailedCount() == 0;
+    }
+}
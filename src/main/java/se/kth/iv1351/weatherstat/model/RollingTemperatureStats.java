@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Statistics over the temperature readings observed during a window of time
+ * that ends now, for example the last hour. The window is divided into a fixed
+ * number of buckets, and readings are added to the bucket covering their
+ * observation time. Buckets that fall out of the window are reused, which means
+ * memory use does not depend on the number of readings. The start of the window
+ * is rounded to a bucket boundary, the statistics therefore cover between the
+ * window length and the window length minus one bucket. Readings observed
+ * before the window are ignored, and readings observed after its end are added
+ * to the newest bucket. Instances are thread safe.
+ */
+public class RollingTemperatureStats {
+    private final Duration window;
+    private final long bucketMillis;
+    private final TemperatureStats[] buckets;
+    private final long[] bucketIndexes;
+
+    /**
+     * Creates a new instance without readings.
+     *
+     * @param window      The length of the window.
+     * @param bucketCount The number of buckets the window is divided into.
+     */
+    public RollingTemperatureStats(Duration window, int bucketCount) {
+        this.window = window;
+        this.bucketMillis = Math.max(1, window.toMillis() / bucketCount);
+        this.buckets = new TemperatureStats[bucketCount];
+        this.bucketIndexes = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new TemperatureStats();
+            bucketIndexes[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return The length of the window.
+     */
+    public Duration getWindow() {
+        return window;
+    }
+
+    /**
+     * Adds the specified reading, unless it was observed before the window
+     * ending at the specified time.
+     *
+     * @param observedAt The observation time of the reading.
+     * @param reading    The reading, in degrees Celsius.
+     * @param now        The end of the window.
+     */
+    public synchronized void add(Instant observedAt, double reading, Instant now) {
+        long newest = bucketIndexOf(now);
+        long index = Math.min(newest, bucketIndexOf(observedAt));
+        if (index <= newest - buckets.length) {
+            return;
+        }
+        int slot = (int) Math.floorMod(index, (long) buckets.length);
+        if (bucketIndexes[slot] > index) {
+            return;
+        }
+        if (bucketIndexes[slot] < index) {
+            buckets[slot] = new TemperatureStats();
+            bucketIndexes[slot] = index;
+        }
+        buckets[slot].add(reading);
+    }
+
+    /**
+     * @param now The end of the window.
+     * @return Statistics over the readings in the window ending at the specified
+     *         time.
+     */
+    public synchronized TemperatureStats getStats(Instant now) {
+        long newest = bucketIndexOf(now);
+        TemperatureStats stats = new TemperatureStats();
+        for (int i = 0; i < buckets.length; i++) {
+            if (bucketIndexes[i] > newest - buckets.length && bucketIndexes[i] <= newest) {
+                stats.merge(buckets[i]);
+            }
+        }
+        return stats;
+    }
+
+    private long bucketIndexOf(Instant instant) {
+        return Math.floorDiv(instant.toEpochMilli(), bucketMillis);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+/**
+ * The result of comparing the incrementally maintained running statistics with
+ * statistics computed by scanning all stored observations.
+ */
+public class StatsConsistencyReport {
+    private static final double RELATIVE_TOLERANCE = 1e-9;
+    private final TemperatureStats runningStats;
+    private final TemperatureStats scannedStats;
+
+    /**
+     * Creates a new instance comparing the specified statistics.
+     *
+     * @param runningStats The incrementally maintained statistics.
+     * @param scannedStats The statistics computed by a full scan.
+     */
+    public StatsConsistencyReport(TemperatureStats runningStats, TemperatureStats scannedStats) {
+        this.runningStats = runningStats;
+        this.scannedStats = scannedStats;
+    }
+
+    /**
+     * @return The incrementally maintained statistics.
+     */
+    public TemperatureStats getRunningStats() {
+        return runningStats;
+    }
+
+    /**
+     * @return The statistics computed by a full scan.
+     */
+    public TemperatureStats getScannedStats() {
+        return scannedStats;
+    }
+
+    /**
+     * The statistics are considered consistent if the counts are equal, and the
+     * sums are equal apart from rounding errors, which are expected since the
+     * readings are summed in different order.
+     *
+     * @return <code>true</code> if the running statistics are consistent with
+     *         the full scan, <code>false</code> if they are not.
+     */
+    public boolean isConsistent() {
+        if (runningStats.getCount() != scannedStats.getCount()) {
+            return false;
+        }
+        double difference = Math.abs(runningStats.getSum() - scannedStats.getSum());
+        double scale = Math.max(1, Math.abs(scannedStats.getSum()));
+        return difference <= RELATIVE_TOLERANCE * scale;
+    }
+}
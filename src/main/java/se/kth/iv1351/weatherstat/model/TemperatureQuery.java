@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * Selects the temperature readings included in a statistics query. Readings
+ * are selected by observation time, and optionally by provider and city.
+ * Instances are immutable.
+ */
+public class TemperatureQuery {
+    private final Instant from;
+    private final Instant to;
+    private final String provider;
+    private final String city;
+
+    /**
+     * Creates a new instance selecting readings observed at or after
+     * <code>from</code> and before <code>to</code>.
+     *
+     * @param from     The start of the time range, inclusive.
+     * @param to       The end of the time range, exclusive.
+     * @param provider Only readings from this provider are selected, or
+     *                 readings from all providers if <code>null</code>.
+     * @param city     Only readings from this city are selected, or readings
+     *                 from all cities if <code>null</code>.
+     */
+    public TemperatureQuery(Instant from, Instant to, String provider, String city) {
+        if (!from.isBefore(to)) {
+            throw new IllegalArgumentException("The time range must end after it starts.");
+        }
+        this.from = from;
+        this.to = to;
+        this.provider = provider;
+        this.city = city;
+    }
+
+    /**
+     * @return The start of the time range, inclusive.
+     */
+    public Instant getFrom() {
+        return from;
+    }
+
+    /**
+     * @return The end of the time range, exclusive.
+     */
+    public Instant getTo() {
+        return to;
+    }
+
+    /**
+     * @return The selected provider, or <code>null</code> if all providers are
+     *         selected.
+     */
+    public String getProvider() {
+        return provider;
+    }
+
+    /**
+     * @return The selected city, or <code>null</code> if all cities are
+     *         selected.
+     */
+    public String getCity() {
+        return city;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof TemperatureQuery)) {
+            return false;
+        }
+        TemperatureQuery that = (TemperatureQuery) other;
+        return from.equals(that.from) && to.equals(that.to) && Objects.equals(provider, that.provider)
+                && Objects.equals(city, that.city);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(from, to, provider, city);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + from + ", " + to + ") provider=" + (provider == null ? "*" : provider) + " city="
+                + (city == null ? "*" : city);
+    }
+}
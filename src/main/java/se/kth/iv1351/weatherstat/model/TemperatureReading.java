@@ -0,0 +1,82 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.time.Instant;
+
+/**
+ * One stored temperature reading. Instances are immutable.
+ */
+public class TemperatureReading {
+    private final String provider;
+    private final String city;
+    private final Instant observedAt;
+    private final double temp;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param provider   The provider that made the observation.
+     * @param city       The city where the observation was made, or
+     *                   <code>null</code> if not known.
+     * @param observedAt The time of the observation.
+     * @param temp       The temperature, in degrees Celsius.
+     */
+    public TemperatureReading(String provider, String city, Instant observedAt, double temp) {
+        this.provider = provider;
+        this.city = city;
+        this.observedAt = observedAt;
+        this.temp = temp;
+    }
+
+    /**
+     * @return The provider that made the observation.
+     */
+    public String getProvider() {
+        return provider;
+    }
+
+    /**
+     * @return The city where the observation was made, or <code>null</code> if
+     *         not known.
+     */
+    public String getCity() {
+        return city;
+    }
+
+    /**
+     * @return The time of the observation.
+     */
+    public Instant getObservedAt() {
+        return observedAt;
+    }
+
+    /**
+     * @return The temperature, in degrees Celsius.
+     */
+    public double getTemp() {
+        return temp;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A sequence of temperature readings, in degrees Celsius. The readings are
+ * stored in a primitive array, which means they are not boxed, and each reading
+ * occupies eight bytes. Readings are appended with {@link #accept(double)},
+ * which means an instance can be passed wherever a <code>DoubleConsumer</code>
+ * of readings is expected. This class is not thread safe.
+ */
+public class TemperatureSeries implements DoubleConsumer {
+    private static final int DEFAULT_CAPACITY = 1024;
+    private double[] readings;
+    private int size;
+
+    /**
+     * Creates a new, empty, instance.
+     */
+    public TemperatureSeries() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new, empty, instance that can hold the specified number of
+     * readings before its storage must grow.
+     *
+     * @param initialCapacity The expected number of readings.
+     */
+    public TemperatureSeries(int initialCapacity) {
+        readings = new double[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Appends the specified reading.
+     *
+     * @param reading The reading to append.
+     */
+    @Override
+    public void accept(double reading) {
+        if (size == readings.length) {
+            readings = Arrays.copyOf(readings, readings.length * 2);
+        }
+        readings[size++] = reading;
+    }
+
+    /**
+     * @return The number of readings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index The index of the searched reading.
+     * @return The reading at the specified index.
+     * @throws IndexOutOfBoundsException If there is no reading at the specified
+     *                                   index.
+     */
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No reading at index " + index + ", size is " + size);
+        }
+        return readings[index];
+    }
+
+    /**
+     * Passes all readings, in order, to the specified consumer.
+     *
+     * @param consumer Receives the readings.
+     */
+    public void forEach(DoubleConsumer consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(readings[i]);
+        }
+    }
+
+    /**
+     * @return Statistics over all readings.
+     */
+    public TemperatureStats getStats() {
+        TemperatureStats stats = new TemperatureStats();
+        forEach(stats);
+        return stats;
+    }
+
+    /**
+     * @return A copy of all readings.
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(readings, size);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * An approximation of the distribution of a set of temperature readings, used
+ * to estimate percentiles without keeping the readings. The sketch counts the
+ * readings in bins of {@value #BIN_WIDTH} degrees Celsius, between
+ * {@value #LOWEST} and {@value #HIGHEST} degrees, which means its size does not
+ * depend on the number of readings. Readings outside that range are counted in
+ * the lowest or highest bin.
+ * <p>
+ * Percentiles are estimated with the nearest-rank method, the same way as exact
+ * percentiles, and the estimate is the middle of the bin holding the reading of
+ * the searched rank. The error is therefore at most half a bin,
+ * {@value #MAX_ERROR} degrees, for readings inside the range of the bins. Since
+ * bins are only counted, sketches of different sets of readings are merged
+ * without any loss of accuracy, see {@link #merge(TemperatureSketch)}, and a
+ * sketch can be stored as the counts of its non-empty bins, see
+ * {@link #forEachBin(BinConsumer)}. Only the bins between the lowest and the
+ * highest reading are kept in memory, a sketch of the readings of one city
+ * during one day therefore only needs a few hundred bytes. An instance can be
+ * passed wherever a <code>DoubleConsumer</code> of readings is expected. This
+ * class is not thread safe.
+ */
+public class TemperatureSketch implements DoubleConsumer {
+    /**
+     * The width of each bin, in degrees Celsius.
+     */
+    public static final double BIN_WIDTH = 0.1;
+    /**
+     * The largest difference between an estimated and an exact percentile, in
+     * degrees Celsius, if all readings are between {@link #LOWEST} and
+     * {@link #HIGHEST}.
+     */
+    public static final double MAX_ERROR = BIN_WIDTH / 2;
+    /**
+     * The lower end of the lowest bin, in degrees Celsius.
+     */
+    public static final double LOWEST = -100;
+    /**
+     * The upper end of the highest bin, in degrees Celsius.
+     */
+    public static final double HIGHEST = 100;
+    private static final int BINS_PER_DEGREE = 10;
+    private static final int BIN_COUNT = (int) ((HIGHEST - LOWEST) * BINS_PER_DEGREE);
+    private long[] bins = new long[0];
+    private int firstBin;
+    private long count;
+
+    /**
+     * Receives the bins of a sketch.
+     */
+    public interface BinConsumer {
+        /**
+         * @param bin      The index of the bin, between zero and the number of
+         *                 bins.
+         * @param binCount The number of readings in the bin.
+         */
+        void accept(int bin, long binCount);
+    }
+
+    /**
+     * Adds the specified reading to the readings summarized by this sketch.
+     * <code>NaN</code> is ignored.
+     *
+     * @param reading The reading to add.
+     */
+    public void add(double reading) {
+        if (Double.isNaN(reading)) {
+            return;
+        }
+        int bin = binOf(reading);
+        cover(bin, bin);
+        bins[bin - firstBin]++;
+        count++;
+    }
+
+    /**
+     * Same as {@link #add(double)}.
+     *
+     * @param reading The reading to add.
+     */
+    @Override
+    public void accept(double reading) {
+        add(reading);
+    }
+
+    /**
+     * Adds the specified number of readings to the specified bin. This is used
+     * to recreate a stored sketch.
+     *
+     * @param bin      The index of the bin, as passed to
+     *                 {@link #forEachBin(BinConsumer)}.
+     * @param binCount The number of readings to add.
+     * @throws IllegalArgumentException If there is no such bin.
+     */
+    public void addToBin(int bin, long binCount) {
+        if (bin < 0 || bin >= BIN_COUNT) {
+            throw new IllegalArgumentException("No bin " + bin + ", there are " + BIN_COUNT + " bins");
+        }
+        cover(bin, bin);
+        bins[bin - firstBin] += binCount;
+        count += binCount;
+    }
+
+    /**
+     * Adds all readings summarized by the specified sketch to the readings
+     * summarized by this sketch. The specified sketch is not changed.
+     *
+     * @param other The sketch to merge into this sketch.
+     */
+    public void merge(TemperatureSketch other) {
+        if (other.bins.length == 0) {
+            return;
+        }
+        cover(other.firstBin, other.firstBin + other.bins.length - 1);
+        for (int i = 0; i < other.bins.length; i++) {
+            bins[other.firstBin - firstBin + i] += other.bins[i];
+        }
+        count += other.count;
+    }
+
+    /**
+     * Passes each non-empty bin to the specified consumer, in order.
+     *
+     * @param consumer Receives the bins.
+     */
+    public void forEachBin(BinConsumer consumer) {
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] != 0) {
+                consumer.accept(firstBin + i, bins[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of readings.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates the specified percentile of the summarized readings.
+     *
+     * @param percentile The searched percentile, between 0 and 100.
+     * @return The estimated percentile, or <code>NaN</code> if there are no
+     *         readings.
+     */
+    public double getPercentile(double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, Math.min(count, (long) Math.ceil(percentile / 100 * count)));
+        long readingsBelow = 0;
+        int index = 0;
+        while (readingsBelow + bins[index] < rank) {
+            readingsBelow += bins[index];
+            index++;
+        }
+        return LOWEST + (firstBin + index + 0.5) / BINS_PER_DEGREE;
+    }
+
+    /**
+     * Grows the kept bins to include the specified bins.
+     */
+    private void cover(int lowestBin, int highestBin) {
+        if (bins.length == 0) {
+            bins = new long[highestBin - lowestBin + 1];
+            firstBin = lowestBin;
+            return;
+        }
+        int newFirstBin = Math.min(firstBin, lowestBin);
+        int newLastBin = Math.max(firstBin + bins.length - 1, highestBin);
+        if (newFirstBin == firstBin && newLastBin == firstBin + bins.length - 1) {
+            return;
+        }
+        long[] grown = new long[newLastBin - newFirstBin + 1];
+        System.arraycopy(bins, 0, grown, firstBin - newFirstBin, bins.length);
+        bins = grown;
+        firstBin = newFirstBin;
+    }
+
+    private int binOf(double reading) {
+        double bin = Math.floor((reading - LOWEST) * BINS_PER_DEGREE);
+        return (int) Math.max(0, Math.min(BIN_COUNT - 1, bin));
+    }
+}
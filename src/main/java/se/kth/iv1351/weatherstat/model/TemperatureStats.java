@@ -0,0 +1,188 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.model;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * Summary statistics over a set of temperature readings, in degrees Celsius.
+ * An instance can be used as an accumulator, readings are added one at a time
+ * with {@link #add(double)}, and statistics from different sets of readings are
+ * combined with {@link #merge(TemperatureStats)}. An instance can be passed
+ * wherever a <code>DoubleConsumer</code> of readings is expected, which means
+ * readings can be summarized while they are read, without being stored.
+ * <p>
+ * The sums are computed with compensated (Kahan-Babuska-Neumaier) summation,
+ * which means the rounding error does not grow with the number of readings, as
+ * it does with a naive sum. This class is not thread safe.
+ */
+public class TemperatureStats implements DoubleConsumer {
+    private long count;
+    private double sum;
+    private double sumCompensation;
+    private double sumOfSquares;
+    private double sumOfSquaresCompensation;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Creates a new instance without any readings.
+     */
+    public TemperatureStats() {
+    }
+
+    /**
+     * Creates a new instance summarizing readings with the specified properties.
+     *
+     * @param count        The number of readings.
+     * @param sum          The sum of all readings.
+     * @param sumOfSquares The sum of the squares of all readings.
+     * @param min          The lowest reading.
+     * @param max          The highest reading.
+     */
+    public TemperatureStats(long count, double sum, double sumOfSquares, double min, double max) {
+        this.count = count;
+        this.sum = sum;
+        this.sumOfSquares = sumOfSquares;
+        if (count > 0) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Adds the specified reading to the readings summarized by this object.
+     *
+     * @param reading The reading to add.
+     */
+    public void add(double reading) {
+        count++;
+        addToSum(reading);
+        addToSumOfSquares(reading * reading);
+        min = Math.min(min, reading);
+        max = Math.max(max, reading);
+    }
+
+    /**
+     * Same as {@link #add(double)}.
+     *
+     * @param reading The reading to add.
+     */
+    @Override
+    public void accept(double reading) {
+        add(reading);
+    }
+
+    /**
+     * Adds all readings summarized by the specified object to the readings
+     * summarized by this object. The specified object is not changed.
+     *
+     * @param other The statistics to merge into this object.
+     */
+    public void merge(TemperatureStats other) {
+        count += other.count;
+        addToSum(other.sum);
+        sumCompensation += other.sumCompensation;
+        addToSumOfSquares(other.sumOfSquares);
+        sumOfSquaresCompensation += other.sumOfSquaresCompensation;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return The number of readings.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The sum of all readings.
+     */
+    public double getSum() {
+        return sum + sumCompensation;
+    }
+
+    /**
+     * @return The sum of the squares of all readings.
+     */
+    public double getSumOfSquares() {
+        return sumOfSquares + sumOfSquaresCompensation;
+    }
+
+    /**
+     * @return The lowest reading, or <code>NaN</code> if there are no readings.
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * @return The highest reading, or <code>NaN</code> if there are no readings.
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * @return The average of all readings, or <code>NaN</code> if there are no
+     *         readings.
+     */
+    public double getAverage() {
+        return getSum() / count;
+    }
+
+    /**
+     * @return The population standard deviation of all readings, or
+     *         <code>NaN</code> if there are no readings.
+     */
+    public double getStandardDeviation() {
+        double average = getAverage();
+        double variance = getSumOfSquares() / count - average * average;
+        return Math.sqrt(Math.max(0, variance));
+    }
+
+    private void addToSum(double value) {
+        double newSum = sum + value;
+        sumCompensation += lostLowOrderBits(sum, value, newSum);
+        sum = newSum;
+    }
+
+    private void addToSumOfSquares(double value) {
+        double newSum = sumOfSquares + value;
+        sumOfSquaresCompensation += lostLowOrderBits(sumOfSquares, value, newSum);
+        sumOfSquares = newSum;
+    }
+
+    /**
+     * Returns the part of the smaller of the two terms that was lost to rounding
+     * when the specified sum was computed.
+     */
+    private double lostLowOrderBits(double term, double otherTerm, double sum) {
+        if (Math.abs(term) >= Math.abs(otherTerm)) {
+            return (term - sum) + otherTerm;
+        }
+        return (otherTerm - sum) + term;
+    }
+}
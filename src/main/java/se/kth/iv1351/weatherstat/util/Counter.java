@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metric whose value only increases, for example the number of failed
+ * requests. Instances are created by {@link Metrics}. This class is thread safe,
+ * and incrementing does not block, even when many threads increment the same
+ * counter.
+ */
+public class Counter {
+    private final String name;
+    private final String labels;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String labels) {
+        this.name = name;
+        this.labels = labels;
+    }
+
+    /**
+     * Increments the counter by one.
+     */
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * Increments the counter by the specified amount.
+     *
+     * @param amount The amount to add, must not be negative.
+     */
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    /**
+     * @return The current value of the counter.
+     */
+    public long get() {
+        return value.sum();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getLabels() {
+        return labels;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metric counting how many recorded values fall in each of a fixed set of
+ * buckets, for example request latencies or response sizes. The bucket bounds
+ * are powers of four, from 1 to 4^{@value #NO_OF_BOUNDS}, which means a recorded
+ * value is known within a factor of four. Instances are created by
+ * {@link Metrics}. This class is thread safe, and recording a value does neither
+ * allocate memory nor block.
+ */
+public class Histogram {
+    private static final int NO_OF_BOUNDS = 20;
+    private static final long[] UPPER_BOUNDS = new long[NO_OF_BOUNDS + 1];
+    private static final long NANOS_PER_MICRO = 1000;
+    private final String name;
+    private final String labels;
+    private final LongAdder[] buckets = new LongAdder[UPPER_BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    static {
+        long bound = 1;
+        for (int i = 0; i < UPPER_BOUNDS.length; i++) {
+            UPPER_BOUNDS[i] = bound;
+            bound *= 4;
+        }
+    }
+
+    Histogram(String name, String labels) {
+        this.name = name;
+        this.labels = labels;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the specified value.
+     *
+     * @param value The value to record, must not be negative.
+     */
+    public void record(long value) {
+        buckets[bucketIndex(value)].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Records the time passed since the specified time, in microseconds.
+     *
+     * @param startNanos The start time, as returned by
+     *                   <code>System.nanoTime()</code>.
+     */
+    public void recordMicrosSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @return The number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return The sum of all recorded values.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns an upper bound of the specified quantile. The returned value is the
+     * upper bound of the bucket holding the quantile, which means the quantile is
+     * at most four times smaller than the returned value.
+     *
+     * @param quantile The searched quantile, between 0 and 1.
+     * @return An upper bound of the specified quantile, or zero if no values
+     *         were recorded. If the quantile is above the highest bucket bound,
+     *         <code>Long.MAX_VALUE</code> is returned.
+     */
+    public long getQuantileUpperBound(double quantile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long cumulative = 0;
+        for (int i = 0; i < UPPER_BOUNDS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return UPPER_BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return The number of values in each bucket. The last element holds values
+     *         above the highest bound.
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return The upper bound of each bucket, except the last bucket, which is
+     *         unbounded.
+     */
+    static long[] getUpperBounds() {
+        return UPPER_BOUNDS.clone();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getLabels() {
+        return labels;
+    }
+
+    private int bucketIndex(long value) {
+        if (value <= 1) {
+            return 0;
+        }
+        int log4 = (64 - Long.numberOfLeadingZeros(value - 1) + 1) / 2;
+        return Math.min(log4, UPPER_BOUNDS.length);
+    }
+}
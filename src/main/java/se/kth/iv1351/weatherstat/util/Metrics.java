@@ -0,0 +1,168 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds all metrics in the application. A metric is identified by its name and
+ * labels, the same metric instance is returned each time a metric with the same
+ * name and labels is requested. Metric names follow the Prometheus naming
+ * conventions, and all metrics can be written in the Prometheus text format.
+ * All methods are thread safe.
+ */
+public final class Metrics {
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the specified name and labels, and creates it if
+     * it does not exist.
+     *
+     * @param name   The name of the counter.
+     * @param labels Label names and values, alternating, for example
+     *               <code>"provider", "weatherbit"</code>.
+     * @return The specified counter.
+     */
+    public static Counter counter(String name, String... labels) {
+        String formattedLabels = formatLabels(labels);
+        return COUNTERS.computeIfAbsent(id(name, formattedLabels), id -> new Counter(name, formattedLabels));
+    }
+
+    /**
+     * Returns the histogram with the specified name and labels, and creates it if
+     * it does not exist.
+     *
+     * @param name   The name of the histogram.
+     * @param labels Label names and values, alternating, for example
+     *               <code>"provider", "weatherbit"</code>.
+     * @return The specified histogram.
+     */
+    public static Histogram histogram(String name, String... labels) {
+        String formattedLabels = formatLabels(labels);
+        return HISTOGRAMS.computeIfAbsent(id(name, formattedLabels), id -> new Histogram(name, formattedLabels));
+    }
+
+    /**
+     * Registers a gauge, that is a metric whose value is read when the metrics
+     * are written. A gauge that is already registered with the same name and
+     * labels is replaced.
+     *
+     * @param name   The name of the gauge.
+     * @param value  Called to read the current value of the gauge.
+     * @param labels Label names and values, alternating.
+     */
+    public static void gauge(String name, LongSupplier value, String... labels) {
+        GAUGES.put(id(name, formatLabels(labels)), value);
+    }
+
+    /**
+     * @return All metrics, in the Prometheus text exposition format.
+     */
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        for (Counter counter : new TreeMap<>(COUNTERS).values()) {
+            text.append(counter.getName()).append(braces(counter.getLabels())).append(' ').append(counter.get())
+                .append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            text.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        long[] upperBounds = Histogram.getUpperBounds();
+        for (Histogram histogram : new TreeMap<>(HISTOGRAMS).values()) {
+            String labelPrefix = histogram.getLabels().isEmpty() ? "" : histogram.getLabels() + ",";
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String bound = i < upperBounds.length ? Long.toString(upperBounds[i]) : "+Inf";
+                text.append(histogram.getName()).append("_bucket{").append(labelPrefix).append("le=\"")
+                    .append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(histogram.getName()).append("_sum").append(braces(histogram.getLabels())).append(' ')
+                .append(histogram.getSum()).append('\n');
+            text.append(histogram.getName()).append("_count").append(braces(histogram.getLabels())).append(' ')
+                .append(cumulative).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return All metrics, one line per metric, in a format intended to be read
+     *         by humans. Histograms are summarized by count, mean, and upper
+     *         bounds of the median and the 99th percentile.
+     */
+    public static String toSummaryText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Counter> counter : new TreeMap<>(COUNTERS).entrySet()) {
+            text.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(GAUGES).entrySet()) {
+            text.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            text.append(entry.getKey()).append(" count=").append(count);
+            if (count > 0) {
+                text.append(" mean=").append(histogram.getSum() / count)
+                    .append(" p50<=").append(histogram.getQuantileUpperBound(0.5))
+                    .append(" p99<=").append(histogram.getQuantileUpperBound(0.99));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String id(String name, String formattedLabels) {
+        return name + braces(formattedLabels);
+    }
+
+    private static String braces(String formattedLabels) {
+        return formattedLabels.isEmpty() ? "" : "{" + formattedLabels + "}";
+    }
+
+    private static String formatLabels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs.");
+        }
+        StringBuilder formatted = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                formatted.append(',');
+            }
+            String value = labels[i + 1] == null ? "" : labels[i + 1];
+            formatted.append(labels[i]).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\""))
+                     .append('"');
+        }
+        return formatted.toString();
+    }
+}
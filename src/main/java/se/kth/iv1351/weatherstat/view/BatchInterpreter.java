@@ -0,0 +1,372 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.view;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.controller.Controller;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.LoadResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Interprets commands read from a script, for example a file or the command
+ * line, instead of from a user. The commands are the same as in the
+ * interactive interpreters, but no prompt is printed, and the result of each
+ * command is printed as one line of JSON, see {@link #execute(String)}. All
+ * commands are performed by the same controller, which means the database
+ * connection and the statistics cache are shared by all commands. Empty lines
+ * and lines starting with <code>#</code> are ignored. The commands that only
+ * make sense interactively, <code>watch</code>, <code>unwatch</code>,
+ * <code>jobs</code> and <code>cancel</code>, are illegal. A read-only
+ * interpreter also treats the commands that load, store or write data,
+ * <code>load</code>, <code>start</code>, <code>stop</code>,
+ * <code>backfill</code>, <code>rebuild</code> and <code>export</code>, as
+ * illegal.
+ * <p>
+ * A failing command does not stop the script. The exit code of a script is the
+ * highest exit code of its commands, see {@link #EXIT_OK},
+ * {@link #EXIT_COMMAND_FAILED}, {@link #EXIT_ILLEGAL_COMMAND} and
+ * {@link #EXIT_PROBLEMS_REPORTED}.
+ */
+public class BatchInterpreter {
+    /**
+     * The exit code when all commands succeeded.
+     */
+    public static final int EXIT_OK = 0;
+    /**
+     * The exit code when a command failed, for example because the database was
+     * unavailable. This includes a <code>load</code> where all sources failed,
+     * or where the loaded observations were spooled.
+     */
+    public static final int EXIT_COMMAND_FAILED = 1;
+    /**
+     * The exit code when a command was not known, or had illegal parameters.
+     */
+    public static final int EXIT_ILLEGAL_COMMAND = 2;
+    /**
+     * The exit code when a command was performed, but reported problems, which
+     * means a <code>backfill</code> where some observations could not be stored,
+     * a <code>load</code> where some sources failed or some observations could
+     * not be stored, or a <code>check</code> that found the running statistics
+     * inconsistent.
+     */
+    public static final int EXIT_PROBLEMS_REPORTED = 3;
+    /**
+     * The exit code when the application could not be started, for example
+     * because the database could not be reached.
+     */
+    public static final int EXIT_NOT_STARTED = 4;
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchInterpreter.class);
+    private static final String COMMENT_PREFIX = "#";
+    private static final double P95_PERCENTILE = 95;
+    private static final double MEDIAN_PERCENTILE = 50;
+    private final Controller ctrl;
+    private final boolean readOnly;
+
+    /**
+     * Creates a new instance that will use the specified controller for all
+     * operations.
+     *
+     * @param ctrl The controller used by this instance.
+     */
+    public BatchInterpreter(Controller ctrl) {
+        this(ctrl, false);
+    }
+
+    /**
+     * Creates a new instance that will use the specified controller for all
+     * operations.
+     *
+     * @param ctrl     The controller used by this instance.
+     * @param readOnly <code>true</code> if commands that load, store or write
+     *                 data shall be illegal.
+     */
+    public BatchInterpreter(Controller ctrl, boolean readOnly) {
+        this.ctrl = ctrl;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Performs each command read from the specified reader, in order, and prints
+     * the result of each command to the specified stream. Stops at the end of
+     * the input, or at the <code>quit</code> command.
+     *
+     * @param commands Supplies the commands, one per line.
+     * @param results  Receives the results, one JSON object per line.
+     * @return The highest exit code of the performed commands.
+     * @throws IOException If unable to read the commands.
+     */
+    public int run(BufferedReader commands, PrintStream results) throws IOException {
+        int exitCode = EXIT_OK;
+        for (String line = commands.readLine(); line != null; line = commands.readLine()) {
+            if (isIgnored(line)) {
+                continue;
+            }
+            if (new CmdLine(line).getCmd() == Command.QUIT) {
+                break;
+            }
+            Reply reply = execute(line);
+            results.println(reply.getJson());
+            results.flush();
+            exitCode = Math.max(exitCode, reply.getExitCode());
+        }
+        return exitCode;
+    }
+
+    /**
+     * Same as {@link #run(BufferedReader, PrintStream)}, but performs the
+     * specified commands.
+     *
+     * @param commands The commands to perform.
+     * @param results  Receives the results, one JSON object per line.
+     * @return The highest exit code of the performed commands.
+     */
+    public int run(List<String> commands, PrintStream results) {
+        try {
+            return run(new BufferedReader(new StringReader(String.join(System.lineSeparator(), commands))),
+                       results);
+        } catch (IOException cannotHappen) {
+            throw new IllegalStateException("Could not read a string.", cannotHappen);
+        }
+    }
+
+    /**
+     * Tells if the specified line is empty, or a comment.
+     *
+     * @param line A line of a script.
+     * @return <code>true</code> if the line shall not be performed.
+     */
+    static boolean isIgnored(String line) {
+        String trimmed = line.trim();
+        return trimmed.isEmpty() || trimmed.startsWith(COMMENT_PREFIX);
+    }
+
+    /**
+     * Performs the specified command. The result is a JSON object with the
+     * fields <code>command</code>, the command as given, <code>ok</code>,
+     * <code>exitCode</code>, <code>elapsedMs</code>, and either
+     * <code>result</code>, which is <code>null</code> for commands without a
+     * result, or <code>error</code>, describing why the command failed.
+     *
+     * @param line A command, with parameters.
+     * @return The result of the command.
+     */
+    Reply execute(String line) {
+        long startNanos = System.nanoTime();
+        CmdLine cmdLine = new CmdLine(line.trim());
+        JsonFormat.ObjectBuilder json = new JsonFormat.ObjectBuilder().add("command", cmdLine.getUserInput());
+        int exitCode;
+        String resultOrError;
+        boolean failed = false;
+        try {
+            Outcome outcome = perform(cmdLine);
+            exitCode = outcome.exitCode;
+            resultOrError = outcome.resultJson;
+        } catch (IllegalArgumentException | DateTimeException illegalCommand) {
+            exitCode = EXIT_ILLEGAL_COMMAND;
+            resultOrError = illegalCommand.getMessage();
+            failed = true;
+        } catch (Exception commandFailed) {
+            LOGGER.error("Operation failed: " + line, commandFailed);
+            exitCode = EXIT_COMMAND_FAILED;
+            resultOrError = commandFailed.toString();
+            failed = true;
+        }
+        json.add("ok", exitCode == EXIT_OK).add("exitCode", exitCode)
+            .add("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        if (failed) {
+            json.add("error", resultOrError);
+        } else {
+            json.addJson("result", resultOrError);
+        }
+        return new Reply(json.build(), exitCode);
+    }
+
+    private Outcome perform(CmdLine cmdLine) throws IOException {
+        if (!isAvailable(cmdLine.getCmd())) {
+            throw new IllegalArgumentException("illegal command");
+        }
+        switch (cmdLine.getCmd()) {
+            case HELP:
+                List<String> commands = new ArrayList<>();
+                for (Command command : Command.values()) {
+                    if (isAvailable(command)) {
+                        commands.add(command.toString().toLowerCase());
+                    }
+                }
+                return new Outcome(JsonFormat.formatStrings(commands));
+            case QUIT:
+                return new Outcome("null");
+            case LOAD:
+                LoadResult loadResult = ctrl.loadFromAllApis();
+                return new Outcome(JsonFormat.formatLoadResult(loadResult), exitCodeOf(loadResult));
+            case START:
+                ctrl.startHourlyLoading();
+                return new Outcome("null");
+            case STOP:
+                ctrl.stopHourlyLoading();
+                return new Outcome("null");
+            case AVG:
+                return new Outcome(JsonFormat.formatNumber(findStats(cmdLine).getAverage()));
+            case MIN:
+                return new Outcome(JsonFormat.formatNumber(findStats(cmdLine).getMin()));
+            case MAX:
+                return new Outcome(JsonFormat.formatNumber(findStats(cmdLine).getMax()));
+            case STDDEV:
+                return new Outcome(JsonFormat.formatNumber(findStats(cmdLine).getStandardDeviation()));
+            case PERCENTILE:
+                String percentile = cmdLine.getParameter(0);
+                TemperatureQuery percentileQuery = cmdLine.getQuery(1);
+                if (percentile == null || percentileQuery == null) {
+                    throw new IllegalArgumentException(ResultFormat.PERCENTILE_USAGE);
+                }
+                return new Outcome(JsonFormat.formatNumber(
+                        ctrl.getTempPercentile(percentileQuery, Double.parseDouble(percentile))));
+            case P95:
+                return estimatePercentile(cmdLine, P95_PERCENTILE);
+            case MEDIAN:
+                return estimatePercentile(cmdLine, MEDIAN_PERCENTILE);
+            case CITIES:
+                return new Outcome(Long.toString(ctrl.estimateDistinctCities(cmdLine.getQuery(0))));
+            case BACKFILL:
+                if (cmdLine.getParameter(0) == null) {
+                    throw new IllegalArgumentException("usage: backfill <file>");
+                }
+                IngestResult ingestResult = ctrl.backfill(cmdLine.getParameter(0));
+                return new Outcome(JsonFormat.formatIngestResult(ingestResult),
+                                   ingestResult.getFailedCount() == 0 ? EXIT_OK : EXIT_PROBLEMS_REPORTED);
+            case REBUILD:
+                ctrl.rebuildRunningStats();
+                return new Outcome("null");
+            case CHECK:
+                StatsConsistencyReport report = ctrl.checkRunningStats();
+                return new Outcome(JsonFormat.formatConsistencyReport(report),
+                                   report.isConsistent() ? EXIT_OK : EXIT_PROBLEMS_REPORTED);
+            case SCAN:
+                return new Outcome(JsonFormat.formatStats(ctrl.scanArchiveTempStats()));
+            case EXPORT:
+                return new Outcome(JsonFormat.formatExportResult(ctrl.exportObservations(cmdLine.getParameter(0))));
+            case METRICS:
+                return new Outcome(JsonFormat.formatString(Metrics.toSummaryText()));
+            default:
+                throw new IllegalArgumentException("illegal command");
+        }
+    }
+
+    private boolean isAvailable(Command command) {
+        switch (command) {
+            case WATCH:
+            case UNWATCH:
+            case JOBS:
+            case CANCEL:
+            case ILLEGAL_COMMAND:
+                return false;
+            case LOAD:
+            case START:
+            case STOP:
+            case BACKFILL:
+            case REBUILD:
+            case EXPORT:
+                return !readOnly;
+            default:
+                return true;
+        }
+    }
+
+    private int exitCodeOf(LoadResult loadResult) {
+        if (loadResult.isFailed() || loadResult.isSpooled()) {
+            return EXIT_COMMAND_FAILED;
+        }
+        return loadResult.isComplete() ? EXIT_OK : EXIT_PROBLEMS_REPORTED;
+    }
+
+    private Outcome estimatePercentile(CmdLine cmdLine, double percentile) {
+        double estimate = ctrl.estimateTempPercentile(cmdLine.getQuery(0), percentile);
+        return new Outcome(new JsonFormat.ObjectBuilder().add("estimate", estimate)
+                                                         .add("maxError", TemperatureSketch.MAX_ERROR)
+                                                         .build());
+    }
+
+    private TemperatureStats findStats(CmdLine cmdLine) {
+        TemperatureQuery query = cmdLine.getQuery(0);
+        return query == null ? ctrl.getTempStats() : ctrl.getTempStats(query);
+    }
+
+    /**
+     * The result of one command, as printed, and its exit code.
+     */
+    static final class Reply {
+        private final String json;
+        private final int exitCode;
+
+        private Reply(String json, int exitCode) {
+            this.json = json;
+            this.exitCode = exitCode;
+        }
+
+        /**
+         * @return The result, as one line of JSON.
+         */
+        String getJson() {
+            return json;
+        }
+
+        /**
+         * @return The exit code of the command.
+         */
+        int getExitCode() {
+            return exitCode;
+        }
+    }
+
+    private static final class Outcome {
+        private final String resultJson;
+        private final int exitCode;
+
+        private Outcome(String resultJson) {
+            this(resultJson, EXIT_OK);
+        }
+
+        private Outcome(String resultJson, int exitCode) {
+            this.resultJson = resultJson;
+            this.exitCode = exitCode;
+        }
+    }
+}
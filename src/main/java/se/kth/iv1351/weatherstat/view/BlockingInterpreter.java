@@ -24,23 +24,35 @@
 
 package se.kth.iv1351.weatherstat.view;
 
+import java.time.Duration;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.kth.iv1351.weatherstat.controller.Controller;
 import se.kth.iv1351.weatherstat.integration.WeatherApiClient;
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Metrics;
 
 /**
  * Reads and interprets user commands. This command interpreter is blocking, the
  * user interface does not react to user input while a command is being
- * executed.
+ * executed. Live statistics, see the <code>watch</code> command, are however
+ * printed as soon as they are updated.
  */
 public class BlockingInterpreter {
     private static final Logger LOGGER = LoggerFactory.getLogger(WeatherApiClient.class);
     private static final String PROMPT = "> ";
+    private static final double P95_PERCENTILE = 95;
+    private static final double MEDIAN_PERCENTILE = 50;
     private final Scanner console = new Scanner(System.in);
+    private final Consumer<Map<Duration, TemperatureStats>> liveStatsPrinter = this::printLiveStats;
     private Controller ctrl;
     private boolean keepReceivingCmds = false;
 
@@ -81,6 +93,7 @@ public class BlockingInterpreter {
                         }
                         break;
                     case QUIT:
+                        ctrl.shutdown();
                         keepReceivingCmds = false;
                         break;
                     case LOAD:
@@ -93,7 +106,72 @@ public class BlockingInterpreter {
                         ctrl.stopHourlyLoading();
                         break;
                     case AVG:
-                        System.out.println(String.format("%.2f", ctrl.getAverageTemp()) + " \u00B0C");
+                        TemperatureQuery avgQuery = cmdLine.getQuery(0);
+                        if (avgQuery == null) {
+                            System.out.println(ResultFormat.formatTemp(ctrl.getAverageTemp()));
+                        } else {
+                            System.out.println(ResultFormat.formatTemp(ctrl.getTempStats(avgQuery).getAverage()));
+                        }
+                        break;
+                    case MIN:
+                        System.out.println(ResultFormat.formatTemp(findStats(cmdLine).getMin()));
+                        break;
+                    case MAX:
+                        System.out.println(ResultFormat.formatTemp(findStats(cmdLine).getMax()));
+                        break;
+                    case STDDEV:
+                        System.out.println(ResultFormat.formatTemp(findStats(cmdLine).getStandardDeviation()));
+                        break;
+                    case PERCENTILE:
+                        double percentile = Double.parseDouble(cmdLine.getParameter(0));
+                        TemperatureQuery percentileQuery = cmdLine.getQuery(1);
+                        if (percentileQuery == null) {
+                            System.out.println(ResultFormat.PERCENTILE_USAGE);
+                            break;
+                        }
+                        System.out.println(ResultFormat.formatTemp(ctrl.getTempPercentile(percentileQuery, percentile)));
+                        break;
+                    case P95:
+                        System.out.println(ResultFormat.formatEstimatedTemp(
+                                ctrl.estimateTempPercentile(cmdLine.getQuery(0), P95_PERCENTILE)));
+                        break;
+                    case MEDIAN:
+                        System.out.println(ResultFormat.formatEstimatedTemp(
+                                ctrl.estimateTempPercentile(cmdLine.getQuery(0), MEDIAN_PERCENTILE)));
+                        break;
+                    case CITIES:
+                        System.out.println(ResultFormat.formatCityCount(ctrl.estimateDistinctCities(cmdLine.getQuery(0))));
+                        break;
+                    case BACKFILL:
+                        long startTime = System.nanoTime();
+                        IngestResult result = ctrl.backfill(cmdLine.getParameter(0));
+                        System.out.println(ResultFormat.formatIngestResult(result, System.nanoTime() - startTime));
+                        break;
+                    case REBUILD:
+                        ctrl.rebuildRunningStats();
+                        break;
+                    case CHECK:
+                        System.out.println(ResultFormat.formatConsistencyReport(ctrl.checkRunningStats()));
+                        break;
+                    case SCAN:
+                        long scanStartTime = System.nanoTime();
+                        TemperatureStats scanned = ctrl.scanArchiveTempStats();
+                        System.out.println(ResultFormat.formatScan(scanned, System.nanoTime() - scanStartTime));
+                        break;
+                    case EXPORT:
+                        long exportStartTime = System.nanoTime();
+                        ExportResult exported = ctrl.exportObservations(cmdLine.getParameter(0));
+                        System.out.println(ResultFormat.formatExportResult(exported,
+                                                                           System.nanoTime() - exportStartTime));
+                        break;
+                    case METRICS:
+                        System.out.print(Metrics.toSummaryText());
+                        break;
+                    case WATCH:
+                        System.out.println(ResultFormat.formatLiveStats(ctrl.watchLiveStats(liveStatsPrinter)));
+                        break;
+                    case UNWATCH:
+                        ctrl.unwatchLiveStats(liveStatsPrinter);
                         break;
                     default:
                         System.out.println("illegal command");
@@ -105,6 +183,19 @@ public class BlockingInterpreter {
         }
     }
 
+    private TemperatureStats findStats(CmdLine cmdLine) {
+        TemperatureQuery query = cmdLine.getQuery(0);
+        return query == null ? ctrl.getTempStats() : ctrl.getTempStats(query);
+    }
+
+    private void printLiveStats(Map<Duration, TemperatureStats> liveStats) {
+        synchronized (System.out) {
+            System.out.println();
+            System.out.println(ResultFormat.formatLiveStats(liveStats));
+            System.out.print(PROMPT);
+        }
+    }
+
     private String readNextLine() {
         System.out.print(PROMPT);
         return console.nextLine();
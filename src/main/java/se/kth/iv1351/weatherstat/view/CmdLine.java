@@ -24,12 +24,20 @@
 
 package se.kth.iv1351.weatherstat.view;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+
 /**
  * One line of user input, which should be a command and parameters associated
  * with that command (if any).
  */
 class CmdLine {
     private static final String PARAM_DELIMETER = " ";
+    private static final String ALL_SELECTED = "*";
     private String[] params;
     private Command cmd;
     private final String enteredLine;
@@ -77,6 +85,31 @@ class CmdLine {
         return params[index];
     }
 
+    /**
+     * Reads the parameters <code>from to [provider] [city]</code>, starting at
+     * the specified parameter index. <code>from</code> and <code>to</code> are
+     * dates (2020-10-01) or times (2020-10-01T12:00:00Z), and <code>*</code>
+     * selects all providers or cities.
+     *
+     * @param firstParamIndex The index of the <code>from</code> parameter.
+     * @return The query specified by the parameters, or <code>null</code> if
+     *         there is no <code>from</code> parameter.
+     * @throws IllegalArgumentException If there is a <code>from</code> but no
+     *                                  <code>to</code> parameter.
+     */
+    TemperatureQuery getQuery(int firstParamIndex) {
+        String from = getParameter(firstParamIndex);
+        if (from == null) {
+            return null;
+        }
+        String to = getParameter(firstParamIndex + 1);
+        if (to == null) {
+            throw new IllegalArgumentException("Both start and end of the time range must be specified.");
+        }
+        return new TemperatureQuery(parseTime(from), parseTime(to), parseSelection(getParameter(firstParamIndex + 2)),
+                                    parseSelection(getParameter(firstParamIndex + 3)));
+    }
+
     private String removeExtraSpaces(String source) {
         if (source == null) {
             return source;
@@ -106,7 +139,7 @@ class CmdLine {
             return;
         }
         String paramPartOfCmd = removeExtraSpaces(removeCmd(enteredLine));
-        if (paramPartOfCmd == null) {
+        if (paramPartOfCmd == null || paramPartOfCmd.isEmpty()) {
             params = null;
             return;
         }
@@ -121,4 +154,19 @@ class CmdLine {
         String withoutCmd = enteredLine.substring(indexAfterCmd, enteredLine.length());
         return withoutCmd.trim();
     }
+
+    private Instant parseTime(String time) {
+        try {
+            return LocalDate.parse(time).atStartOfDay(ZoneOffset.UTC).toInstant();
+        } catch (DateTimeParseException notADate) {
+            return Instant.parse(time);
+        }
+    }
+
+    private String parseSelection(String selection) {
+        if (selection == null || ALL_SELECTED.equals(selection)) {
+            return null;
+        }
+        return selection;
+    }
 }
@@ -33,7 +33,7 @@ public enum Command {
      */
     LOAD,
     /**
-     * Schedules loading current observations from all weather APIs once per hour. Has no effect if hourly loading is already started.
+     * Schedules loading current observations from all weather APIs once per polling interval (by default once per hour). Has no effect if hourly loading is already started.
      */
     START,
     /**
@@ -41,9 +41,91 @@ public enum Command {
      */
     STOP,
     /**
-     * Lists the average temperature, over all stored observations.
+     * Lists the average temperature, over all stored observations. Optional parameters are <code>from to [provider] [city]</code>, where <code>from</code> and <code>to</code> are dates (2020-10-01) or times (2020-10-01T12:00:00Z), and <code>*</code> selects all providers. Only observations in the specified time range, from the specified provider and city, are included.
      */
     AVG,
+    /**
+     * Lists the lowest temperature. Takes the same optional parameters as <code>avg</code>.
+     */
+    MIN,
+    /**
+     * Lists the highest temperature. Takes the same optional parameters as <code>avg</code>.
+     */
+    MAX,
+    /**
+     * Lists the standard deviation of the temperature. Takes the same optional parameters as <code>avg</code>.
+     */
+    STDDEV,
+    /**
+     * Lists the specified percentile of the temperature. Parameters are <code>percentile from to [provider] [city]</code>, where the other parameters are the same as for <code>avg</code>.
+     */
+    PERCENTILE,
+    /**
+     * Lists an estimate of the 95th percentile of the temperature, read from sketches of the stored observations, which is faster than <code>percentile</code> over long time ranges. Takes the same optional parameters as <code>avg</code>.
+     */
+    P95,
+    /**
+     * Lists an estimate of the median temperature, the same way as <code>p95</code>. Takes the same optional parameters as <code>avg</code>.
+     */
+    MEDIAN,
+    /**
+     * Lists an estimate of the number of distinct cities with temperature observations. Takes the same optional parameters as <code>avg</code>.
+     */
+    CITIES,
+    /**
+     * Stores all observations in the file specified as parameter. The file must
+     * contain one observation per line, in the JSON format returned by the
+     * weather APIs.
+     */
+    BACKFILL,
+    /**
+     * Recomputes the running statistics from all stored observations.
+     */
+    REBUILD,
+    /**
+     * Checks that the running statistics are consistent with the stored
+     * observations.
+     */
+    CHECK,
+    /**
+     * Lists request, insert and query latencies, and other metrics recorded
+     * since the application was started.
+     */
+    METRICS,
+    /**
+     * Lists statistics over all temperature readings in the raw observations,
+     * which are read in parallel. This is slow, and is used to verify the
+     * statistics computed from the normalised observations.
+     */
+    SCAN,
+    /**
+     * Exports the observations stored since the last export to compressed,
+     * columnar files, partitioned by provider and day. The optional parameter
+     * is the export directory.
+     */
+    EXPORT,
+    /**
+     * Lists live statistics over the temperature readings observed during the
+     * last hour, day and week, and then lists them again each time readings are
+     * stored, by this or another instance of the application, until
+     * <code>unwatch</code> is given.
+     */
+    WATCH,
+    /**
+     * Stops listing live statistics. Has no effect if <code>watch</code> was not
+     * given.
+     */
+    UNWATCH,
+    /**
+     * Lists all running commands. Only available in the non-blocking
+     * interpreter.
+     */
+    JOBS,
+    /**
+     * Cancels the running command whose job number is specified as parameter.
+     * Only available in the non-blocking interpreter.
+     */
+    CANCEL,
     /**
      * Lists all commands.
      */
@@ -0,0 +1,160 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.view;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.controller.Controller;
+import se.kth.iv1351.weatherstat.util.Counter;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Serves commands over TCP, so that scripts can reuse one running application,
+ * with its database connection and statistics cache, instead of starting a new
+ * one for each command. The server only listens on the loopback interface. A
+ * client sends one command per line, as in a script given to the
+ * {@link BatchInterpreter}, and receives one line of JSON per command. The
+ * <code>quit</code> command, or closing the connection, ends the session.
+ * <p>
+ * Clients are not authenticated, any local user can connect. Therefore only
+ * commands that read statistics are served, commands that load, store or
+ * write data are illegal, see {@link BatchInterpreter}. Such commands must be
+ * given on the command line of the application instead.
+ * <p>
+ * Each connection is served by its own thread, at most
+ * WEATHERSTAT_SERVER_MAX_CONNECTIONS (default
+ * {@value #DEFAULT_MAX_CONNECTIONS}) connections are served at the same time,
+ * further connections wait until one of them is closed.
+ */
+public class CommandServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandServer.class);
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final Counter CONNECTIONS = Metrics.counter("weatherstat_server_connections_total");
+    private static final Counter COMMANDS = Metrics.counter("weatherstat_server_commands_total");
+    private final BatchInterpreter interpreter;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions;
+
+    /**
+     * Creates a new server, listening on the specified port of the loopback
+     * interface. Commands are not served until {@link #serve()} is called.
+     *
+     * @param ctrl The controller performing the received commands.
+     * @param port The port to listen on.
+     * @throws IOException If unable to listen on the port.
+     */
+    public CommandServer(Controller ctrl, int port) throws IOException {
+        this.interpreter = new BatchInterpreter(ctrl, true);
+        String configuredMaxConnections = System.getenv("WEATHERSTAT_SERVER_MAX_CONNECTIONS");
+        int maxConnections = configuredMaxConnections == null ? DEFAULT_MAX_CONNECTIONS
+                : Integer.parseInt(configuredMaxConnections);
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("WEATHERSTAT_SERVER_MAX_CONNECTIONS must be positive, was "
+                    + maxConnections);
+        }
+        sessions = Executors.newFixedThreadPool(maxConnections, session -> {
+            Thread sessionThread = new Thread(session, "command-session");
+            sessionThread.setDaemon(true);
+            return sessionThread;
+        });
+        serverSocket = new ServerSocket(port, maxConnections, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Accepts connections, and serves commands, until {@link #stop()} is
+     * called. This method does not return before that.
+     *
+     * @throws IOException If unable to accept connections.
+     */
+    public void serve() throws IOException {
+        LOGGER.info("Serving commands on " + serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            Socket connection;
+            try {
+                connection = serverSocket.accept();
+            } catch (SocketException closed) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                throw closed;
+            }
+            CONNECTIONS.increment();
+            sessions.execute(() -> serveSession(connection));
+        }
+    }
+
+    /**
+     * Stops accepting connections. Sessions that are already served continue
+     * until their clients disconnect, or the application exits.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException closeFailed) {
+            LOGGER.warn("Could not close the command server socket.", closeFailed);
+        }
+        sessions.shutdown();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void serveSession(Socket connection) {
+        try (Socket session = connection;
+                BufferedReader commands = new BufferedReader(
+                        new InputStreamReader(session.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter results = new PrintWriter(session.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            for (String line = commands.readLine(); line != null; line = commands.readLine()) {
+                if (BatchInterpreter.isIgnored(line)) {
+                    continue;
+                }
+                if (new CmdLine(line).getCmd() == Command.QUIT) {
+                    break;
+                }
+                COMMANDS.increment();
+                results.println(interpreter.execute(line).getJson());
+            }
+        } catch (IOException sessionFailed) {
+            LOGGER.warn("Command session ended: " + sessionFailed.getMessage());
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.view;
+
+import java.util.List;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.LoadResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * Formats results of commands as JSON, for scripts using the
+ * {@link BatchInterpreter}. Numbers that are not defined, for example the
+ * average of no readings, are formatted as <code>null</code>.
+ */
+final class JsonFormat {
+    private JsonFormat() {
+    }
+
+    /**
+     * @param value A number.
+     * @return The specified number, or <code>null</code> if it is
+     *         <code>NaN</code> or infinite.
+     */
+    static String formatNumber(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * @param value A string, or <code>null</code>.
+     * @return The specified string, quoted and escaped, or <code>null</code>.
+     */
+    static String formatString(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * @param values Strings.
+     * @return The specified strings, as an array.
+     */
+    static String formatStrings(List<String> values) {
+        StringBuilder array = new StringBuilder("[");
+        for (String value : values) {
+            if (array.length() > 1) {
+                array.append(',');
+            }
+            array.append(formatString(value));
+        }
+        return array.append(']').toString();
+    }
+
+    /**
+     * @param stats Statistics over temperature readings.
+     * @return The number of readings, and their average, min, max and standard
+     *         deviation.
+     */
+    static String formatStats(TemperatureStats stats) {
+        return new ObjectBuilder().add("count", stats.getCount())
+                                  .add("avg", stats.getAverage())
+                                  .add("min", stats.getMin())
+                                  .add("max", stats.getMax())
+                                  .add("stddev", stats.getStandardDeviation())
+                                  .build();
+    }
+
+    /**
+     * @param result The result of storing observations.
+     * @return The number of stored, duplicate and failed observations, and
+     *         each reported failure.
+     */
+    static String formatIngestResult(IngestResult result) {
+        StringBuilder failures = new StringBuilder("[");
+        for (IngestResult.Failure failure : result.getFailures()) {
+            if (failures.length() > 1) {
+                failures.append(',');
+            }
+            failures.append(new ObjectBuilder().add("position", failure.getPosition())
+                                               .add("message", failure.getMessage())
+                                               .build());
+        }
+        failures.append(']');
+        return new ObjectBuilder().add("stored", result.getStoredCount())
+                                  .add("duplicates", result.getDuplicateCount())
+                                  .add("failed", result.getFailedCount())
+                                  .addJson("failures", failures.toString())
+                                  .build();
+    }
+
+    /**
+     * @param result The result of loading from all sources.
+     * @return The number of called sources, the sources that failed, the number
+     *         of loaded observations, whether they were spooled, and the result
+     *         of storing them, which is <code>null</code> if they were spooled.
+     */
+    static String formatLoadResult(LoadResult result) {
+        return new ObjectBuilder().add("sources", result.getSourceCount())
+                                  .addJson("failedSources", formatStrings(result.getFailedSources()))
+                                  .add("loaded", result.getLoadedCount())
+                                  .add("spooled", result.isSpooled())
+                                  .addJson("stored", result.isSpooled() ? "null"
+                                          : formatIngestResult(result.getIngestResult()))
+                                  .build();
+    }
+
+    /**
+     * @param report The result of a consistency check.
+     * @return Whether the running statistics are consistent, and both
+     *         statistics that were compared.
+     */
+    static String formatConsistencyReport(StatsConsistencyReport report) {
+        return new ObjectBuilder().add("consistent", report.isConsistent())
+                                  .addJson("running", formatStats(report.getRunningStats()))
+                                  .addJson("scanned", formatStats(report.getScannedStats()))
+                                  .build();
+    }
+
+    /**
+     * @param result The result of an export.
+     * @return The number of exported observations and written files.
+     */
+    static String formatExportResult(ExportResult result) {
+        return new ObjectBuilder().add("exported", result.getExportedCount())
+                                  .add("files", result.getFileCount())
+                                  .build();
+    }
+
+    /**
+     * Builds one JSON object, with the fields in the order they are added.
+     */
+    static final class ObjectBuilder {
+        private final StringBuilder json = new StringBuilder("{");
+
+        ObjectBuilder add(String name, String value) {
+            return addJson(name, formatString(value));
+        }
+
+        ObjectBuilder add(String name, double value) {
+            return addJson(name, formatNumber(value));
+        }
+
+        ObjectBuilder add(String name, long value) {
+            return addJson(name, Long.toString(value));
+        }
+
+        ObjectBuilder add(String name, boolean value) {
+            return addJson(name, Boolean.toString(value));
+        }
+
+        /**
+         * Adds a field whose value is already formatted as JSON.
+         */
+        ObjectBuilder addJson(String name, String json) {
+            if (this.json.length() > 1) {
+                this.json.append(',');
+            }
+            this.json.append(formatString(name)).append(':').append(json);
+            return this;
+        }
+
+        String build() {
+            return json.toString() + "}";
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.view;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.ToDoubleFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.kth.iv1351.weatherstat.controller.Controller;
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+import se.kth.iv1351.weatherstat.util.Metrics;
+
+/**
+ * Reads and interprets user commands. This command interpreter is not blocking,
+ * commands that may take long time, like loading, backfilling and statistics
+ * queries, are started as jobs that run in the background, and the user can
+ * enter new commands while they run. The result of a job is printed when the
+ * job is finished. Running jobs are listed with the <code>jobs</code> command,
+ * and cancelled with the <code>cancel</code> command.
+ */
+public class NonBlockingInterpreter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NonBlockingInterpreter.class);
+    private static final String PROMPT = "> ";
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double P95_PERCENTILE = 95;
+    private static final double MEDIAN_PERCENTILE = 50;
+    private final Scanner console = new Scanner(System.in);
+    private final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextJobNo = new AtomicInteger(1);
+    private final Consumer<Map<Duration, TemperatureStats>> liveStatsPrinter = liveStats -> printFromJob(
+            ResultFormat.formatLiveStats(liveStats));
+    private Controller ctrl;
+    private boolean keepReceivingCmds = false;
+
+    /**
+     * Creates a new instance that will use the specified controller for all
+     * operations.
+     * 
+     * @param ctrl The controller used by this instance.
+     */
+    public NonBlockingInterpreter(Controller ctrl) {
+        this.ctrl = ctrl;
+    }
+
+    /**
+     * Stops the command interpreter.
+     */
+    public void stop() {
+        keepReceivingCmds = false;
+    }
+
+    /**
+     * Interprets user commands. This method will not return until the UI has
+     * been stopped, but it does not wait for commands to finish. The UI is
+     * stopped either when the user gives the "quit" command, or when the method
+     * <code>stop()</code> is called. All running jobs are cancelled when the
+     * user quits.
+     */
+    public void handleCmds() {
+        keepReceivingCmds = true;
+        while (keepReceivingCmds) {
+            try {
+                CmdLine cmdLine = new CmdLine(readNextLine());
+                switch (cmdLine.getCmd()) {
+                    case HELP:
+                        for (Command command : Command.values()) {
+                            if (command == Command.ILLEGAL_COMMAND) {
+                                continue;
+                            }
+                            System.out.println(command.toString().toLowerCase());
+                        }
+                        break;
+                    case QUIT:
+                        for (Job job : jobs.values()) {
+                            job.result.cancel(true);
+                        }
+                        ctrl.shutdown();
+                        keepReceivingCmds = false;
+                        break;
+                    case JOBS:
+                        long now = System.nanoTime();
+                        for (Map.Entry<Integer, Job> job : jobs.entrySet()) {
+                            System.out.println("[" + job.getKey() + "] running "
+                                    + formatSeconds(now - job.getValue().startNanos) + ": "
+                                    + job.getValue().userInput);
+                        }
+                        break;
+                    case CANCEL:
+                        Job jobToCancel = jobs.get(Integer.parseInt(cmdLine.getParameter(0)));
+                        if (jobToCancel == null) {
+                            System.out.println("no such job");
+                        } else {
+                            jobToCancel.result.cancel(true);
+                        }
+                        break;
+                    case START:
+                        ctrl.startHourlyLoading();
+                        break;
+                    case STOP:
+                        ctrl.stopHourlyLoading();
+                        break;
+                    case METRICS:
+                        System.out.print(Metrics.toSummaryText());
+                        break;
+                    case WATCH:
+                        System.out.println(ResultFormat.formatLiveStats(ctrl.watchLiveStats(liveStatsPrinter)));
+                        break;
+                    case UNWATCH:
+                        ctrl.unwatchLiveStats(liveStatsPrinter);
+                        break;
+                    case LOAD:
+                        startJob(cmdLine, ctrl.loadFromAllApisAsync(),
+                                 (result, elapsedNanos) -> "loaded in " + formatSeconds(elapsedNanos));
+                        break;
+                    case AVG:
+                        startStatsJob(cmdLine, TemperatureStats::getAverage);
+                        break;
+                    case MIN:
+                        startStatsJob(cmdLine, TemperatureStats::getMin);
+                        break;
+                    case MAX:
+                        startStatsJob(cmdLine, TemperatureStats::getMax);
+                        break;
+                    case STDDEV:
+                        startStatsJob(cmdLine, TemperatureStats::getStandardDeviation);
+                        break;
+                    case PERCENTILE:
+                        double percentile = Double.parseDouble(cmdLine.getParameter(0));
+                        TemperatureQuery percentileQuery = cmdLine.getQuery(1);
+                        if (percentileQuery == null) {
+                            System.out.println(ResultFormat.PERCENTILE_USAGE);
+                            break;
+                        }
+                        startJob(cmdLine, ctrl.getTempPercentileAsync(percentileQuery, percentile),
+                                 (temp, elapsedNanos) -> ResultFormat.formatTemp(temp));
+                        break;
+                    case P95:
+                        startJob(cmdLine, ctrl.estimateTempPercentileAsync(cmdLine.getQuery(0), P95_PERCENTILE),
+                                 (temp, elapsedNanos) -> ResultFormat.formatEstimatedTemp(temp));
+                        break;
+                    case MEDIAN:
+                        startJob(cmdLine, ctrl.estimateTempPercentileAsync(cmdLine.getQuery(0), MEDIAN_PERCENTILE),
+                                 (temp, elapsedNanos) -> ResultFormat.formatEstimatedTemp(temp));
+                        break;
+                    case CITIES:
+                        startJob(cmdLine, ctrl.estimateDistinctCitiesAsync(cmdLine.getQuery(0)),
+                                 (cityCount, elapsedNanos) -> ResultFormat.formatCityCount(cityCount));
+                        break;
+                    case BACKFILL:
+                        startJob(cmdLine, ctrl.backfillAsync(cmdLine.getParameter(0)),
+                                 ResultFormat::formatIngestResult);
+                        break;
+                    case REBUILD:
+                        startJob(cmdLine, ctrl.rebuildRunningStatsAsync(),
+                                 (nothing, elapsedNanos) -> "rebuilt in " + formatSeconds(elapsedNanos));
+                        break;
+                    case CHECK:
+                        startJob(cmdLine, ctrl.checkRunningStatsAsync(),
+                                 (report, elapsedNanos) -> ResultFormat.formatConsistencyReport(report));
+                        break;
+                    case SCAN:
+                        startJob(cmdLine, ctrl.scanArchiveTempStatsAsync(), ResultFormat::formatScan);
+                        break;
+                    case EXPORT:
+                        startJob(cmdLine, ctrl.exportObservationsAsync(cmdLine.getParameter(0)),
+                                 ResultFormat::formatExportResult);
+                        break;
+                    default:
+                        System.out.println("illegal command");
+                }
+            } catch (Exception e) {
+                LOGGER.error("Operation failed");
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void startStatsJob(CmdLine cmdLine, ToDoubleFunction<TemperatureStats> statistic) {
+        startJob(cmdLine, ctrl.getTempStatsAsync(cmdLine.getQuery(0)),
+                 (stats, elapsedNanos) -> ResultFormat.formatTemp(statistic.applyAsDouble(stats)));
+    }
+
+    /**
+     * Registers the specified running operation as a job, and prints its result
+     * when it is finished. The result is formatted by the specified function,
+     * which is also given the time the job took, in nanoseconds.
+     */
+    private <T> void startJob(CmdLine cmdLine, CompletableFuture<T> result,
+                              BiFunction<T, Long, String> formatResult) {
+        int jobNo = nextJobNo.getAndIncrement();
+        Job job = new Job(cmdLine.getUserInput(), result, System.nanoTime());
+        jobs.put(jobNo, job);
+        System.out.println("[" + jobNo + "] started");
+        result.whenComplete((value, failure) -> {
+            jobs.remove(jobNo);
+            String jobPrefix = "[" + jobNo + "] ";
+            if (result.isCancelled()) {
+                printFromJob(jobPrefix + "cancelled: " + job.userInput);
+            } else if (failure != null) {
+                LOGGER.error("Job " + jobNo + " failed", failure);
+                printFromJob(jobPrefix + "failed: " + failure.getMessage());
+            } else {
+                printFromJob(jobPrefix + formatResult.apply(value, System.nanoTime() - job.startNanos));
+            }
+        });
+    }
+
+    private void printFromJob(String message) {
+        synchronized (System.out) {
+            System.out.println();
+            System.out.println(message);
+            System.out.print(PROMPT);
+        }
+    }
+
+    private String formatSeconds(long nanos) {
+        return String.format("%.1f", nanos / NANOS_PER_SECOND) + " s";
+    }
+
+    private String readNextLine() {
+        System.out.print(PROMPT);
+        return console.nextLine();
+    }
+
+    private static class Job {
+        private final String userInput;
+        private final CompletableFuture<?> result;
+        private final long startNanos;
+
+        private Job(String userInput, CompletableFuture<?> result, long startNanos) {
+            this.userInput = userInput;
+            this.result = result;
+            this.startNanos = startNanos;
+        }
+    }
+}
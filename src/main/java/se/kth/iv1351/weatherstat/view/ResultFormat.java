@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package se.kth.iv1351.weatherstat.view;
+
+import java.time.Duration;
+import java.util.Map;
+
+import se.kth.iv1351.weatherstat.model.ExportResult;
+import se.kth.iv1351.weatherstat.model.IngestResult;
+import se.kth.iv1351.weatherstat.model.StatsConsistencyReport;
+import se.kth.iv1351.weatherstat.model.TemperatureSketch;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * Formats results of commands, the same way in all command interpreters.
+ */
+final class ResultFormat {
+    /**
+     * Printed when the parameters of the <code>percentile</code> command are
+     * missing.
+     */
+    static final String PERCENTILE_USAGE = "usage: percentile <percentile> <from> <to> [provider] [city]";
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final long HOURS_PER_DAY = 24;
+
+    private ResultFormat() {
+    }
+
+    /**
+     * @param temp A temperature, in degrees Celsius.
+     * @return The specified temperature, with two decimals and unit.
+     */
+    static String formatTemp(double temp) {
+        return String.format("%.2f", temp) + " \u00B0C";
+    }
+
+    /**
+     * @param estimate A temperature estimated from a sketch, in degrees Celsius.
+     * @return The specified temperature, with two decimals, unit and maximum
+     *         error.
+     */
+    static String formatEstimatedTemp(double estimate) {
+        return "about " + formatTemp(estimate) + " (\u00B1" + formatTemp(TemperatureSketch.MAX_ERROR) + ")";
+    }
+
+    /**
+     * @param cityCount An estimated number of cities.
+     * @return The specified number of cities.
+     */
+    static String formatCityCount(long cityCount) {
+        return "about " + cityCount + (cityCount == 1 ? " city" : " cities");
+    }
+
+    /**
+     * @param result       The result of storing observations.
+     * @param elapsedNanos The time it took to store the observations.
+     * @return The number of stored, duplicate and failed observations, the
+     *         throughput, and one line per reported failure.
+     */
+    static String formatIngestResult(IngestResult result, long elapsedNanos) {
+        double elapsedSecs = elapsedNanos / NANOS_PER_SECOND;
+        StringBuilder formatted = new StringBuilder("stored " + result.getStoredCount() + " observations, "
+                + result.getDuplicateCount() + " duplicates, " + result.getFailedCount() + " failed, in " + String.format("%.1f", elapsedSecs) + " s ("
+                + String.format("%.0f", result.getStoredCount() / elapsedSecs) + " docs/sec)");
+        for (IngestResult.Failure failure : result.getFailures()) {
+            formatted.append(System.lineSeparator()).append("line ").append(failure.getPosition()).append(": ")
+                     .append(failure.getMessage());
+        }
+        return formatted.toString();
+    }
+
+    /**
+     * @param report The result of a consistency check.
+     * @return Whether the running statistics are consistent, and the counts and
+     *         sums that were compared.
+     */
+    static String formatConsistencyReport(StatsConsistencyReport report) {
+        return (report.isConsistent() ? "consistent" : "inconsistent") + ", running: "
+                + report.getRunningStats().getCount() + " readings, sum "
+                + String.format("%.2f", report.getRunningStats().getSum()) + ", scanned: "
+                + report.getScannedStats().getCount() + " readings, sum "
+                + String.format("%.2f", report.getScannedStats().getSum());
+    }
+
+    /**
+     * @param scanned      Statistics over the scanned readings.
+     * @param elapsedNanos The time the scan took.
+     * @return The number of readings, their average, min and max, and the time
+     *         the scan took.
+     */
+    static String formatScan(TemperatureStats scanned, long elapsedNanos) {
+        return scanned.getCount() + " readings, avg " + formatTemp(scanned.getAverage()) + ", min "
+                + formatTemp(scanned.getMin()) + ", max " + formatTemp(scanned.getMax()) + ", in "
+                + String.format("%.1f", elapsedNanos / NANOS_PER_SECOND) + " s";
+    }
+
+    /**
+     * @param result       The result of an export.
+     * @param elapsedNanos The time the export took.
+     * @return The number of exported observations and written files, and the
+     *         time the export took.
+     */
+    static String formatExportResult(ExportResult result, long elapsedNanos) {
+        return "exported " + result.getExportedCount() + " observations to " + result.getFileCount() + " files, in "
+                + String.format("%.1f", elapsedNanos / NANOS_PER_SECOND) + " s";
+    }
+
+    /**
+     * @param liveStats Statistics over the readings observed during each window,
+     *                  as returned by the controller.
+     * @return One line per window, with the number of readings, their average,
+     *         min and max.
+     */
+    static String formatLiveStats(Map<Duration, TemperatureStats> liveStats) {
+        StringBuilder formatted = new StringBuilder();
+        for (Map.Entry<Duration, TemperatureStats> window : liveStats.entrySet()) {
+            if (formatted.length() > 0) {
+                formatted.append(System.lineSeparator());
+            }
+            TemperatureStats stats = window.getValue();
+            formatted.append("last ").append(formatWindow(window.getKey())).append(": ");
+            if (stats.getCount() == 0) {
+                formatted.append("no readings");
+            } else {
+                formatted.append(stats.getCount()).append(" readings, avg ").append(formatTemp(stats.getAverage()))
+                         .append(", min ").append(formatTemp(stats.getMin())).append(", max ")
+                         .append(formatTemp(stats.getMax()));
+            }
+        }
+        return formatted.toString();
+    }
+
+    private static String formatWindow(Duration window) {
+        long hours = window.toHours();
+        if (hours <= HOURS_PER_DAY || hours % HOURS_PER_DAY != 0) {
+            return hours + "h";
+        }
+        return (hours / HOURS_PER_DAY) + "d";
+    }
+}
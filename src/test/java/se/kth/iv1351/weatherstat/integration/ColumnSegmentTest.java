@@ -0,0 +1,100 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Verifies that the footer of a segment only counts readings that have been
+ * forced to disk, and that a torn footer is rebuilt.
+ */
+class ColumnSegmentTest {
+    private static final int CAPACITY = 16;
+    /**
+     * The position of the sum in the footer, which follows the 16 byte header
+     * and the two columns.
+     */
+    private static final long FOOTER_SUM_POSITION = 16 + 2 * Long.BYTES * CAPACITY + 24;
+    private static final double TOLERANCE = 1e-9;
+    @TempDir
+    Path directory;
+
+    @Test
+    void forcedReadingsAreCountedWhenReopened() throws IOException {
+        Path file = directory.resolve("00000000.seg");
+        ColumnSegment segment = ColumnSegment.create(file, CAPACITY);
+        segment.append(1_000, 10);
+        segment.append(2_000, 20);
+        segment.force();
+
+        ColumnSegment reopened = ColumnSegment.open(file);
+
+        assertEquals(2, reopened.getCount());
+        assertEquals(15, reopened.getStats().getAverage(), TOLERANCE);
+    }
+
+    @Test
+    void readingsAppendedAfterLastForceAreIgnoredWhenReopened() throws IOException {
+        Path file = directory.resolve("00000000.seg");
+        ColumnSegment segment = ColumnSegment.create(file, CAPACITY);
+        segment.append(1_000, 10);
+        segment.force();
+        segment.append(2_000, 20);
+
+        ColumnSegment reopened = ColumnSegment.open(file);
+
+        assertEquals(1, reopened.getCount());
+        assertEquals(10, reopened.getStats().getSum(), TOLERANCE);
+    }
+
+    @Test
+    void tornFooterIsRebuiltWhenReopened() throws IOException {
+        Path file = directory.resolve("00000000.seg");
+        ColumnSegment segment = ColumnSegment.create(file, CAPACITY);
+        segment.append(1_000, 10);
+        segment.force();
+        segment.append(2_000, 20);
+        segment.force();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Double.BYTES).putDouble(0, 10), FOOTER_SUM_POSITION);
+        }
+
+        ColumnSegment reopened = ColumnSegment.open(file);
+
+        assertEquals(2, reopened.getCount());
+        assertEquals(30, reopened.getStats().getSum(), TOLERANCE);
+        assertEquals(10, reopened.getStats().getMin(), TOLERANCE);
+        assertEquals(20, reopened.getStats().getMax(), TOLERANCE);
+    }
+}
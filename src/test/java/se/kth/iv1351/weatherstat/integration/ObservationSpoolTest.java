@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Verifies that spooled observations are replayed in order, that a failed
+ * replay resumes after the last stored chunk, and that appending is not
+ * blocked by a replay.
+ */
+class ObservationSpoolTest {
+    private static final int CHUNK_SIZE = 2;
+    private static final long TIMEOUT_SECONDS = 5;
+    @TempDir
+    Path directory;
+
+    @Test
+    void observationsAreReplayedInOrder() throws IOException {
+        ObservationSpool spool = new ObservationSpool(directory.resolve("spool.jsonl"));
+        spool.append(List.of("{\"n\": 1}", "{\"n\": 2}", "{\"n\": 3}"));
+        List<String> stored = new ArrayList<>();
+
+        long replayed = spool.replay(stored::addAll, CHUNK_SIZE);
+
+        assertEquals(3, replayed);
+        assertEquals(List.of("{\"n\": 1}", "{\"n\": 2}", "{\"n\": 3}"), stored);
+        assertFalse(spool.hasPending());
+    }
+
+    @Test
+    void failedReplayResumesAfterLastStoredChunk() throws IOException {
+        ObservationSpool spool = new ObservationSpool(directory.resolve("spool.jsonl"));
+        spool.append(List.of("{\"n\": 1}", "{\"n\": 2}", "{\"n\": 3}", "{\"n\": 4}", "{\"n\": 5}"));
+        List<String> stored = new ArrayList<>();
+
+        assertThrows(IllegalStateException.class, () -> spool.replay(chunk -> {
+            if (!stored.isEmpty()) {
+                throw new IllegalStateException("The database is unavailable.");
+            }
+            stored.addAll(chunk);
+        }, CHUNK_SIZE));
+        ObservationSpool restarted = new ObservationSpool(directory.resolve("spool.jsonl"));
+        restarted.replay(stored::addAll, CHUNK_SIZE);
+
+        assertEquals(List.of("{\"n\": 1}", "{\"n\": 2}", "{\"n\": 3}", "{\"n\": 4}", "{\"n\": 5}"), stored);
+        assertFalse(restarted.hasPending());
+    }
+
+    @Test
+    void appendIsNotBlockedByReplay() throws Exception {
+        ObservationSpool spool = new ObservationSpool(directory.resolve("spool.jsonl"));
+        spool.append(List.of("{\"n\": 1}"));
+        CountDownLatch replayStarted = new CountDownLatch(1);
+        CountDownLatch appended = new CountDownLatch(1);
+        List<String> stored = new ArrayList<>();
+
+        CompletableFuture<Long> replay = CompletableFuture.supplyAsync(() -> {
+            try {
+                return spool.replay(chunk -> {
+                    replayStarted.countDown();
+                    awaitQuietly(appended);
+                    stored.addAll(chunk);
+                }, CHUNK_SIZE);
+            } catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+        });
+        assertTrue(replayStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        spool.append(List.of("{\"n\": 2}"));
+        appended.countDown();
+
+        assertEquals(1, replay.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(spool.hasPending());
+        spool.replay(stored::addAll, CHUNK_SIZE);
+        assertEquals(List.of("{\"n\": 1}", "{\"n\": 2}"), stored);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Verifies that provider, city and temperature are read according to the
+ * configured format of the provider, also for providers that are not among
+ * the default ones.
+ */
+class TemperatureExtractorTest {
+    private static final double TOLERANCE = 1e-9;
+    private static final String CONFIG = "{\"providers\": ["
+            + "{\"name\": \"openweathermap\", \"urlTemplate\": \"http://localhost/?q={city}\","
+            + " \"maxRequestsPerMinute\": 60, \"pollingIntervalMinutes\": 60, \"cities\": [\"stockholm,se\"],"
+            + " \"format\": {\"temp\": \"main.temp\", \"tempUnit\": \"kelvin\", \"time\": \"dt\", \"city\": \"name\"}},"
+            + "{\"name\": \"usweather\", \"urlTemplate\": \"http://localhost/?q={city}\","
+            + " \"maxRequestsPerMinute\": 60, \"pollingIntervalMinutes\": 60, \"cities\": [\"Boston\"],"
+            + " \"format\": {\"temp\": \"current.temperature\", \"tempUnit\": \"fahrenheit\"}}]}";
+    private final WeatherSourceRegistry registry = new WeatherSourceRegistry(CONFIG);
+    private final ObservationFormats formats = new ObservationFormats(registry.getProviders());
+    private final TemperatureExtractor extractor = new TemperatureExtractor(formats);
+
+    @Test
+    void taggedObservationIsReadInConfiguredUnit() {
+        Document observation = Document.parse(sourceOf("usweather").tag("{\"current\": {\"temperature\": 50}}"));
+
+        assertEquals("usweather", formats.providerOf(observation));
+        assertEquals("Boston", formats.cityOf(observation));
+        assertEquals(10, extractor.extract(observation), TOLERANCE);
+        assertEquals(10, extractor.extract(RawBsonDocument.parse(observation.toJson())), TOLERANCE);
+    }
+
+    @Test
+    void taggedCityIsUsedInsteadOfCityInObservation() {
+        Document observation = Document.parse(sourceOf("openweathermap")
+                .tag("{\"main\": {\"temp\": 283.15}, \"dt\": 1602507600, \"name\": \"Stockholm\"}"));
+
+        assertEquals("stockholm,se", formats.cityOf(observation));
+        assertEquals(10, extractor.extract(observation), TOLERANCE);
+    }
+
+    @Test
+    void untaggedObservationIsIdentifiedByStructure() {
+        Document observation = Document.parse("{\"main\": {\"temp\": 263.15}, \"name\": \"Stockholm\"}");
+
+        assertEquals("openweathermap", formats.providerOf(observation));
+        assertEquals("Stockholm", formats.cityOf(observation));
+        assertEquals(-10, extractor.extract(observation), TOLERANCE);
+        assertEquals(-10, extractor.extract(RawBsonDocument.parse(observation.toJson())), TOLERANCE);
+    }
+
+    @Test
+    void observationOfUnknownFormatIsFlattened() {
+        Document observation = Document.parse("{\"reading\": {\"temp\": 12.5}}");
+
+        assertNull(formats.providerOf(observation));
+        assertEquals(12.5, extractor.extract(observation), TOLERANCE);
+    }
+
+    private WeatherSource sourceOf(String providerName) {
+        for (WeatherSource source : registry.getAllSources()) {
+            if (source.getProviderName().equals(providerName)) {
+                return source;
+            }
+        }
+        throw new IllegalArgumentException("No source at " + providerName);
+    }
+}
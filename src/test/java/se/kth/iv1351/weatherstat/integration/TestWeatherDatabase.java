@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import java.net.URI;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * The database used by the tests. The tests connect to the server in the
+ * system property <code>weatherdb.test.server</code>, which is also passed to
+ * the code under test in WEATHERDB_SERVER, see the surefire configuration in
+ * <code>pom.xml</code>. Unless the system property
+ * <code>weatherdb.test.embedded</code> is <code>false</code>, an in-memory
+ * server speaking the MongoDB wire protocol is started on that address. The
+ * in-memory server does not have a query planner, tests that need one are
+ * only run against a real mongod.
+ */
+final class TestWeatherDatabase {
+    private static final String DB_NAME = "weatherdb";
+    private static final String DEFAULT_SERVER = "mongodb://localhost:27018";
+    private static MongoServer embeddedServer;
+
+    private TestWeatherDatabase() {
+    }
+
+    /**
+     * Starts the in-memory server, unless it is already started or a real
+     * mongod is used.
+     */
+    static synchronized void start() {
+        if (!isEmbedded() || embeddedServer != null) {
+            return;
+        }
+        URI serverUrl = URI.create(serverUrl());
+        embeddedServer = new MongoServer(new MemoryBackend());
+        embeddedServer.bind(serverUrl.getHost(), serverUrl.getPort());
+    }
+
+    /**
+     * Stops the in-memory server, if it is started.
+     */
+    static synchronized void stop() {
+        if (embeddedServer != null) {
+            embeddedServer.shutdownNow();
+            embeddedServer = null;
+        }
+    }
+
+    /**
+     * Removes everything stored in the weather database.
+     */
+    static void clear() {
+        try (MongoClient client = connect()) {
+            client.getDatabase(DB_NAME).drop();
+        }
+    }
+
+    /**
+     * @return A new client connected to the test database server. The caller
+     *         must close it.
+     */
+    static MongoClient connect() {
+        return MongoClients.create(serverUrl());
+    }
+
+    /**
+     * @return <code>true</code> if the tests use the in-memory server,
+     *         <code>false</code> if they use a real mongod.
+     */
+    static boolean isEmbedded() {
+        return !"false".equalsIgnoreCase(System.getProperty("weatherdb.test.embedded"));
+    }
+
+    private static String serverUrl() {
+        return System.getProperty("weatherdb.test.server", DEFAULT_SERVER);
+    }
+}
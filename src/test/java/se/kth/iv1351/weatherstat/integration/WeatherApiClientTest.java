@@ -0,0 +1,254 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import okhttp3.Cache;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Verifies that all APIs are called concurrently by
+ * {@link WeatherApiClient#loadFromAllApis()}, that failed calls are retried,
+ * that the load returns at the deadline, also if some APIs have not
+ * responded, and that API keys are not written to the HTTP cache.
+ */
+class WeatherApiClientTest {
+    private static final long REQUEST_TIMEOUT_MS = 10_000;
+    private static final long DEADLINE_MS = 500;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_BACKOFF_MS = 10;
+    private static final int BREAKER_FAILURES = 100;
+    private static final long BREAKER_OPEN_MS = 60_000;
+    private static final long SLOW_RESPONSE_DELAY_MS = 5_000;
+    private static final long CACHE_MAX_BYTES = 1024 * 1024;
+    private static final String KEY_ENV_VAR = "WEATHER_API_TEST_KEY";
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private MockWebServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String provider = request.getRequestUrl().encodedPath().substring(1);
+                int attempt = requestCounts.computeIfAbsent(provider, key -> new AtomicInteger()).incrementAndGet();
+                switch (provider) {
+                case "ok":
+                    return new MockResponse().setBody(observation(provider));
+                case "cached":
+                    return new MockResponse().setBody(observation(provider)).setHeader("Cache-Control", "max-age=60");
+                case "flaky":
+                    return attempt == 1 ? new MockResponse().setResponseCode(503)
+                                        : new MockResponse().setBody(observation(provider));
+                case "slow":
+                    return new MockResponse().setBody(observation(provider))
+                                             .setHeadersDelay(SLOW_RESPONSE_DELAY_MS, TimeUnit.MILLISECONDS);
+                case "missing":
+                    return new MockResponse().setResponseCode(404);
+                default:
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    void responsesFromAllApisAreReturned() {
+        List<String> responses = payloads(createClient("ok", "flaky").loadFromAllApis());
+
+        assertEquals(2, responses.size());
+        assertTrue(responses.contains(observation("ok")));
+        assertTrue(responses.contains(observation("flaky")));
+    }
+
+    @Test
+    void responsesAreTaggedWithSource() {
+        List<String> responses = createClient("ok").loadFromAllApis();
+
+        Document tag = Document.parse(responses.get(0)).get(WeatherSource.SOURCE_FIELD, Document.class);
+        assertEquals("ok", tag.getString(WeatherSource.PROVIDER_FIELD));
+        assertEquals("Stockholm", tag.getString(WeatherSource.CITY_FIELD));
+    }
+
+    @Test
+    void failedCallIsRetried() {
+        List<String> responses = payloads(createClient("flaky").loadFromAllApis());
+
+        assertEquals(List.of(observation("flaky")), responses);
+        assertEquals(2, requestCount("flaky"));
+    }
+
+    @Test
+    void failingApiDoesNotPreventOtherResponses() {
+        List<String> responses = payloads(createClient("ok", "broken", "missing").loadFromAllApis());
+
+        assertEquals(List.of(observation("ok")), responses);
+        assertEquals(MAX_ATTEMPTS, requestCount("broken"));
+        assertEquals(1, requestCount("missing"));
+    }
+
+    @Test
+    void failedSourcesAreReported() {
+        List<String> failedSources = new ArrayList<>();
+
+        createClient("ok", "broken", "missing").loadFromAllApis(source -> failedSources.add(source.toString()));
+
+        assertEquals(List.of("broken/Stockholm", "missing/Stockholm"), failedSources);
+    }
+
+    @Test
+    void unchangedSourceIsNotReportedAsFailed(@TempDir Path cacheDir) {
+        WeatherApiClient client = createClient(BREAKER_FAILURES, new Cache(cacheDir.toFile(), CACHE_MAX_BYTES),
+                                               "cached");
+        List<String> failedSources = new ArrayList<>();
+
+        client.loadFromAllApis();
+        List<String> responses = client.loadFromAllApis(source -> failedSources.add(source.toString()));
+
+        assertTrue(responses.isEmpty());
+        assertTrue(failedSources.isEmpty());
+    }
+
+    @Test
+    void loadReturnsAtDeadline() {
+        WeatherApiClient client = createClient("ok", "slow");
+
+        long startMs = System.currentTimeMillis();
+        List<String> responses = payloads(client.loadFromAllApis());
+        long elapsedMs = System.currentTimeMillis() - startMs;
+
+        assertEquals(List.of(observation("ok")), responses);
+        assertTrue(elapsedMs < SLOW_RESPONSE_DELAY_MS, "The load took " + elapsedMs + " ms.");
+    }
+
+    @Test
+    void callCancelledAtDeadlineDoesNotOpenCircuitBreaker() {
+        WeatherApiClient client = createClient(1, "slow");
+
+        client.loadFromAllApis();
+        client.loadFromAllApis();
+
+        assertEquals(2, requestCount("slow"));
+    }
+
+    @Test
+    void cacheHoldsNoApiKey(@TempDir Path cacheDir) throws IOException, InterruptedException {
+        Cache cache = new Cache(cacheDir.toFile(), CACHE_MAX_BYTES);
+        WeatherApiClient client = createClient(BREAKER_FAILURES, cache, "cached");
+
+        client.loadFromAllApis();
+        client.loadFromAllApis();
+        cache.flush();
+
+        assertEquals(1, requestCount("cached"));
+        assertEquals(System.getenv(KEY_ENV_VAR), server.takeRequest().getRequestUrl().queryParameter("key"));
+        for (Path file : cacheFiles(cacheDir)) {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+            assertFalse(content.contains(System.getenv(KEY_ENV_VAR)), file + " contains the API key.");
+        }
+    }
+
+    private WeatherApiClient createClient(String... providers) {
+        return createClient(BREAKER_FAILURES, providers);
+    }
+
+    private WeatherApiClient createClient(int breakerFailures, String... providers) {
+        return createClient(breakerFailures, null, providers);
+    }
+
+    private WeatherApiClient createClient(int breakerFailures, Cache cache, String... providers) {
+        StringBuilder config = new StringBuilder("{\"providers\": [");
+        for (int i = 0; i < providers.length; i++) {
+            if (i > 0) {
+                config.append(',');
+            }
+            config.append("{\"name\": \"").append(providers[i]).append("\", \"urlTemplate\": \"")
+                  .append(server.url("/" + providers[i])).append("?q={city}&key={key}\", \"keyEnvVar\": \"")
+                  .append(KEY_ENV_VAR).append("\", \"maxRequestsPerMinute\": 60,")
+                  .append(" \"pollingIntervalMinutes\": 60, \"cities\": [\"Stockholm\"],")
+                  .append(" \"format\": {\"temp\": \"temp\", \"tempUnit\": \"celsius\"}}");
+        }
+        config.append("]}");
+        return new WeatherApiClient(new WeatherSourceRegistry(config.toString()), REQUEST_TIMEOUT_MS, DEADLINE_MS,
+                                    MAX_ATTEMPTS, RETRY_BACKOFF_MS, breakerFailures, BREAKER_OPEN_MS, cache);
+    }
+
+    private List<String> payloads(List<String> responses) {
+        List<String> payloads = new ArrayList<>();
+        for (String response : responses) {
+            Document payload = Document.parse(response);
+            payload.remove(WeatherSource.SOURCE_FIELD);
+            payloads.add(payload.toJson());
+        }
+        return payloads;
+    }
+
+    private List<Path> cacheFiles(Path cacheDir) throws IOException {
+        try (Stream<Path> files = Files.walk(cacheDir)) {
+            return files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private int requestCount(String provider) {
+        AtomicInteger count = requestCounts.get(provider);
+        return count == null ? 0 : count.get();
+    }
+
+    private static String observation(String provider) {
+        return new Document("provider", provider).append("temp", 10.5).toJson();
+    }
+}
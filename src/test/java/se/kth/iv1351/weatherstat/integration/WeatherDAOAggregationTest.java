@@ -0,0 +1,239 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCursor;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+import se.kth.iv1351.weatherstat.model.TemperatureStats;
+
+/**
+ * Verifies that the statistics calculated by the database server are the same
+ * as those calculated the original way, by reading every stored observation
+ * and averaging the temperatures on the client.
+ */
+class WeatherDAOAggregationTest {
+    private static final long FIRST_OBSERVATION = 1602507600L;
+    private static final int OBSERVATIONS_PER_PROVIDER = 50;
+    private static final double TOLERANCE = 1e-9;
+    private WeatherDAO weatherDb;
+
+    @BeforeAll
+    static void startDatabase() {
+        TestWeatherDatabase.start();
+    }
+
+    @AfterAll
+    static void stopDatabase() {
+        TestWeatherDatabase.stop();
+    }
+
+    @BeforeEach
+    void storeObservations() {
+        TestWeatherDatabase.clear();
+        weatherDb = new WeatherDAO();
+        List<String> observations = new ArrayList<>();
+        for (int i = 0; i < OBSERVATIONS_PER_PROVIDER; i++) {
+            long observedAt = FIRST_OBSERVATION + i * 3600L;
+            observations.add(openWeatherMapObservation(observedAt, 270.15 + i * 0.37));
+            observations.add(weatherbitObservation(observedAt, -4.5 + i * 0.41));
+        }
+        assertEquals(observations.size(), weatherDb.storeObservations(observations).getStoredCount());
+    }
+
+    @Test
+    void averageIsSameAsClientSideAverage() {
+        List<Double> tempReadings = findAllTempReadingsOnClient();
+        double clientSideAverage = tempReadings.stream().mapToDouble(Double::doubleValue).sum() / tempReadings.size();
+
+        TemperatureStats stats = weatherDb.findTempStats();
+
+        assertEquals(tempReadings.size(), stats.getCount());
+        assertEquals(clientSideAverage, stats.getAverage(), TOLERANCE);
+    }
+
+    @Test
+    void minAndMaxAreSameAsClientSide() {
+        List<Double> tempReadings = findAllTempReadingsOnClient();
+
+        TemperatureStats stats = weatherDb.findTempStats();
+
+        assertEquals(tempReadings.stream().mapToDouble(Double::doubleValue).min().getAsDouble(), stats.getMin(),
+                     TOLERANCE);
+        assertEquals(tempReadings.stream().mapToDouble(Double::doubleValue).max().getAsDouble(), stats.getMax(),
+                     TOLERANCE);
+    }
+
+    @Test
+    void runningAndArchiveStatsAreSameAsClientSideAverage() {
+        List<Double> tempReadings = findAllTempReadingsOnClient();
+        double clientSideAverage = tempReadings.stream().mapToDouble(Double::doubleValue).sum() / tempReadings.size();
+
+        assertEquals(clientSideAverage, weatherDb.findRunningTempStats().getAverage(), TOLERANCE);
+        assertEquals(clientSideAverage, weatherDb.scanArchiveTempStats().getAverage(), TOLERANCE);
+    }
+
+    @Test
+    void percentileIsNearestRankOfClientSideReadings() {
+        List<Double> tempReadings = findAllTempReadingsOnClient();
+        tempReadings.sort(null);
+        Instant from = Instant.ofEpochSecond(FIRST_OBSERVATION);
+        Instant to = Instant.ofEpochSecond(FIRST_OBSERVATION + OBSERVATIONS_PER_PROVIDER * 3600L);
+        int rank = (int) Math.ceil(0.95 * tempReadings.size());
+
+        double percentile = weatherDb.findTempPercentile(new TemperatureQuery(from, to, null, null), 95);
+
+        assertEquals(tempReadings.get(rank - 1), percentile, TOLERANCE);
+    }
+
+    @Test
+    void rebuiltRunningStatsAreUpdatedByLaterObservations() {
+        weatherDb.rebuildRunningStats();
+        weatherDb.storeObservations(List.of(weatherbitObservation(FIRST_OBSERVATION - 3600L, 20.0)));
+        List<Double> tempReadings = findAllTempReadingsOnClient();
+        double clientSideAverage = tempReadings.stream().mapToDouble(Double::doubleValue).sum() / tempReadings.size();
+
+        TemperatureStats stats = weatherDb.findRunningTempStats();
+
+        assertEquals(tempReadings.size(), stats.getCount());
+        assertEquals(clientSideAverage, stats.getAverage(), TOLERANCE);
+    }
+
+    @Test
+    void rangeAverageIsSameAsClientSideAverageOverRange() {
+        Instant from = Instant.ofEpochSecond(FIRST_OBSERVATION + 10 * 3600L);
+        Instant to = Instant.ofEpochSecond(FIRST_OBSERVATION + 20 * 3600L);
+        List<Double> tempReadings = new ArrayList<>();
+        for (Document observation : findAllObservationsOnClient()) {
+            Map<String, Object> flattened = flattenDoc(observation);
+            Instant observedAt = extractObservationTime(flattened);
+            if (!observedAt.isBefore(from) && observedAt.isBefore(to)) {
+                tempReadings.add(extractTempReading(flattened));
+            }
+        }
+        double clientSideAverage = tempReadings.stream().mapToDouble(Double::doubleValue).sum() / tempReadings.size();
+
+        TemperatureStats stats = weatherDb.findTempStats(new TemperatureQuery(from, to, null, null));
+
+        assertEquals(tempReadings.size(), stats.getCount());
+        assertEquals(clientSideAverage, stats.getAverage(), TOLERANCE);
+    }
+
+    @Test
+    void cityQueryOverWholeHoursCountsTheCity() {
+        Instant from = Instant.ofEpochSecond(FIRST_OBSERVATION + 10 * 3600L);
+        Instant to = Instant.ofEpochSecond(FIRST_OBSERVATION + 20 * 3600L);
+
+        assertEquals(1, weatherDb.countDistinctCities(new TemperatureQuery(from, to, "weatherbit", "Stockholm")));
+        assertEquals(1, weatherDb.countDistinctCities(new TemperatureQuery(from, to, null, "Stockholm")));
+        assertEquals(0, weatherDb.countDistinctCities(new TemperatureQuery(from, to, "weatherbit", "Uppsala")));
+    }
+
+    /*
+     * The following methods calculate the temperatures the way it was done before
+     * the calculation was moved to the database server.
+     */
+
+    private List<Double> findAllTempReadingsOnClient() {
+        List<Double> tempReadings = new ArrayList<>();
+        for (Document observation : findAllObservationsOnClient()) {
+            Double tempReading = extractTempReading(flattenDoc(observation));
+            if (tempReading != null) {
+                tempReadings.add(tempReading);
+            }
+        }
+        return tempReadings;
+    }
+
+    private List<Document> findAllObservationsOnClient() {
+        List<Document> observations = new ArrayList<>();
+        try (MongoClient client = TestWeatherDatabase.connect();
+                MongoCursor<Document> cursor = client.getDatabase("weatherdb").getCollection("weather_data").find()
+                                                     .iterator()) {
+            cursor.forEachRemaining(observations::add);
+        }
+        return observations;
+    }
+
+    private Double extractTempReading(Map<String, Object> flattenedDoc) {
+        Object temperature = flattenedDoc.get("temp");
+        if (temperature == null) {
+            return null;
+        }
+        double degrees = ((Number) temperature).doubleValue();
+        return degrees > 200 ? degrees - 273.15 : degrees;
+    }
+
+    private Instant extractObservationTime(Map<String, Object> flattenedDoc) {
+        Object time = flattenedDoc.containsKey("dt") ? flattenedDoc.get("dt") : flattenedDoc.get("ts");
+        return Instant.ofEpochSecond(((Number) time).longValue());
+    }
+
+    private Map<String, Object> flattenDoc(Document doc) {
+        Map<String, Object> flattenedDoc = new HashMap<>();
+        for (String fieldName : doc.keySet()) {
+            Object value = doc.get(fieldName);
+            if (value instanceof Document) {
+                flattenedDoc.putAll(flattenDoc((Document) value));
+            } else if (value instanceof List) {
+                for (Object element : (List<?>) value) {
+                    flattenedDoc.putAll(flattenDoc((Document) element));
+                }
+            } else {
+                flattenedDoc.put(fieldName, value);
+            }
+        }
+        return flattenedDoc;
+    }
+
+    private static String openWeatherMapObservation(long observedAt, double tempKelvin) {
+        return String.format(Locale.ROOT, "{\"coord\":{\"lon\":18.06,\"lat\":59.33},"
+                + "\"weather\":[{\"id\":803,\"main\":\"Clouds\"}],\"main\":{\"temp\":%.2f,\"pressure\":1012,"
+                + "\"humidity\":76},\"wind\":{\"speed\":4.6,\"deg\":220},\"dt\":%d,\"name\":\"Stockholm\","
+                + "\"cod\":200}", tempKelvin, observedAt);
+    }
+
+    private static String weatherbitObservation(long observedAt, double tempCelsius) {
+        return String.format(Locale.ROOT, "{\"data\":[{\"rh\":76,\"pres\":1011.4,\"ts\":%d,"
+                + "\"city_name\":\"Stockholm\",\"wind_spd\":4.6,\"temp\":%.2f}],\"count\":1}", observedAt,
+                             tempCelsius);
+    }
+}
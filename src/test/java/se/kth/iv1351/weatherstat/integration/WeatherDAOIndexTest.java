@@ -0,0 +1,133 @@
+/*
+ * The MIT License (MIT)
+ * Copyright (c) 2020 Leif Lindbäck
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction,including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so,subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package se.kth.iv1351.weatherstat.integration;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import se.kth.iv1351.weatherstat.model.TemperatureQuery;
+
+/**
+ * Verifies that the range queries on normalised records are answered with an
+ * index scan on the compound indexes, not with a collection scan. The
+ * in-memory test server has no query planner, these tests are therefore only
+ * run against a real mongod, see {@link TestWeatherDatabase}.
+ */
+class WeatherDAOIndexTest {
+    private static final Instant FROM = Instant.parse("2020-10-12T00:00:00Z");
+    private static final Instant TO = Instant.parse("2020-10-13T00:00:00Z");
+    private static WeatherDAO weatherDb;
+
+    @BeforeAll
+    static void connect() {
+        assumeFalse(TestWeatherDatabase.isEmbedded(), "Explaining queries needs a real mongod.");
+        TestWeatherDatabase.start();
+        TestWeatherDatabase.clear();
+        weatherDb = new WeatherDAO();
+        weatherDb.storeObservations(List.of(
+                "{\"main\": {\"temp\": 283.71}, \"dt\": 1602507600, \"name\": \"Stockholm\"}",
+                "{\"data\": [{\"temp\": 10.6, \"ts\": 1602507600, \"city_name\": \"Stockholm\"}]}"));
+    }
+
+    @AfterAll
+    static void stopDatabase() {
+        TestWeatherDatabase.stop();
+    }
+
+    @Test
+    void timeRangeQueryUsesIndex() {
+        assertIndexScan(new TemperatureQuery(FROM, TO, null, null), "observedAt");
+    }
+
+    @Test
+    void providerQueryUsesCompoundIndex() {
+        assertIndexScan(new TemperatureQuery(FROM, TO, "weatherbit", null), "provider");
+    }
+
+    @Test
+    void cityQueryUsesCompoundIndex() {
+        assertIndexScan(new TemperatureQuery(FROM, TO, null, "Stockholm"), "city");
+    }
+
+    private void assertIndexScan(TemperatureQuery query, String firstIndexedField) {
+        BsonDocument filter = weatherDb.toFilter(query).toBsonDocument(BsonDocument.class,
+                                                                       MongoClientSettings.getDefaultCodecRegistry());
+        Document explainCommand = new Document("explain",
+                new Document("aggregate", "observations")
+                        .append("pipeline", List.of(new Document("$match", filter)))
+                        .append("cursor", new Document()))
+                .append("verbosity", "queryPlanner");
+        Document explained;
+        try (MongoClient client = TestWeatherDatabase.connect()) {
+            explained = client.getDatabase("weatherdb").runCommand(explainCommand);
+        }
+
+        List<Document> stages = new ArrayList<>();
+        collectWinningStages(explained, false, stages);
+        assertFalse(stages.isEmpty(), "No winning plan in " + explained.toJson());
+        assertFalse(stages.stream().anyMatch(stage -> "COLLSCAN".equals(stage.getString("stage"))),
+                    "Collection scan in " + explained.toJson());
+        assertTrue(stages.stream().anyMatch(stage -> "IXSCAN".equals(stage.getString("stage"))
+                && firstIndexedField.equals(stage.get("keyPattern", Document.class).keySet().iterator().next())),
+                   "No scan of an index starting with " + firstIndexedField + " in " + explained.toJson());
+    }
+
+    /**
+     * Collects all stages of the winning plans in the specified explain output.
+     * Rejected plans are skipped.
+     */
+    private void collectWinningStages(Object value, boolean inWinningPlan, List<Document> stages) {
+        if (value instanceof Document) {
+            Document doc = (Document) value;
+            if (inWinningPlan && doc.containsKey("stage")) {
+                stages.add(doc);
+            }
+            for (String fieldName : doc.keySet()) {
+                if (!"rejectedPlans".equals(fieldName)) {
+                    collectWinningStages(doc.get(fieldName), inWinningPlan || "winningPlan".equals(fieldName),
+                                         stages);
+                }
+            }
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                collectWinningStages(element, inWinningPlan, stages);
+            }
+        }
+    }
+}